@@ -0,0 +1,174 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.*;
+
+import javax.naming.NamingException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the collection hot paths, one per collection group, against an in-memory server.
+ * <p>
+ * The agent is configured from the shipped plugin.template.json with the timed operations and sub-minute
+ * sampling removed, so that only the work of a poll cycle is measured.  The size of the fake server is set
+ * with the backends and dbFiles parameters, e.g. -p backends=50 -p dbFiles=250.  Run with -prof gc to see
+ * the allocation per operation; the jmh task does this by default.
+ * <ul>
+ * <li>pollCycle - a full poll cycle, read and publish</li>
+ * <li>mainCounters, ldbmCounters, backendCounters - reading, parsing and publishing each group</li>
+ * <li>parseMetricSpecs - parsing and compiling the metric configuration</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollectionBenchmark {
+    private static final String TEMPLATE = "/config/plugin.template.json";
+
+    @Param({"1", "10", "200"})
+    public int backends;
+
+    @Param({"10", "100", "500"})
+    public int dbFiles;
+
+    @Param({"1"})
+    public int backendConcurrency;
+
+    private JSONObject config;
+    private FakeMonitorDirContext ctx;
+    private CountingAgent agent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        config = loadConfig();
+        config.put("backend_concurrency", (long) backendConcurrency);
+
+        JSONObject jo = (JSONObject) config.get("ldap");
+        Set<String> mainKeys = MetricTable.compile("",
+                MetricSpec.parseAll("ldap.counters", (Map<String, ?>) jo.get("counters")),
+                MetricSpec.parseAll("ldap.gauges", (Map<String, ?>) jo.get("gauges"))).attributes();
+        jo = (JSONObject) config.get("ldbm");
+        Set<String> ldbmKeys = MetricTable.compile("",
+                MetricSpec.parseAll("ldbm.counters", (Map<String, ?>) jo.get("counters")),
+                MetricSpec.parseAll("ldbm.gauges", (Map<String, ?>) jo.get("gauges"))).attributes();
+        jo = (JSONObject) config.get("backendmonitor");
+        Set<String> backendKeys = new LinkedHashSet<>(
+                MetricSpec.parseAll("backendmonitor.counters", (Map<String, ?>) jo.get("counters")).keySet());
+        backendKeys.addAll(MetricSpec.parseAll("backendmonitor.gauges", (Map<String, ?>) jo.get("gauges")).keySet());
+
+        ctx = new FakeMonitorDirContext(mainKeys, ldbmKeys, backendKeys, backends, dbFiles);
+        agent = new CountingAgent(config, ctx);
+
+        // Prime the backend DN list, attribute layout and parser caches as a running agent would have them.
+        agent.pollCycle();
+        ctx.advance();
+        agent.pollCycle();
+    }
+
+    @Benchmark
+    public long pollCycle() {
+        ctx.advance();
+        agent.pollCycle();
+        return agent.published;
+    }
+
+    @Benchmark
+    public long mainCounters() throws NamingException {
+        agent.collectMainLdapCounters().publish();
+        return agent.published;
+    }
+
+    @Benchmark
+    public long ldbmCounters() throws NamingException {
+        agent.collectLdbmCounters().publish();
+        return agent.published;
+    }
+
+    @Benchmark
+    public long backendCounters() throws NamingException, InterruptedException {
+        agent.collectBackendDbCounters().publish();
+        return agent.published;
+    }
+
+    @Benchmark
+    public MetricTable parseMetricSpecs() throws Exception {
+        JSONObject jo = (JSONObject) config.get("ldap");
+        MetricTable ldap = MetricTable.compile("LDAP",
+                MetricSpec.parseAll("ldap.counters", (Map<String, ?>) jo.get("counters")),
+                MetricSpec.parseAll("ldap.gauges", (Map<String, ?>) jo.get("gauges")));
+        jo = (JSONObject) config.get("ldbm");
+        MetricTable.compile("Database",
+                MetricSpec.parseAll("ldbm.counters", (Map<String, ?>) jo.get("counters")),
+                MetricSpec.parseAll("ldbm.gauges", (Map<String, ?>) jo.get("gauges")));
+        jo = (JSONObject) config.get("backendmonitor");
+        MetricSpec.parseAll("backendmonitor.counters", (Map<String, ?>) jo.get("counters"));
+        MetricSpec.parseAll("backendmonitor.gauges", (Map<String, ?>) jo.get("gauges"));
+        return ldap;
+    }
+
+    private static JSONObject loadConfig() throws Exception {
+        try (Reader in = new InputStreamReader(CollectionBenchmark.class.getResourceAsStream(TEMPLATE),
+                StandardCharsets.UTF_8)) {
+            JSONObject plugin = (JSONObject) new JSONParser().parse(in);
+            JSONObject config = (JSONObject) ((List) plugin.get("agents")).get(0);
+            config.remove("timedops");
+            config.remove("sampling");
+            // The database and backend monitors are only read when bound.
+            config.put("binddn", "cn=Directory Manager");
+            config.put("bindpw", "password");
+            return config;
+        }
+    }
+
+    /**
+     * An agent that counts what it would have sent to New Relic instead of sending it.
+     */
+    static class CountingAgent extends LdapAgent {
+        long published;
+
+        CountingAgent(Map<String, Object> config, FakeMonitorDirContext ctx) throws Exception {
+            super(config, () -> ctx);
+        }
+
+        @Override
+        public void reportMetric(String metricName, String units, Number value) {
+            if (null != value) {
+                published++;
+            }
+        }
+    }
+}
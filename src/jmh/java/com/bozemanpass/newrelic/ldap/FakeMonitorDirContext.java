@@ -0,0 +1,284 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.NameNotFoundException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory stand-in for a 389 Directory Server, serving synthetic cn=monitor, cn=snmp,cn=monitor,
+ * ldbm database monitor and backend monitor entries so that the collection code can be benchmarked
+ * without a server or a network.
+ * <p>
+ * The attributes on each entry are the ones named in the agent configuration.  Every backend gets the
+ * same number of dbfilename-N groups, each with the backend attributes that start with "dbfile".
+ * Counter values grow each time {@link #advance()} is called, so that rates are non-zero.
+ * <p>
+ * Only the operations the agent uses for polling are supported: getAttributes, search (base or subtree,
+ * with a cn equality filter or an OR of them) and close.
+ */
+class FakeMonitorDirContext extends InitialDirContext {
+    private static final String DBFILE_PREFIX = "dbfile";
+    private static final Pattern CN_TERM = Pattern.compile("\\(cn=([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long tick = 1;
+
+    /**
+     * @param mainKeys    the attributes on cn=snmp,cn=monitor
+     * @param ldbmKeys    the attributes on the database monitor
+     * @param backendKeys the attributes on the backend monitors; those starting with dbfile are per file
+     * @param backends    the number of backends
+     * @param dbFiles     the number of database files on each backend
+     * @throws NamingException
+     */
+    FakeMonitorDirContext(Collection<String> mainKeys, Collection<String> ldbmKeys, Collection<String> backendKeys,
+                          int backends, int dbFiles) throws NamingException {
+        super(true);
+
+        List<String> backendDNs = new ArrayList<>(backends);
+        for (int b = 0; b < backends; b++) {
+            backendDNs.add("cn=monitor,cn=userRoot" + b + "," + MonitorReader.LDBM_DN);
+        }
+
+        add("", "").fixed("vendorName", "Fake");
+
+        add(MonitorReader.MONITOR_DN, "monitor")
+                .fixed(MonitorReader.BACKENDMONITOR_ATTR, backendDNs.toArray(new String[0]))
+                .counter(MonitorReader.READWAITERS_ATTR, 0, 0)
+                .counter("currentconnections", 20, 0);
+
+        Entry snmp = add(MonitorReader.SNMP_DN, "snmp");
+        int i = 0;
+        for (String key : mainKeys) {
+            snmp.counter(key, 1000L * i, i + 1);
+            i++;
+        }
+
+        Entry ldbm = add(MonitorReader.DB_MONITOR_DN, "database");
+        i = 0;
+        for (String key : ldbmKeys) {
+            ldbm.counter(key, 500L * i, i + 3);
+            i++;
+        }
+
+        add(MonitorReader.LDBM_DN, "ldbm database");
+        // The ldbm database's own monitor entry also matches the backend search filter.
+        add("cn=monitor," + MonitorReader.LDBM_DN, "monitor").fixed("database", "ldbm database");
+
+        List<String> dbFileKeys = new ArrayList<>();
+        for (int b = 0; b < backends; b++) {
+            Entry backend = add(backendDNs.get(b), "monitor");
+            i = 0;
+            for (String key : backendKeys) {
+                if (key.startsWith(DBFILE_PREFIX)) {
+                    if (0 == b) {
+                        dbFileKeys.add(key);
+                    }
+                    continue;
+                }
+                backend.counter(key, 100L * i, b + 1);
+                i++;
+            }
+            for (int f = 0; f < dbFiles; f++) {
+                backend.fixed(MonitorReader.DBFILENAME_ATTR + "-" + f, "userRoot" + b + "/index" + f + ".db");
+                int a = 0;
+                for (String key : dbFileKeys) {
+                    backend.counter(key + "-" + f, 10L * f, a + 1);
+                    a++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Move every counter on to its next value.
+     */
+    void advance() {
+        tick++;
+    }
+
+    /**
+     * @return the number of entries served
+     */
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public Attributes getAttributes(String name) throws NamingException {
+        return getAttributes(name, null);
+    }
+
+    @Override
+    public Attributes getAttributes(String name, String[] attrIds) throws NamingException {
+        Entry entry = entries.get(MonitorSnapshot.normalizeDn(name));
+        if (null == entry) {
+            throw new NameNotFoundException(name);
+        }
+        return entry.read(attrIds);
+    }
+
+    @Override
+    public NamingEnumeration<SearchResult> search(String name, String filter, SearchControls cons)
+            throws NamingException {
+        String base = MonitorSnapshot.normalizeDn(name);
+        if (!entries.containsKey(base)) {
+            throw new NameNotFoundException(name);
+        }
+
+        Set<String> cns = new HashSet<>();
+        Matcher m = CN_TERM.matcher(filter);
+        while (m.find()) {
+            cns.add(m.group(1).toLowerCase());
+        }
+
+        boolean subtree = SearchControls.SUBTREE_SCOPE == cons.getSearchScope();
+        List<SearchResult> results = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            boolean inScope = entry.key.equals(base) || (subtree && entry.key.endsWith("," + base));
+            if (inScope && cns.contains(entry.cn)) {
+                SearchResult result = new SearchResult(entry.dn, null, entry.read(cons.getReturningAttributes()));
+                result.setNameInNamespace(entry.dn);
+                results.add(result);
+            }
+        }
+        return new Results(results.iterator());
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Entry add(String dn, String cn) {
+        Entry entry = new Entry(dn, cn);
+        entries.put(entry.key, entry);
+        return entry;
+    }
+
+    /**
+     * A synthetic entry.  Each value is either fixed, or a counter worked out from the current tick.
+     */
+    private class Entry {
+        final String dn;
+        final String key;
+        final String cn;
+        final List<String> ids = new ArrayList<>();
+        final List<String[]> fixed = new ArrayList<>();
+        final List<long[]> counters = new ArrayList<>();
+
+        Entry(String dn, String cn) {
+            this.dn = dn;
+            this.key = MonitorSnapshot.normalizeDn(dn);
+            this.cn = cn;
+        }
+
+        Entry fixed(String id, String... values) {
+            ids.add(id);
+            fixed.add(values);
+            counters.add(null);
+            return this;
+        }
+
+        Entry counter(String id, long base, long step) {
+            ids.add(id);
+            fixed.add(null);
+            counters.add(new long[]{base, step});
+            return this;
+        }
+
+        Attributes read(String[] attrIds) {
+            Set<String> wanted = null;
+            if (null != attrIds && !Arrays.asList(attrIds).contains("*")) {
+                wanted = new HashSet<>();
+                for (String id : attrIds) {
+                    wanted.add(id.toLowerCase());
+                }
+            }
+
+            Attributes attrs = new BasicAttributes(true);
+            for (int i = 0; i < ids.size(); i++) {
+                String id = ids.get(i);
+                if (null != wanted && !wanted.contains(id.toLowerCase())) {
+                    continue;
+                }
+                Attribute attr = new BasicAttribute(id);
+                String[] values = fixed.get(i);
+                if (null != values) {
+                    for (String value : values) {
+                        attr.add(value);
+                    }
+                } else {
+                    long[] counter = counters.get(i);
+                    attr.add(String.valueOf(counter[0] + counter[1] * tick));
+                }
+                attrs.put(attr);
+            }
+            return attrs;
+        }
+    }
+
+    private static class Results implements NamingEnumeration<SearchResult> {
+        private final Iterator<SearchResult> it;
+
+        Results(Iterator<SearchResult> it) {
+            this.it = it;
+        }
+
+        @Override
+        public SearchResult next() {
+            return it.next();
+        }
+
+        @Override
+        public boolean hasMore() {
+            return it.hasNext();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return it.hasNext();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+            return it.next();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.DaemonThreadFactory;
+import com.bozemanpass.newrelic.ldap.util.LatencyHistogram;
+import com.newrelic.metrics.publish.Agent;
+import com.newrelic.metrics.publish.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Follows the 389DS access log in the background and turns its RESULT lines into per-operation latency
+ * histograms, giving the real latencies the server saw rather than those of our own probes.
+ * <p>
+ * Every interval the new bytes are read into one reused buffer and the complete lines are parsed in place,
+ * so nothing is allocated per line and memory use does not depend on how busy the server is.  The
+ * operation is taken from the result tag, so there is no need to match RESULT lines up with the lines
+ * that started the operations.  How far we have read is saved to the offset file along with the identity
+ * of the log file, so a restart carries on where it left off; if the log was rotated in the meantime we
+ * start again at the beginning of the new one.  A log rotated while we are running is read to its end
+ * before moving on to the new one, and a log truncated in place is read again from the start.
+ */
+class AccessLogTailer {
+    private static final Logger log = Logger.getLogger(AccessLogTailer.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private static final byte[] RESULT = "RESULT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ERR = "err=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TAG = "tag=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ETIME = "etime=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NOTES = "notes=".getBytes(StandardCharsets.US_ASCII);
+
+    // The LDAP result tags, and the operations they are published under.
+    private static final int[] TAGS = {97, 101, 103, 105, 107, 109, 111, 120};
+    private static final String[] OPERATIONS = {"Bind", "Search", "Modify", "Add", "Delete", "ModRDN", "Compare",
+            "Extended", "Other"};
+    private static final int OTHER = OPERATIONS.length - 1;
+
+    private final Path path;
+    private final File offsetFile;
+    private final long interval;
+    private final String prefix;
+    private final ScheduledExecutorService executor;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] bytes = buffer.array();
+    private final int[] tagOperations = new int[128];
+    private final Operation[] operations = new Operation[OPERATIONS.length];
+    private final AtomicLong unindexed = new AtomicLong();
+    private final AtomicLong fullyUnindexed = new AtomicLong();
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private volatile long backlog = 0;
+
+    private FileChannel channel = null;
+    private String fileKey = null;
+    // The offset of the first byte not yet parsed, or -1 to start at the end of the log.
+    private long position = -1;
+    private boolean skipping = false;
+    private String savedKey = null;
+    private long savedPosition = -1;
+
+    /**
+     * @param path       the access log
+     * @param offsetFile where to keep how far we have read
+     * @param interval   the time between reads (ms)
+     * @param prefix     the metric name prefix, eg LDAP/AccessLog
+     */
+    AccessLogTailer(File path, File offsetFile, long interval, String prefix) {
+        this.path = path.toPath();
+        this.offsetFile = offsetFile;
+        this.interval = interval;
+        this.prefix = prefix;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ldap-accesslog"));
+        for (int i = 0; i < tagOperations.length; i++) {
+            tagOperations[i] = OTHER;
+        }
+        for (int i = 0; i < TAGS.length; i++) {
+            tagOperations[TAGS[i]] = i;
+        }
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new Operation(prefix + "/" + OPERATIONS[i]);
+        }
+    }
+
+    /**
+     * Pick up where the last run left off, and start following the log in the background.
+     */
+    void start() {
+        loadOffset();
+        executor.scheduleWithFixedDelay(this::runRound, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop following the log, saving how far we got.
+     */
+    void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(interval, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            saveOffset();
+            closeChannel();
+        }
+    }
+
+    /**
+     * Read and parse everything written to the log since the last round.
+     */
+    synchronized void runRound() {
+        long start = System.nanoTime();
+        try {
+            if (null == channel && !open()) {
+                return;
+            }
+
+            String currentKey = currentFileKey();
+            if (channel.size() < position) {
+                log.info(String.format("Access log %s was truncated, reading it from the start", path));
+                position = 0;
+                skipping = false;
+            }
+            drain();
+
+            if (null != currentKey && !currentKey.equals(fileKey)) {
+                // Rotated: the old log has been read to its end, carry on with the new one.
+                log.debug(String.format("Access log %s was rotated", path));
+                closeChannel();
+                if (!open()) {
+                    return;
+                }
+                drain();
+            }
+            backlog = Math.max(0, channel.size() - position);
+            saveOffset();
+        } catch (IOException e) {
+            log.debug(String.format("Error reading the access log %s: %s", path, e));
+            closeChannel();
+        } finally {
+            busyNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the time spent reading the log since the last call
+     */
+    long takeBusyNanos() {
+        return busyNanos.getAndSet(0);
+    }
+
+    /**
+     * Publish what the log showed since the last call.
+     *
+     * @param agent the agent to report through
+     */
+    void publish(Agent agent) {
+        for (Operation operation : operations) {
+            operation.publish(agent);
+        }
+        agent.reportMetric(prefix + "/Search/Unindexed", "searches", unindexed.getAndSet(0));
+        agent.reportMetric(prefix + "/Search/FullyUnindexed", "searches", fullyUnindexed.getAndSet(0));
+        agent.reportMetric(prefix + "/Lines", "lines", lines.getAndSet(0));
+        agent.reportMetric(prefix + "/Backlog", "bytes", backlog);
+    }
+
+    /**
+     * Open the log, working out where to start reading it.
+     *
+     * @return false if the log does not exist (yet)
+     * @throws IOException
+     */
+    private boolean open() throws IOException {
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // Whenever it does turn up, all of it is new.
+            position = 0;
+            fileKey = null;
+            return false;
+        }
+
+        String key = currentFileKey();
+        long size = ch.size();
+        if (position < 0) {
+            // Nothing saved: start at the end, rather than replaying all of the history in one interval.
+            position = size;
+        } else if (null == key || !key.equals(fileKey) || position > size) {
+            position = 0;
+        }
+        fileKey = key;
+        skipping = false;
+        channel = ch;
+        return true;
+    }
+
+    private void closeChannel() {
+        if (null != channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug(String.format("Error closing the access log %s: %s", path, e));
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * @return the identity (device and inode) of whatever file is at the log's path now, or null if none
+     */
+    private String currentFileKey() {
+        try {
+            Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            return null != key ? key.toString() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse every complete line from the current position to the end of the log.  A partial line at the end
+     * is left to be read again next round, once it has been finished.
+     *
+     * @throws IOException
+     */
+    private void drain() throws IOException {
+        int filled = 0;
+        while (true) {
+            buffer.limit(BUFFER_SIZE).position(filled);
+            int n = channel.read(buffer, position + filled);
+            if (n <= 0) {
+                return;
+            }
+            filled += n;
+
+            int consumed = parseLines(filled);
+            if (0 == consumed && BUFFER_SIZE == filled) {
+                // A line longer than the buffer is no RESULT line, drop it.
+                skipping = true;
+                consumed = filled;
+            }
+            position += consumed;
+            filled -= consumed;
+            System.arraycopy(bytes, consumed, bytes, 0, filled);
+        }
+    }
+
+    /**
+     * @param end the number of bytes in the buffer
+     * @return the number of bytes in the complete lines that were parsed
+     */
+    private int parseLines(int end) {
+        int start = 0;
+        for (int i = 0; i < end; i++) {
+            if ('\n' == bytes[i]) {
+                if (skipping) {
+                    skipping = false;
+                } else {
+                    parseLine(start, i);
+                    lines.incrementAndGet();
+                }
+                start = i + 1;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Parse one line, eg
+     * <pre>
+     * [18/Oct/2026:09:40:01.123456789 +0000] conn=12 op=3 RESULT err=0 tag=101 nentries=1 wtime=0.000123 optime=0.000456 etime=0.000579 notes=U
+     * </pre>
+     * Anything that is not a RESULT line is ignored.
+     *
+     * @param start the index of the first byte of the line
+     * @param end   the index of the newline
+     */
+    private void parseLine(int start, int end) {
+        // Skip the timestamp, which has a space of its own.
+        int i = start;
+        while (i < end && ']' != bytes[i]) {
+            i++;
+        }
+        i++;
+
+        // The keyword is the first word that is not name=value.
+        boolean result = false;
+        while (i < end) {
+            while (i < end && ' ' == bytes[i]) {
+                i++;
+            }
+            int word = i;
+            while (i < end && ' ' != bytes[i] && '=' != bytes[i]) {
+                i++;
+            }
+            if (i >= end || ' ' == bytes[i]) {
+                result = matches(word, end, RESULT) && i - word == RESULT.length;
+                break;
+            }
+            while (i < end && ' ' != bytes[i]) {
+                i++;
+            }
+        }
+        if (!result) {
+            return;
+        }
+
+        int operation = OTHER;
+        boolean error = false;
+        long nanos = -1;
+        while (i < end) {
+            while (i < end && ' ' == bytes[i]) {
+                i++;
+            }
+            if (matches(i, end, TAG)) {
+                i += TAG.length;
+                long tag = 0;
+                for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+                    tag = tag * 10 + bytes[i] - '0';
+                }
+                operation = tag < tagOperations.length ? tagOperations[(int) tag] : OTHER;
+            } else if (matches(i, end, ERR)) {
+                i += ERR.length;
+                error = i < end && '0' != bytes[i];
+            } else if (matches(i, end, ETIME)) {
+                i += ETIME.length;
+                nanos = 0;
+                for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+                    nanos = nanos * 10 + bytes[i] - '0';
+                }
+                nanos *= 1000000000L;
+                if (i < end && '.' == bytes[i]) {
+                    long scale = 100000000L;
+                    for (i++; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++, scale /= 10) {
+                        nanos += (bytes[i] - '0') * scale;
+                    }
+                }
+            } else if (matches(i, end, NOTES)) {
+                // A comma separated list of flags: U is a partly unindexed search, A a fully unindexed one.
+                for (i += NOTES.length; i < end && ' ' != bytes[i]; i++) {
+                    if ('U' == bytes[i]) {
+                        unindexed.incrementAndGet();
+                    } else if ('A' == bytes[i]) {
+                        fullyUnindexed.incrementAndGet();
+                    }
+                }
+            }
+            while (i < end && ' ' != bytes[i]) {
+                i++;
+            }
+        }
+
+        Operation op = operations[operation];
+        op.seen = true;
+        if (error) {
+            op.errors.incrementAndGet();
+        }
+        if (nanos >= 0) {
+            op.latencies.record(nanos);
+        }
+    }
+
+    private boolean matches(int i, int end, byte[] word) {
+        if (end - i < word.length) {
+            return false;
+        }
+        for (int j = 0; j < word.length; j++) {
+            if (word[j] != bytes[i + j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void loadOffset() {
+        if (!offsetFile.exists()) {
+            return;
+        }
+        try {
+            List<String> state = Files.readAllLines(offsetFile.toPath(), StandardCharsets.UTF_8);
+            if (state.size() >= 2) {
+                fileKey = state.get(0).isEmpty() ? null : state.get(0);
+                position = Long.parseLong(state.get(1).trim());
+                savedKey = fileKey;
+                savedPosition = position;
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.warn(String.format("Ignoring unreadable access log offset file %s: %s", offsetFile, e));
+        }
+    }
+
+    /**
+     * Write out how far we have read, if it has changed, replacing the old offset file in one step.
+     */
+    private void saveOffset() {
+        if (position < 0 || (position == savedPosition && null != fileKey && fileKey.equals(savedKey))) {
+            return;
+        }
+        String state = (null != fileKey ? fileKey : "") + "\n" + position + "\n";
+        Path target = offsetFile.toPath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            File dir = offsetFile.getAbsoluteFile().getParentFile();
+            if (null != dir && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            Files.write(tmp, state.getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            savedKey = fileKey;
+            savedPosition = position;
+        } catch (IOException e) {
+            log.debug(String.format("Error saving the access log offset to %s: %s", offsetFile, e));
+        }
+    }
+
+    /**
+     * The latencies and errors of one type of operation, published as prefix/Time (the mean), the
+     * percentiles, prefix/Count and prefix/Errors once it has been seen in the log.
+     */
+    private static class Operation {
+        private final String timeName;
+        private final String p50Name;
+        private final String p90Name;
+        private final String p99Name;
+        private final String maxName;
+        private final String countName;
+        private final String errorsName;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LatencyHistogram interval = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private volatile boolean seen = false;
+
+        Operation(String metricPrefix) {
+            this.timeName = metricPrefix + "/Time";
+            this.p50Name = metricPrefix + "/P50";
+            this.p90Name = metricPrefix + "/P90";
+            this.p99Name = metricPrefix + "/P99";
+            this.maxName = metricPrefix + "/Max";
+            this.countName = metricPrefix + "/Count";
+            this.errorsName = metricPrefix + "/Errors";
+        }
+
+        void publish(Agent agent) {
+            if (!seen) {
+                return;
+            }
+            latencies.drainTo(interval);
+            long count = interval.getCount();
+            if (count > 0) {
+                agent.reportMetric(timeName, "milliseconds", interval.getMean() / NANOS_PER_MILLI);
+                agent.reportMetric(p50Name, "milliseconds", millis(interval.getValueAtQuantile(0.50)));
+                agent.reportMetric(p90Name, "milliseconds", millis(interval.getValueAtQuantile(0.90)));
+                agent.reportMetric(p99Name, "milliseconds", millis(interval.getValueAtQuantile(0.99)));
+                agent.reportMetric(maxName, "milliseconds", millis(interval.getMax()));
+            }
+            agent.reportMetric(countName, "operations", count);
+            agent.reportMetric(errorsName, "errors", errors.getAndSet(0));
+        }
+
+        private static double millis(long nanos) {
+            return nanos / NANOS_PER_MILLI;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.DaemonThreadFactory;
+import com.newrelic.metrics.publish.util.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls many agents at once, rather than one after another on the Runner's thread.
+ * <p>
+ * Each agent gets a slot in the poll interval, spread evenly so that a fleet of agents does not hit shared
+ * infrastructure all at the same moment, and its cycles run on a bounded pool of threads at that offset.
+ * An agent whose cycle runs past its next slot simply skips the slots it missed, so a slow or unreachable
+ * server only ever ties up one thread and never delays the cycles of the others.  The Runner still does the
+ * reporting: each time it polls an agent, the agent hands over the metrics from its latest finished cycle.
+ */
+class AgentScheduler {
+    private static final Logger log = Logger.getLogger(AgentScheduler.class);
+
+    private final long interval;
+    private final boolean stagger;
+    private final ScheduledThreadPoolExecutor executor;
+    private final List<LdapAgent> agents = new ArrayList<>();
+    private boolean started = false;
+
+    /**
+     * @param interval the poll interval (ms)
+     * @param threads  the most agents to poll at once
+     * @param stagger  whether to spread the agents' start times across the interval
+     */
+    AgentScheduler(long interval, int threads, boolean stagger) {
+        this.interval = interval;
+        this.stagger = stagger;
+        this.executor = new ScheduledThreadPoolExecutor(threads, new DaemonThreadFactory("ldap-agent"));
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return the poll interval (ms)
+     */
+    long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Add an agent.  Agents added after the scheduler has started are not polled.
+     */
+    synchronized void register(LdapAgent agent) {
+        if (started) {
+            log.warn("Scheduler already started, not polling ", agent.getAgentName());
+            return;
+        }
+        agents.add(agent);
+    }
+
+    /**
+     * Start polling all of the registered agents, if not already started.  This is called on the first poll
+     * from the Runner, by which time every agent has been created and set up.
+     */
+    synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < agents.size(); i++) {
+            long offset = stagger ? i * interval / agents.size() : 0;
+            schedule(agents.get(i), now + offset, 0);
+        }
+        log.info(String.format("Polling %d agents on %d threads every %d ms%s", agents.size(),
+                executor.getCorePoolSize(), interval, stagger ? ", staggered" : ""));
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void schedule(LdapAgent agent, long slot, int skipped) {
+        long delay = Math.max(0, slot - System.currentTimeMillis());
+        executor.schedule(() -> run(agent, slot, skipped), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void run(LdapAgent agent, long slot, int skipped) {
+        try {
+            agent.runScheduledCycle(System.currentTimeMillis() - slot, skipped);
+        } catch (Throwable t) {
+            log.error(t, "Error polling ", agent.getAgentName());
+        }
+
+        // Keep to the agent's slots, skipping any that went by while this cycle ran.
+        long now = System.currentTimeMillis();
+        long next = slot + interval;
+        int missed = 0;
+        while (next <= now) {
+            next += interval;
+            missed++;
+        }
+        if (missed > 0) {
+            log.warn(String.format("Poll of %s overran its interval by %d ms, skipping %d cycle(s)",
+                    agent.getAgentName(), now - slot - interval, missed));
+        }
+        if (!executor.isShutdown()) {
+            schedule(agent, next, missed);
+        }
+    }
+}
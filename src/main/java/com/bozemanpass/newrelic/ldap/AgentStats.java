@@ -0,0 +1,301 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.TlsContext;
+import com.bozemanpass.newrelic.ldap.util.TrafficCounter;
+import com.newrelic.metrics.publish.Agent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The agent's own cost and health, published under Agent/ at the end of each poll cycle.
+ * <ul>
+ * <li>Agent/Cycle/{Main,Database,Backend,Replication,TimedOps,AccessLog,Total} - time spent on each collection group
+ * the agent runs, see {@link #setGroups}</li>
+ * <li>Agent/Cycle/Allocated - bytes allocated during the cycle by the polling thread and the threads collecting for it</li>
+ * <li>Agent/LDAP/{Requests,BytesSent,BytesReceived} - traffic on all of the agent's connections since the last cycle</li>
+ * <li>Agent/TLS/{Handshakes,Resumed,HandshakeTime} - TLS handshakes since the last cycle, how many of them resumed
+ * a cached session, and their average time; only when the agent uses TLS</li>
+ * <li>Agent/Metrics/{Reported,Suppressed,SkippedAttributes} - metrics sent, metrics held back because they had not
+ * changed, and attributes that could not be parsed</li>
+ * <li>Agent/Errors/&lt;exception type&gt; - errors since the last cycle</li>
+ * <li>Agent/Scheduler/{Lag,SkippedCycles,DroppedCycles} - when polled by the {@link AgentScheduler}, how late the
+ * cycle started, how many cycles were skipped because the previous one overran, and how many finished cycles were
+ * dropped because too many were waiting for the Runner</li>
+ * <li>Agent/JVM/{HeapUsed,HeapCommitted,AllocationRate} - for the whole JVM, which may run several agents</li>
+ * </ul>
+ * Times are recorded from the polling thread.  Errors and traffic may be recorded from any thread.
+ */
+class AgentStats {
+    static final String PREFIX = "Agent";
+
+    /**
+     * The collection groups of a poll cycle.
+     */
+    enum Group {
+        MAIN("Main"), DATABASE("Database"), BACKEND("Backend"), REPLICATION("Replication"), TIMED_OPS("TimedOps"), ACCESS_LOG("AccessLog");
+
+        final String displayName;
+        final String metricName;
+
+        Group(String name) {
+            this.displayName = name;
+            this.metricName = PREFIX + "/Cycle/" + name;
+        }
+    }
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final TrafficCounter traffic = new TrafficCounter();
+    private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private final long[] groupNanos = new long[Group.values().length];
+    private Set<Group> groups = EnumSet.allOf(Group.class);
+    private long metricsReported = 0;
+    private long metricsSuppressed = 0;
+    private long skippedAttributes = 0;
+    private long schedulerLag = -1;
+    private int skippedCycles = 0;
+    private int droppedCycles = 0;
+    private long collectorAllocated = 0;
+
+    private long lastRequests = 0;
+    private long lastBytesSent = 0;
+    private long lastBytesReceived = 0;
+    private TlsContext tls = null;
+    private long lastHandshakes = 0;
+    private long lastResumedHandshakes = 0;
+    private long lastHandshakeNanos = 0;
+    private long lastJvmAllocated = -1;
+    private long lastJvmSampled = 0;
+
+    /**
+     * @return the counter for the traffic on the agent's connections
+     */
+    TrafficCounter getTraffic() {
+        return traffic;
+    }
+
+    /**
+     * @param tls the context the agent's TLS connections are made with, to publish its handshakes
+     */
+    void setTls(TlsContext tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * @param groups the collection groups the agent runs; only these are published under Agent/Cycle/
+     */
+    void setGroups(Set<Group> groups) {
+        this.groups = EnumSet.copyOf(groups);
+    }
+
+    /**
+     * @param group the collection group
+     * @param nanos time spent on it
+     */
+    void addNanos(Group group, long nanos) {
+        groupNanos[group.ordinal()] += nanos;
+    }
+
+    /**
+     * @param group the collection group
+     * @param start when work on it started, from System.nanoTime()
+     * @return the current System.nanoTime(), to time the next step from
+     */
+    long addTime(Group group, long start) {
+        long now = System.nanoTime();
+        addNanos(group, now - start);
+        return now;
+    }
+
+    /**
+     * @param bytes allocated for the cycle by threads other than the polling thread
+     */
+    void addAllocated(long bytes) {
+        collectorAllocated += bytes;
+    }
+
+    /**
+     * Count a metric sent to New Relic.
+     */
+    void metricReported() {
+        metricsReported++;
+    }
+
+    /**
+     * Count a metric held back because it had not changed.
+     */
+    void metricSuppressed() {
+        metricsSuppressed++;
+    }
+
+    /**
+     * @param count attributes that were skipped because they could not be parsed
+     */
+    void addSkipped(long count) {
+        skippedAttributes += count;
+    }
+
+    /**
+     * @param lag     how late the cycle started relative to its slot (ms)
+     * @param skipped cycles skipped since the previous one
+     */
+    void scheduled(long lag, int skipped) {
+        schedulerLag = lag;
+        skippedCycles = skipped;
+    }
+
+    /**
+     * Count a finished cycle dropped before the Runner collected it.
+     */
+    void cycleDropped() {
+        droppedCycles++;
+    }
+
+    /**
+     * @param t an error that cost the agent data
+     */
+    void error(Throwable t) {
+        errors.computeIfAbsent(t.getClass().getSimpleName(), k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if the JVM cannot tell
+     */
+    static long currentThreadAllocated() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Publish everything recorded since the last call, and start again.
+     *
+     * @param agent      the agent to report through
+     * @param cycleNanos how long the poll cycle took
+     * @param allocated  bytes allocated by the polling thread during the cycle, or a negative number if not known;
+     *                   what other threads allocated, see {@link #addAllocated}, is added to it
+     */
+    void publish(Agent agent, long cycleNanos, long allocated) {
+        long reported = metricsReported;
+        long suppressed = metricsSuppressed;
+
+        for (Group group : groups) {
+            agent.reportMetric(group.metricName, "milliseconds", groupNanos[group.ordinal()] / NANOS_PER_MILLI);
+        }
+        Arrays.fill(groupNanos, 0);
+        agent.reportMetric(PREFIX + "/Cycle/Total", "milliseconds", cycleNanos / NANOS_PER_MILLI);
+        if (allocated >= 0) {
+            agent.reportMetric(PREFIX + "/Cycle/Allocated", "bytes", allocated + collectorAllocated);
+        }
+        collectorAllocated = 0;
+
+        long requests = traffic.getRequests();
+        long bytesSent = traffic.getBytesSent();
+        long bytesReceived = traffic.getBytesReceived();
+        agent.reportMetric(PREFIX + "/LDAP/Requests", "requests", requests - lastRequests);
+        agent.reportMetric(PREFIX + "/LDAP/BytesSent", "bytes", bytesSent - lastBytesSent);
+        agent.reportMetric(PREFIX + "/LDAP/BytesReceived", "bytes", bytesReceived - lastBytesReceived);
+        lastRequests = requests;
+        lastBytesSent = bytesSent;
+        lastBytesReceived = bytesReceived;
+
+        if (null != tls) {
+            publishTls(agent);
+        }
+
+        agent.reportMetric(PREFIX + "/Metrics/Reported", "metrics", reported);
+        agent.reportMetric(PREFIX + "/Metrics/Suppressed", "metrics", suppressed);
+        agent.reportMetric(PREFIX + "/Metrics/SkippedAttributes", "attributes", skippedAttributes);
+        metricsReported = 0;
+        metricsSuppressed = 0;
+        skippedAttributes = 0;
+
+        // Keep reporting zero for an error type once seen, so the chart drops back down.
+        for (Map.Entry<String, AtomicLong> e : new TreeMap<>(errors).entrySet()) {
+            agent.reportMetric(PREFIX + "/Errors/" + e.getKey(), "errors", e.getValue().getAndSet(0));
+        }
+
+        if (schedulerLag >= 0) {
+            agent.reportMetric(PREFIX + "/Scheduler/Lag", "milliseconds", schedulerLag);
+            agent.reportMetric(PREFIX + "/Scheduler/SkippedCycles", "cycles", skippedCycles);
+            agent.reportMetric(PREFIX + "/Scheduler/DroppedCycles", "cycles", droppedCycles);
+            droppedCycles = 0;
+        }
+
+        publishJvm(agent);
+    }
+
+    private void publishTls(Agent agent) {
+        long handshakes = tls.getHandshakes();
+        long resumed = tls.getResumedHandshakes();
+        long nanos = tls.getHandshakeNanos();
+        long count = handshakes - lastHandshakes;
+        agent.reportMetric(PREFIX + "/TLS/Handshakes", "handshakes", count);
+        agent.reportMetric(PREFIX + "/TLS/Resumed", "handshakes", resumed - lastResumedHandshakes);
+        if (count > 0) {
+            agent.reportMetric(PREFIX + "/TLS/HandshakeTime", "milliseconds",
+                    (nanos - lastHandshakeNanos) / NANOS_PER_MILLI / count);
+        }
+        lastHandshakes = handshakes;
+        lastResumedHandshakes = resumed;
+        lastHandshakeNanos = nanos;
+    }
+
+    private void publishJvm(Agent agent) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        agent.reportMetric(PREFIX + "/JVM/HeapUsed", "bytes", heap.getUsed());
+        agent.reportMetric(PREFIX + "/JVM/HeapCommitted", "bytes", heap.getCommitted());
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        long total = 0;
+        for (long allocated : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        long now = System.nanoTime();
+        // The total only covers live threads, so it can go down when a thread exits; skip that interval.
+        if (lastJvmAllocated >= 0 && total >= lastJvmAllocated && now > lastJvmSampled) {
+            agent.reportMetric(PREFIX + "/JVM/AllocationRate", "bytes/sec",
+                    (total - lastJvmAllocated) * (double) TimeUnit.SECONDS.toNanos(1) / (now - lastJvmSampled));
+        }
+        lastJvmAllocated = total;
+        lastJvmSampled = now;
+    }
+}
@@ -0,0 +1,383 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.Numbers;
+import com.newrelic.metrics.publish.util.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Turns the attributes of one backend monitor entry into metric samples.
+ * <p>
+ * There are multiple DB files, each with a set of metrics.  The attributes on the monitor entry look
+ * something like:
+ * <pre>
+ *    dbfilename-15: userRoot/givenName.db
+ *    dbfilecachehit-15: 825858
+ *    ...
+ * </pre>
+ * Working out the metric name for each attribute means splitting and matching the attribute ID and
+ * looking up the file it belongs to, so the result is worked out once per attribute ID and reused
+ * until the set of dbfilename-N values on the entry changes.  After that a cycle is one hash lookup
+ * and one number parse per attribute.
+ */
+class BackendEntryParser {
+    private static final Logger log = Logger.getLogger(BackendEntryParser.class);
+
+    private static final Pattern NUMBERED_ATTR = Pattern.compile(".*-[0-9]+$");
+
+    private final String prefix;
+    private final String backendMonitorDn;
+    private final String backendName;
+    private final MetricLabels labels;
+    private final Map<String, MetricSpec> counters;
+    private final Map<String, MetricSpec> gauges;
+    private final boolean verify;
+
+    private Map<String, Binding> bindings = null;
+    private int metricCount = 0;
+    private int dbFileCount = 0;
+
+    /**
+     * @param prefix           the metric name prefix, eg Backend
+     * @param backendMonitorDn the DN of the backend monitor entry
+     * @param counters         the backend counter specs, keyed by lower case attribute name
+     * @param gauges           the backend gauge specs, keyed by lower case attribute name
+     * @param verify           also run the reference implementation and log any difference
+     */
+    BackendEntryParser(String prefix, String backendMonitorDn, Map<String, MetricSpec> counters,
+                       Map<String, MetricSpec> gauges, boolean verify) {
+        this.prefix = prefix;
+        this.backendMonitorDn = backendMonitorDn;
+        this.backendName = backendName(backendMonitorDn);
+        this.labels = MetricLabels.of(MetricLabels.BACKEND, backendName);
+        this.counters = counters;
+        this.gauges = gauges;
+        this.verify = verify;
+    }
+
+    /**
+     * @return the labels of the backend's metrics that are not per db file
+     */
+    MetricLabels getLabels() {
+        return labels;
+    }
+
+    /**
+     * Pull the configured counters and gauges off the backend monitor entry.
+     *
+     * @param monitorEntry the attributes of the backend monitor entry
+     * @return the samples, ordered by metric name
+     * @throws NamingException
+     */
+    synchronized List<Sample> parse(Attributes monitorEntry) throws NamingException {
+        List<Sample> ret = null != bindings ? parseCached(monitorEntry) : null;
+        if (null == ret) {
+            bind(monitorEntry);
+            ret = parseCached(monitorEntry);
+        }
+
+        if (verify) {
+            try {
+                List<Sample> expected = parseReference(prefix, backendMonitorDn, monitorEntry, counters, gauges);
+                if (!expected.equals(ret)) {
+                    log.error(String.format("Backend parser mismatch for %s: expected %s but got %s",
+                            backendMonitorDn, expected, ret));
+                }
+            } catch (RuntimeException e) {
+                log.error(e, String.format("Reference backend parser failed for %s", backendMonitorDn));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Parse the entry using the cached bindings.
+     *
+     * @return the samples, or null if the entry no longer matches the cached layout
+     */
+    private List<Sample> parseCached(Attributes monitorEntry) throws NamingException {
+        Sample[] samples = new Sample[metricCount];
+        int dbFilesSeen = 0;
+
+        NamingEnumeration<? extends Attribute> attrs = monitorEntry.getAll();
+        while (attrs.hasMore()) {
+            Attribute attr = attrs.next();
+            Binding binding = bindings.get(attr.getID());
+            if (null == binding) {
+                return null;
+            }
+            if (null != binding.dbFile) {
+                if (!binding.dbFile.equals(attr.get())) {
+                    return null;
+                }
+                dbFilesSeen++;
+            } else if (null != binding.metric) {
+                samples[binding.metric.slot] = new Sample(binding.metric, Numbers.parseLong(attr.get()));
+            }
+        }
+        if (dbFilesSeen != dbFileCount) {
+            return null;
+        }
+
+        List<Sample> ret = new ArrayList<>(metricCount);
+        for (Sample sample : samples) {
+            if (null != sample) {
+                ret.add(sample);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Work out the metric name for every attribute on the entry, the same way parseReference does.
+     */
+    private void bind(Attributes monitorEntry) throws NamingException {
+        Map<String, Attribute> mappedAttrs = mapAttributes(monitorEntry);
+        Map<String, Binding> next = new HashMap<>();
+        List<String> metricAttrs = new ArrayList<>();
+        Map<String, String> names = new HashMap<>();
+        Map<String, String> files = new HashMap<>();
+        int dbFiles = 0;
+
+        for (Map.Entry<String, Attribute> entry : mappedAttrs.entrySet()) {
+            String longName = entry.getKey();
+            String shortName = shortName(longName);
+
+            if (MonitorReader.DBFILENAME_ATTR.equalsIgnoreCase(shortName)) {
+                next.put(longName, Binding.dbFile(entry.getValue().get()));
+                dbFiles++;
+                continue;
+            }
+
+            MetricSpec spec = counters.containsKey(shortName) ? counters.get(shortName) : gauges.get(shortName);
+            if (null == spec) {
+                next.put(longName, Binding.IGNORED);
+                continue;
+            }
+
+            try {
+                String dbFile = dbFile(longName, mappedAttrs);
+                names.put(longName, metricName(backendName, spec, counters.containsKey(shortName), dbFile));
+                if (null != dbFile && spec.metric.contains("%s")) {
+                    files.put(longName, dbFile);
+                }
+                metricAttrs.add(longName);
+            } catch (RuntimeException e) {
+                log.debug(String.format("Ignoring %s on %s, no matching dbfilename", longName, backendMonitorDn));
+                next.put(longName, Binding.IGNORED);
+            }
+        }
+
+        // Slots follow metric name order, so the samples come out sorted without sorting each cycle.
+        metricAttrs.sort(Comparator.comparing(names::get));
+        Map<String, MetricDescriptor> others = new HashMap<>();
+        Map<String, MetricLabels> fileLabels = new HashMap<>();
+        MetricLabels otherLabels = labels.with(MetricLabels.DB_FILE, DbFileRanker.OTHER);
+        for (int slot = 0; slot < metricAttrs.size(); slot++) {
+            String longName = metricAttrs.get(slot);
+            String shortName = shortName(longName);
+            boolean counter = counters.containsKey(shortName);
+            MetricSpec spec = counter ? counters.get(shortName) : gauges.get(shortName);
+            String dbFile = files.get(longName);
+            MetricDescriptor other = null == dbFile ? null : others.computeIfAbsent(shortName,
+                    k -> new MetricDescriptor(shortName, prefix + "/" + metricName(backendName, spec, counter,
+                            DbFileRanker.OTHER), spec.unit, counter, -1, null, otherLabels, null));
+            MetricLabels metricLabels = null == dbFile ? labels
+                    : fileLabels.computeIfAbsent(dbFile, f -> labels.with(MetricLabels.DB_FILE, f));
+            next.put(longName, Binding.metric(new MetricDescriptor(shortName, prefix + "/" + names.get(longName),
+                    spec.unit, counter, slot, dbFile, metricLabels, other)));
+        }
+
+        this.bindings = next;
+        this.metricCount = metricAttrs.size();
+        this.dbFileCount = dbFiles;
+        log.debug(String.format("Bound %d metrics over %d db files for %s", metricCount, dbFileCount, backendMonitorDn));
+    }
+
+    /**
+     * The original, uncached parser, kept as the reference for verify_backend_parser.
+     *
+     * @param prefix           the metric name prefix, eg Backend
+     * @param backendMonitorDn the DN of the backend monitor entry
+     * @param monitorEntry     the attributes of the backend monitor entry
+     * @param counters         the backend counter specs
+     * @param gauges           the backend gauge specs
+     * @return the samples, ordered by metric name
+     * @throws NamingException
+     */
+    static List<Sample> parseReference(String prefix, String backendMonitorDn, Attributes monitorEntry,
+                                       Map<String, MetricSpec> counters,
+                                       Map<String, MetricSpec> gauges) throws NamingException {
+        String backendName = backendName(backendMonitorDn);
+        Map<String, Attribute> mappedAttrs = mapAttributes(monitorEntry);
+
+        List<Sample> ret = new ArrayList<>();
+        for (Map.Entry<String, Attribute> entry : mappedAttrs.entrySet()) {
+            Attribute attr = entry.getValue();
+            String longName = entry.getKey();
+            String shortName = attr.getID().toLowerCase().split("-", 2)[0];
+
+            if (MonitorReader.DBFILENAME_ATTR.equalsIgnoreCase(shortName)) {
+                continue;
+            }
+
+            String currentDbFile = null;
+            if (longName.matches(".*-[0-9]+$")) {
+                String[] parts = longName.split("-", 2);
+                currentDbFile = mappedAttrs.get(MonitorReader.DBFILENAME_ATTR + "-" + parts[1]).get().toString().split("/", 2)[1];
+            }
+
+            if (counters.containsKey(shortName)) {
+                Long val = Long.parseLong(attr.get().toString());
+                MetricSpec spec = counters.get(shortName);
+
+                String calculatedName = backendName + "/" + spec.metric;
+                if (spec.metric.contains("%s")) {
+                    calculatedName = String.format(calculatedName, currentDbFile);
+                }
+
+                ret.add(new Sample(new MetricDescriptor(shortName, prefix + "/" + calculatedName, spec.unit, true, -1), val));
+            } else if (gauges.containsKey(shortName)) {
+                Long val = Long.parseLong(attr.get().toString());
+                MetricSpec spec = gauges.get(shortName);
+
+                String calculatedName = backendName + "/" + spec.metric;
+                if (calculatedName.contains("%s")) {
+                    calculatedName = String.format(calculatedName, currentDbFile);
+                }
+
+                ret.add(new Sample(new MetricDescriptor(shortName, prefix + "/" + calculatedName, spec.unit, false, -1), val));
+            }
+        }
+
+        ret.sort(Comparator.comparing(sample -> sample.metric.name));
+        return ret;
+    }
+
+    static String backendName(String backendMonitorDn) {
+        //this is kind of hackish, but the entry will look something like:
+        // cn=monitor,cn=userRoot,cn=ldbm database,cn=plugins,cn=config
+        //    or
+        // cn=monitor,cn=NetscapeRoot,cn=ldbm database,cn=plugins,cn=config
+        return backendMonitorDn.split(",")[1].split("=", 2)[1];
+    }
+
+    private static Map<String, Attribute> mapAttributes(Attributes monitorEntry) throws NamingException {
+        Map<String, Attribute> mappedAttrs = new HashMap<>();
+        NamingEnumeration<? extends Attribute> attrs = monitorEntry.getAll();
+        while (attrs.hasMore()) {
+            Attribute attr = attrs.next();
+            mappedAttrs.put(attr.getID(), attr);
+        }
+        return mappedAttrs;
+    }
+
+    private static String shortName(String attrId) {
+        int dash = attrId.indexOf('-');
+        return (dash < 0 ? attrId : attrId.substring(0, dash)).toLowerCase();
+    }
+
+    /**
+     * @return the file (eg, givenName.db) a numbered attribute belongs to, or null if it is not numbered
+     */
+    private static String dbFile(String longName, Map<String, Attribute> mappedAttrs) throws NamingException {
+        if (!NUMBERED_ATTR.matcher(longName).matches()) {
+            return null;
+        }
+        String suffix = longName.substring(longName.indexOf('-') + 1);
+        return mappedAttrs.get(MonitorReader.DBFILENAME_ATTR + "-" + suffix).get().toString().split("/", 2)[1];
+    }
+
+    private static String metricName(String backendName, MetricSpec spec, boolean counter, String dbFile) {
+        String calculatedName = backendName + "/" + spec.metric;
+        // Counters only check the spec for %s, gauges check the whole name; keep both as they were.
+        if (counter ? spec.metric.contains("%s") : calculatedName.contains("%s")) {
+            calculatedName = String.format(calculatedName, dbFile);
+        }
+        return calculatedName;
+    }
+
+    /**
+     * What an attribute ID on the entry maps to: a metric, a dbfilename, or nothing.
+     */
+    private static class Binding {
+        static final Binding IGNORED = new Binding(null, null);
+
+        final MetricDescriptor metric;
+        final Object dbFile;
+
+        private Binding(MetricDescriptor metric, Object dbFile) {
+            this.metric = metric;
+            this.dbFile = dbFile;
+        }
+
+        static Binding metric(MetricDescriptor metric) {
+            return new Binding(metric, null);
+        }
+
+        static Binding dbFile(Object value) {
+            return new Binding(null, value);
+        }
+    }
+
+    /**
+     * A single value read off a backend monitor entry, waiting to be reported.
+     */
+    static class Sample {
+        final MetricDescriptor metric;
+        final Long value;
+
+        Sample(MetricDescriptor metric, Long value) {
+            this.metric = metric;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Sample)) {
+                return false;
+            }
+            Sample other = (Sample) o;
+            return metric.name.equals(other.metric.name) && metric.unit.equals(other.metric.unit)
+                    && metric.counter == other.metric.counter && value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(metric.name, metric.unit, metric.counter, value);
+        }
+
+        @Override
+        public String toString() {
+            return metric + "=" + value;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides which metrics are worth sending, to keep the per-cycle upload small on servers with hundreds of
+ * mostly idle db files.
+ * <p>
+ * A metric whose value is the same as the last one sent is held back, unless it has not been sent for
+ * {@code heartbeat} cycles, so every metric is still refreshed at least that often.  Each metric is refreshed in
+ * its own cycle of the heartbeat, picked from its name, so the refreshes are spread out rather than all landing
+ * in the same upload.  With {@code zerosOnly},
+ * only repeated zeros are held back, such as the rates of idle indexes.  This only filters what is sent:
+ * rates are still worked out from every sample.
+ * <p>
+ * Metrics that are not reported in a cycle are forgotten, so they are always sent when they come back.
+ */
+class ChangeSuppressor {
+    private final int heartbeat;
+    private final boolean zerosOnly;
+    private final Map<String, Sent> sent = new HashMap<>();
+    private long cycle = 0;
+
+    /**
+     * @param heartbeat send each metric at least once in this many cycles, however little it changes
+     * @param zerosOnly only hold back values that are zero
+     */
+    ChangeSuppressor(int heartbeat, boolean zerosOnly) {
+        this.heartbeat = Math.max(1, heartbeat);
+        this.zerosOnly = zerosOnly;
+    }
+
+    /**
+     * @param name  the metric name
+     * @param value the value about to be reported
+     * @return false if the value should be held back this cycle
+     */
+    boolean shouldSend(String name, Number value) {
+        if (null == value) {
+            return true;
+        }
+
+        double v = value.doubleValue();
+        Sent last = sent.get(name);
+        if (null == last) {
+            sent.put(name, new Sent(v, cycle));
+            return true;
+        }
+
+        last.seen = cycle;
+        boolean unchanged = Double.compare(v, last.value) == 0 && (!zerosOnly || 0 == v);
+        if (unchanged && 0 != Math.floorMod(cycle + name.hashCode(), heartbeat)) {
+            return false;
+        }
+        last.value = v;
+        return true;
+    }
+
+    /**
+     * Finish a poll cycle, forgetting any metric that was not reported in it.
+     */
+    void endCycle() {
+        sent.values().removeIf(s -> s.seen != cycle);
+        cycle++;
+    }
+
+    private static class Sent {
+        double value;
+        long seen;
+
+        Sent(double value, long cycle) {
+            this.value = value;
+            this.seen = cycle;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.TracingSocketFactory;
+import com.newrelic.metrics.publish.Agent;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+
+/**
+ * Times opening a new connection, broken down into the TCP connect, the TLS handshake (for ldaps) and
+ * the bind.  The connection is closed again straight away.
+ */
+class ConnectProbe extends Probe {
+    /**
+     * Opens a new, bound connection, recording the socket level timings.
+     */
+    interface TracedConnector {
+        DirContext connect(TracingSocketFactory.Trace trace) throws NamingException;
+    }
+
+    private final TracedConnector connector;
+    private final Phase socket;
+    private final Phase tls;
+    private final Phase bind;
+
+    /**
+     * @param name         the probe name, for logging
+     * @param metricPrefix the metric name prefix, eg LDAP/TimedOps/Connect
+     * @param connector    opens the connection
+     */
+    ConnectProbe(String name, String metricPrefix, TracedConnector connector) {
+        super(name, metricPrefix);
+        this.connector = connector;
+        this.socket = new Phase(metricPrefix + "/Socket");
+        this.tls = new Phase(metricPrefix + "/TLS");
+        this.bind = new Phase(metricPrefix + "/Bind");
+    }
+
+    @Override
+    void execute(DirContext unused) throws NamingException {
+        TracingSocketFactory.Trace trace = new TracingSocketFactory.Trace();
+        long start = System.nanoTime();
+        DirContext ctx = connector.connect(trace);
+        long total = System.nanoTime() - start;
+        try {
+            ctx.close();
+        } catch (NamingException e) {
+            // ignore
+        }
+
+        socket.record(trace.getSocketNanos());
+        if (trace.getTlsNanos() > 0) {
+            tls.record(trace.getTlsNanos());
+        }
+        // Whatever is left is the LDAP bind, plus a little JNDI setup.
+        bind.record(total - trace.getSocketNanos() - trace.getTlsNanos());
+    }
+
+    @Override
+    void publish(Agent agent) {
+        super.publish(agent);
+        socket.publish(agent);
+        tls.publish(agent);
+        bind.publish(agent);
+    }
+}
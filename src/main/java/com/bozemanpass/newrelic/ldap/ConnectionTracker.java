@@ -0,0 +1,329 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+package com.bozemanpass.newrelic.ldap;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Works out which clients are driving the traffic, from the connection attribute on cn=monitor.
+ * <p>
+ * There is one value per open connection, eg
+ * <pre>
+ * 64:20261018094001Z:3:2:-:uid=app,ou=people,dc=example,dc=com:0:0:0:1:ip=10.1.1.1
+ * </pre>
+ * that is the fd, the open time, the operations initiated and completed, a blocked flag, the bind DN, a few
+ * counters that vary between versions, and the client address.  Each value is scanned in place; the bind DN
+ * and address are only copied out when a connection is first seen or rebinds, and the per-connection state is
+ * reused from cycle to cycle, so a poll of tens of thousands of connections allocates little.  The operations
+ * each connection started since the previous poll are added up per client address and per bind DN, and the
+ * top clients by operations per second and by open connections are reported on their own, with the rest
+ * together under {@link DbFileRanker#OTHER}.
+ */
+class ConnectionTracker {
+    static final String CONNECTION_ATTR = "connection";
+
+    private static final String ANONYMOUS = "anonymous";
+    private static final String UNKNOWN = "unknown";
+    private static final String IP_FIELD = ":ip=";
+
+    private final String prefix;
+    private final int top;
+    // Keyed by open time and fd, which together are unique over the life of the server.
+    private final Map<Long, Connection> connections = new HashMap<>();
+    private final Map<String, Client> byAddress = new HashMap<>();
+    private final Map<String, Client> byBindDn = new HashMap<>();
+    private final MetricLabels otherAddresses = MetricLabels.of(MetricLabels.CLIENT, DbFileRanker.OTHER);
+    private final MetricLabels otherBindDns = MetricLabels.of(MetricLabels.BIND_DN, DbFileRanker.OTHER);
+    private int cycle = 0;
+    private long lastPoll = -1;
+    private long lastPollEpoch = -1;
+    private long elapsed = 0;
+    private long totalOps = 0;
+
+    /**
+     * @param prefix the metric name prefix, eg LDAP/Clients
+     * @param top    the number of clients to report on their own, by each measure
+     */
+    ConnectionTracker(String prefix, int top) {
+        this.prefix = prefix;
+        this.top = Math.max(0, top);
+    }
+
+    /**
+     * Take in a poll's connection attribute.
+     *
+     * @param attr  the connection attribute, may be null if there are no connections
+     * @param now   when it was read, in milliseconds on a monotonic clock
+     * @param epoch when it was read, in milliseconds since the epoch
+     * @throws NamingException
+     */
+    void update(Attribute attr, long now, long epoch) throws NamingException {
+        cycle++;
+        totalOps = 0;
+        for (Client client : byAddress.values()) {
+            client.reset();
+        }
+        for (Client client : byBindDn.values()) {
+            client.reset();
+        }
+
+        if (null != attr) {
+            NamingEnumeration<?> values = attr.getAll();
+            while (values.hasMore()) {
+                Object value = values.next();
+                update(value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : value.toString());
+            }
+        }
+
+        connections.values().removeIf(c -> c.cycle != cycle);
+        byAddress.values().removeIf(Client::isIdle);
+        byBindDn.values().removeIf(Client::isIdle);
+
+        elapsed = lastPoll >= 0 ? now - lastPoll : 0;
+        lastPoll = now;
+        lastPollEpoch = epoch;
+    }
+
+    private void update(String v) {
+        int fdEnd = v.indexOf(':');
+        int openEnd = fdEnd >= 0 ? v.indexOf(':', fdEnd + 1) : -1;
+        int initiatedEnd = openEnd >= 0 ? v.indexOf(':', openEnd + 1) : -1;
+        int completedEnd = initiatedEnd >= 0 ? v.indexOf(':', initiatedEnd + 1) : -1;
+        int blockedEnd = completedEnd >= 0 ? v.indexOf(':', completedEnd + 1) : -1;
+        if (blockedEnd < 0) {
+            return;
+        }
+        long fd = digits(v, 0, fdEnd);
+        long opened = epochSeconds(v, fdEnd + 1, openEnd);
+        long initiated = digits(v, openEnd + 1, initiatedEnd);
+        if (fd < 0 || opened < 0 || initiated < 0) {
+            return;
+        }
+
+        // The address is last, and may itself contain colons (IPv6).  The bind DN runs up to the numeric
+        // fields in front of it.
+        int ipField = v.lastIndexOf(IP_FIELD);
+        int dnEnd = ipField > blockedEnd ? ipField : v.length();
+        while (true) {
+            int colon = v.lastIndexOf(':', dnEnd - 1);
+            if (colon <= blockedEnd || digits(v, colon + 1, dnEnd) < 0) {
+                break;
+            }
+            dnEnd = colon;
+        }
+
+        Long key = (opened << 20) ^ fd;
+        Connection c = connections.get(key);
+        long ops;
+        if (null == c) {
+            c = new Connection();
+            connections.put(key, c);
+            // A connection opened since the last poll did all of its operations in this interval.
+            ops = lastPollEpoch >= 0 && opened * 1000 >= lastPollEpoch - 1000 ? initiated : 0;
+        } else {
+            ops = Math.max(0, initiated - c.initiated);
+        }
+        c.initiated = initiated;
+        c.cycle = cycle;
+
+        int dnStart = blockedEnd + 1;
+        if (null == c.bindDn || !regionEquals(c.bindDn, v, dnStart, dnEnd)) {
+            c.bindDn = dnEnd > dnStart ? v.substring(dnStart, dnEnd) : ANONYMOUS;
+        }
+        int ipStart = ipField > blockedEnd ? ipField + IP_FIELD.length() : -1;
+        if (null == c.address || (ipStart >= 0 && !regionEquals(c.address, v, ipStart, v.length()))) {
+            c.address = ipStart >= 0 ? v.substring(ipStart) : UNKNOWN;
+        }
+
+        client(byAddress, MetricLabels.CLIENT, c.address).add(ops);
+        client(byBindDn, MetricLabels.BIND_DN, c.bindDn).add(ops);
+        totalOps += ops;
+    }
+
+    private static Client client(Map<String, Client> clients, String label, String name) {
+        Client ret = clients.get(name);
+        if (null == ret) {
+            ret = new Client(label, name);
+            clients.put(name, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Report the totals and the top clients, with each client's address or bind DN as a label for the sinks.
+     *
+     * @param agent the agent to report through
+     */
+    void publish(LdapAgent agent) {
+        agent.reportMetric(prefix + "/Connections", "connections", connections.size());
+        agent.reportMetric(prefix + "/Ops/Rate", "operations/sec", rate(totalOps));
+        agent.reportMetric(prefix + "/Addresses", "clients", byAddress.size());
+        agent.reportMetric(prefix + "/BindDNs", "clients", byBindDn.size());
+        publishTop(agent, prefix + "/ByAddress/", byAddress, otherAddresses);
+        publishTop(agent, prefix + "/ByBindDN/", byBindDn, otherBindDns);
+    }
+
+    private void publishTop(LdapAgent agent, String group, Map<String, Client> clients, MetricLabels otherLabels) {
+        Set<Client> picked = new LinkedHashSet<>();
+        picked.addAll(top(clients.values(), Comparator.comparingLong((Client c) -> c.ops)));
+        picked.addAll(top(clients.values(), Comparator.comparingInt((Client c) -> c.connections)));
+
+        long otherOps = 0;
+        int otherConnections = 0;
+        for (Client client : clients.values()) {
+            if (picked.contains(client)) {
+                String name = group + client.metricName;
+                agent.reportMetric(name + "/Connections", "connections", client.connections, client.labels);
+                agent.reportMetric(name + "/Ops/Rate", "operations/sec", rate(client.ops), client.labels);
+            } else {
+                otherOps += client.ops;
+                otherConnections += client.connections;
+            }
+        }
+        if (picked.size() < clients.size()) {
+            agent.reportMetric(group + DbFileRanker.OTHER + "/Connections", "connections", otherConnections,
+                    otherLabels);
+            agent.reportMetric(group + DbFileRanker.OTHER + "/Ops/Rate", "operations/sec", rate(otherOps),
+                    otherLabels);
+        }
+    }
+
+    /**
+     * @return the top clients by the measure, busiest first, with ties broken by name so the pick is stable
+     */
+    private List<Client> top(Collection<Client> clients, Comparator<Client> measure) {
+        Comparator<Client> order = measure.thenComparing((Client c) -> c.name, Comparator.reverseOrder());
+        PriorityQueue<Client> heap = new PriorityQueue<>(top + 1, order);
+        for (Client client : clients) {
+            heap.add(client);
+            if (heap.size() > top) {
+                heap.poll();
+            }
+        }
+        List<Client> ret = new ArrayList<>(heap);
+        ret.sort(order.reversed());
+        return ret;
+    }
+
+    private Float rate(long ops) {
+        return elapsed > 0 ? (float) (ops * 1000.0 / elapsed) : null;
+    }
+
+    /**
+     * @return the non-negative decimal number in s[start, end), or -1 if it is not one
+     */
+    private static long digits(String s, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        long ret = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            ret = ret * 10 + c - '0';
+        }
+        return ret;
+    }
+
+    /**
+     * @return the generalized time (yyyyMMddHHmmssZ) in s[start, end) as seconds since the epoch, or -1
+     */
+    static long epochSeconds(String s, int start, int end) {
+        if (end - start != 15 || 'Z' != s.charAt(end - 1)) {
+            return -1;
+        }
+        long year = digits(s, start, start + 4);
+        long month = digits(s, start + 4, start + 6);
+        long day = digits(s, start + 6, start + 8);
+        long hour = digits(s, start + 8, start + 10);
+        long minute = digits(s, start + 10, start + 12);
+        long second = digits(s, start + 12, start + 14);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || hour < 0 || minute < 0 || second < 0) {
+            return -1;
+        }
+        // Days from the civil date, counting years from March so the leap day comes last.
+        long y = month <= 2 ? year - 1 : year;
+        long era = y / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097 + dayOfEra - 719468;
+        return days * 86400 + hour * 3600 + minute * 60 + second;
+    }
+
+    private static boolean regionEquals(String value, String s, int start, int end) {
+        return value.length() == end - start && s.regionMatches(start, value, 0, value.length());
+    }
+
+    /**
+     * The last state seen of one open connection.
+     */
+    private static class Connection {
+        long initiated;
+        int cycle;
+        String bindDn;
+        String address;
+    }
+
+    /**
+     * The connections and operations of one client address or bind DN in the latest poll.
+     */
+    private static class Client {
+        final String name;
+        // Slashes would split the metric name.
+        final String metricName;
+        final MetricLabels labels;
+        long ops;
+        int connections;
+
+        /**
+         * @param label the label the sinks carry the client under, client or binddn
+         * @param name  the client address or bind DN
+         */
+        Client(String label, String name) {
+            this.name = name;
+            this.metricName = name.replace('/', '_');
+            this.labels = MetricLabels.of(label, metricName);
+        }
+
+        void add(long ops) {
+            this.ops += ops;
+            connections++;
+        }
+
+        void reset() {
+            ops = 0;
+            connections = 0;
+        }
+
+        boolean isIdle() {
+            return 0 == connections && 0 == ops;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.DaemonThreadFactory;
+import com.newrelic.metrics.publish.Agent;
+import com.newrelic.metrics.publish.util.Logger;
+
+import javax.naming.NamingException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the collection groups of a poll cycle under a deadline, so that one stuck read cannot stall the
+ * whole cycle or take the other groups down with it.
+ * <p>
+ * Each group is collected (read and parsed) on a worker thread while the poll thread waits for at most the
+ * group's own budget, or whatever is left of the cycle's, whichever is less.  A group that overruns is
+ * cancelled, which interrupts its LDAP request so its connection is discarded, and is counted as a timeout
+ * under Agent/Timeouts/&lt;group&gt;.  Groups that finish in time are published on the poll thread as usual.
+ * <p>
+ * The bytes each worker allocates while collecting are added up, see {@link #takeAllocated()}, so the cycle's
+ * allocation is not just the poll thread's.
+ */
+class CycleDeadline {
+    private static final Logger log = Logger.getLogger(CycleDeadline.class);
+
+    /**
+     * Reads and parses a group's metrics.  Runs on a worker thread, and must not report anything itself.
+     */
+    interface Collector {
+        Publisher collect() throws Exception;
+    }
+
+    /**
+     * Reports what a collector gathered.  Runs on the poll thread.
+     */
+    interface Publisher {
+        void publish() throws NamingException;
+    }
+
+    private final long cycleBudget;
+    private final Map<AgentStats.Group, Long> groupBudgets;
+    private final ExecutorService workers = Executors.newCachedThreadPool(new DaemonThreadFactory("ldap-poll"));
+    private final Map<AgentStats.Group, Long> timeouts = new EnumMap<>(AgentStats.Group.class);
+    private final AtomicLong allocated = new AtomicLong();
+    private long deadline = 0;
+
+    /**
+     * @param cycleBudget  the time allowed for the whole cycle (ms)
+     * @param groupBudgets the time allowed for each group (ms); groups not listed only have the cycle's budget
+     */
+    CycleDeadline(long cycleBudget, Map<AgentStats.Group, Long> groupBudgets) {
+        this.cycleBudget = cycleBudget;
+        this.groupBudgets = new EnumMap<>(groupBudgets);
+    }
+
+    /**
+     * Start the clock for a new cycle.
+     */
+    void start() {
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cycleBudget);
+        timeouts.clear();
+    }
+
+    /**
+     * Collect a group within its budget, then publish it.
+     *
+     * @param group     the group
+     * @param collector reads and parses the group
+     * @return true if the group was published, false if it ran out of time
+     * @throws Exception if the collector or publisher failed
+     */
+    boolean run(AgentStats.Group group, Collector collector) throws Exception {
+        timeouts.put(group, 0L);
+        long remaining = deadline - System.nanoTime();
+        Long budget = groupBudgets.get(group);
+        if (null != budget) {
+            remaining = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(budget));
+        }
+        if (remaining <= 0) {
+            log.warn(String.format("No time left in the poll cycle for %s", group.displayName));
+            timeouts.put(group, 1L);
+            return false;
+        }
+
+        Future<Publisher> future = workers.submit(() -> {
+            long start = AgentStats.currentThreadAllocated();
+            try {
+                return collector.collect();
+            } finally {
+                addAllocatedSince(start);
+            }
+        });
+        Publisher publisher;
+        try {
+            publisher = future.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            log.warn(String.format("Gave up on %s after %d ms", group.displayName,
+                    TimeUnit.NANOSECONDS.toMillis(remaining)));
+            timeouts.put(group, 1L);
+            return false;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        publisher.publish();
+        return true;
+    }
+
+    /**
+     * Count what the current thread has allocated, for a collector that hands work on to threads of its own.
+     *
+     * @param start {@link AgentStats#currentThreadAllocated()} when the thread started on the work
+     */
+    void addAllocatedSince(long start) {
+        if (start >= 0) {
+            allocated.addAndGet(AgentStats.currentThreadAllocated() - start);
+        }
+    }
+
+    /**
+     * @return the bytes allocated collecting since the last call.  A group that was given up on is counted
+     * when its worker finally stops.
+     */
+    long takeAllocated() {
+        return allocated.getAndSet(0);
+    }
+
+    /**
+     * Report a timeout count for every group run this cycle.
+     *
+     * @param agent the agent to report through
+     */
+    void publish(Agent agent) {
+        for (Map.Entry<AgentStats.Group, Long> e : timeouts.entrySet()) {
+            agent.reportMetric(AgentStats.PREFIX + "/Timeouts/" + e.getKey().displayName, "timeouts", e.getValue());
+        }
+    }
+
+    /**
+     * Stop the worker threads.
+     */
+    void close() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,141 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import java.util.*;
+
+/**
+ * Picks the busiest db files of one backend to report on their own, so a backend with hundreds of idle
+ * index files does not produce thousands of metric series.  The rest are reported together as
+ * {@link #OTHER}.
+ * <p>
+ * Files are ranked by their activity (the summed rates of the ranking counters, such as page-ins and
+ * cache hits and misses) over a sliding window of poll cycles.  To keep series from flapping, a file only
+ * takes the place of one already picked if it is busier by a clear margin, and a picked file keeps its
+ * place for at least a window's worth of cycles.  Files that disappear from
+ * the monitor entry are forgotten, so memory is bounded by the files that exist.
+ */
+class DbFileRanker {
+    static final String OTHER = "__other__";
+
+    // A file must be this much busier than the quietest picked file to take its place.
+    private static final double MARGIN = 1.25;
+
+    private final int top;
+    private final int window;
+    private final Map<String, Activity> files = new HashMap<>();
+    // The picked files, with the cycle each was picked in.
+    private final Map<String, Integer> picked = new HashMap<>();
+    private int cycle = 0;
+
+    /**
+     * @param top    the number of files to report on their own
+     * @param window the number of poll cycles to rank activity over
+     */
+    DbFileRanker(int top, int window) {
+        this.top = Math.max(0, top);
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Record a poll cycle's activity and update the picked files.
+     *
+     * @param activity the activity of every file on the entry this cycle
+     */
+    void update(Map<String, Double> activity) {
+        int slot = cycle++ % window;
+        files.keySet().retainAll(activity.keySet());
+        picked.keySet().retainAll(activity.keySet());
+        for (Map.Entry<String, Double> e : activity.entrySet()) {
+            files.computeIfAbsent(e.getKey(), k -> new Activity(window)).record(slot, e.getValue());
+        }
+
+        // Busiest first, by name between equals, so the order is the same every cycle.
+        List<String> ranked = new ArrayList<>(files.keySet());
+        ranked.sort(Comparator.comparingDouble((String f) -> -files.get(f).sum).thenComparing(f -> f));
+
+        for (String file : ranked) {
+            if (picked.size() >= top) {
+                break;
+            }
+            picked.putIfAbsent(file, cycle);
+        }
+
+        for (String candidate : ranked) {
+            if (picked.containsKey(candidate)) {
+                continue;
+            }
+            String quietest = quietestReplaceable();
+            if (null == quietest || files.get(candidate).sum <= files.get(quietest).sum * MARGIN) {
+                // Nothing further down the ranking can be busier.
+                break;
+            }
+            picked.remove(quietest);
+            picked.put(candidate, cycle);
+        }
+    }
+
+    /**
+     * @param file the db file
+     * @return true if the file is reported on its own, false if it is rolled into {@link #OTHER}
+     */
+    boolean isPicked(String file) {
+        return picked.containsKey(file);
+    }
+
+    /**
+     * @return the quietest picked file that has kept its place for a full window, or null if there is none
+     */
+    private String quietestReplaceable() {
+        String quietest = null;
+        for (Map.Entry<String, Integer> e : picked.entrySet()) {
+            String file = e.getKey();
+            if (cycle - e.getValue() < window) {
+                continue;
+            }
+            if (null == quietest || files.get(file).sum < files.get(quietest).sum
+                    || (files.get(file).sum == files.get(quietest).sum && file.compareTo(quietest) > 0)) {
+                quietest = file;
+            }
+        }
+        return quietest;
+    }
+
+    /**
+     * A file's activity over the window, kept in a ring with a running sum.
+     */
+    private static class Activity {
+        final double[] values;
+        double sum = 0;
+
+        Activity(int window) {
+            this.values = new double[window];
+        }
+
+        void record(int slot, double value) {
+            sum += value - values[slot];
+            values[slot] = value;
+        }
+    }
+}
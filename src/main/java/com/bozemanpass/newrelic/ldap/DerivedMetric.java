@@ -0,0 +1,249 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.Numbers;
+import com.newrelic.metrics.publish.configuration.ConfigurationException;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import java.util.*;
+
+/**
+ * A metric worked out from two attributes of the same monitor entries, such as a cache hit ratio.
+ * <p>
+ * Both attributes are read in the same poll, so a ratio of two counters compares their changes over exactly
+ * the same interval.  The changes come from the {@link RateEngine}, which also takes care of 32-bit wraps
+ * and server restarts; since both rates are over the same time, their ratio is the ratio of the changes.
+ * <ul>
+ * <li>ratio: the change in a over the change in b since the last poll, times scale (hit ratios, bytes per entry)</li>
+ * <li>difference: a minus b as read (operations in flight)</li>
+ * <li>fraction: a over b as read, times scale</li>
+ * <li>rate: the change in a per second, times scale</li>
+ * </ul>
+ */
+class DerivedMetric {
+
+    enum Type {
+        RATIO, DIFFERENCE, FRACTION, RATE
+    }
+
+    private static final Map<String, Map<String, DerivedMetric>> BUILT_IN = new HashMap<>();
+
+    static {
+        Map<String, DerivedMetric> ldap = new LinkedHashMap<>();
+        builtIn(ldap, "Operations/InFlight", Type.DIFFERENCE, "opsinitiated", "opscompleted", 1, "operations");
+        builtIn(ldap, "Entries/BytesPerEntry", Type.RATIO, "bytessent", "entriesreturned", 1, "bytes");
+        builtIn(ldap, "Requests/Search/EntriesPerSearch", Type.RATIO, "entriesreturned", "searchops", 1, "entries");
+        builtIn(ldap, "Threads/Saturation", Type.FRACTION, "currentconnectionsatmaxthreads", "currentconnections",
+                100, "%");
+        builtIn(ldap, "Threads/MaxThreadsHits/Rate", Type.RATE, "maxthreadsperconnhits", null, 1, "hits/second");
+        BUILT_IN.put("ldap", ldap);
+
+        Map<String, DerivedMetric> ldbm = new LinkedHashMap<>();
+        builtIn(ldbm, "Cache/IntervalHitRatio", Type.RATIO, "nsslapd-db-cache-hit", "nsslapd-db-cache-try", 100, "%");
+        BUILT_IN.put("ldbm", ldbm);
+
+        Map<String, DerivedMetric> backend = new LinkedHashMap<>();
+        builtIn(backend, "Entry Cache/IntervalHitRatio", Type.RATIO, "entrycachehits", "entrycachetries", 100, "%");
+        builtIn(backend, "DN Cache/IntervalHitRatio", Type.RATIO, "dncachehits", "dncachetries", 100, "%");
+        BUILT_IN.put("backendmonitor", backend);
+    }
+
+    final String metric;
+    final Type type;
+    final String a;
+    final String b;
+    final double scale;
+    final String unit;
+
+    DerivedMetric(String metric, Type type, String a, String b, double scale, String unit) {
+        this.metric = metric;
+        this.type = type;
+        this.a = a;
+        this.b = b;
+        this.scale = scale;
+        this.unit = unit;
+    }
+
+    private static void builtIn(Map<String, DerivedMetric> group, String metric, Type type, String a, String b,
+                                double scale, String unit) {
+        group.put(metric, new DerivedMetric(metric, type, a, b, scale, unit));
+    }
+
+    /**
+     * Parse the derived metrics for one group, on top of the built in ones.  A configured metric with the same
+     * name as a built in one replaces it.
+     *
+     * @param section the group's section under derived, eg ldap, used in error messages and to find the built in metrics
+     * @param input   the metrics as a map of name to {"type", "a", "b", "scale", "unit"}, may be null
+     * @param builtIn whether to include the built in metrics
+     * @return the metrics, in name order
+     * @throws ConfigurationException if any metric is malformed
+     */
+    static List<DerivedMetric> parseAll(String section, Map<String, ?> input, boolean builtIn)
+            throws ConfigurationException {
+        Map<String, DerivedMetric> ret = new TreeMap<>();
+        if (builtIn && BUILT_IN.containsKey(section)) {
+            ret.putAll(BUILT_IN.get(section));
+        }
+        if (null == input) {
+            return new ArrayList<>(ret.values());
+        }
+
+        for (Map.Entry<String, ?> entry : input.entrySet()) {
+            String name = entry.getKey();
+            if (!(entry.getValue() instanceof Map)) {
+                throw new ConfigurationException(String.format(
+                        "Invalid derived metric derived.%s.%s: expected an object but found %s", section, name,
+                        entry.getValue()));
+            }
+            Map<String, ?> spec = (Map<String, ?>) entry.getValue();
+
+            Type type;
+            try {
+                type = Type.valueOf(String.valueOf(spec.get("type")).toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException(String.format(
+                        "Derived metric derived.%s.%s has unknown type \"%s\" (expected \"ratio\", \"difference\", "
+                                + "\"fraction\" or \"rate\")", section, name, spec.get("type")));
+            }
+            String a = attribute(spec, "a");
+            String b = attribute(spec, "b");
+            if (null == a || (null == b && Type.RATE != type)) {
+                throw new ConfigurationException(String.format(
+                        "Derived metric derived.%s.%s needs the attributes a and b", section, name));
+            }
+            Number scale = (Number) spec.get("scale");
+            Object unit = spec.get("unit");
+            ret.put(name, new DerivedMetric(name, type, a, b, null != scale ? scale.doubleValue() : 1,
+                    null != unit ? unit.toString() : "value"));
+        }
+        return new ArrayList<>(ret.values());
+    }
+
+    private static String attribute(Map<String, ?> spec, String key) {
+        Object value = spec.get(key);
+        return null != value && !value.toString().trim().isEmpty() ? value.toString().trim().toLowerCase() : null;
+    }
+
+    /**
+     * @return the attributes the metrics are worked out from, to add to what is read
+     */
+    static Set<String> attributes(Collection<DerivedMetric> metrics) {
+        Set<String> ret = new LinkedHashSet<>();
+        for (DerivedMetric m : metrics) {
+            ret.add(m.a);
+            if (null != m.b) {
+                ret.add(m.b);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param prefix the metric name prefix, eg LDAP or Backend/userRoot
+     * @return the metric, named and ready to be evaluated
+     */
+    Bound bind(String prefix) {
+        return new Bound(this, prefix + "/" + metric);
+    }
+
+    /**
+     * @param prefix  the metric name prefix
+     * @param metrics the metrics
+     * @return all of the metrics, bound to the prefix
+     */
+    static List<Bound> bindAll(String prefix, List<DerivedMetric> metrics) {
+        List<Bound> ret = new ArrayList<>(metrics.size());
+        for (DerivedMetric m : metrics) {
+            ret.add(m.bind(prefix));
+        }
+        return ret;
+    }
+
+    /**
+     * A derived metric with its full name, and the rate engine handles for its attributes.
+     */
+    static class Bound {
+        final DerivedMetric spec;
+        final String name;
+        private final RateEngine.Handle rateA;
+        private final RateEngine.Handle rateB;
+
+        private Bound(DerivedMetric spec, String name) {
+            this.spec = spec;
+            this.name = name;
+            this.rateA = new RateEngine.Handle(name + "/a");
+            this.rateB = new RateEngine.Handle(name + "/b");
+        }
+
+        /**
+         * Work out the metric from this poll's monitor entries.
+         *
+         * @param rates   the rate engine
+         * @param now     when the entries were read, in milliseconds on a monotonic clock
+         * @param entries the entries to look for the attributes on, in order
+         * @return the value, or null if there is none this poll
+         * @throws NamingException
+         */
+        Number evaluate(RateEngine rates, long now, Attributes... entries) throws NamingException {
+            Long a = value(spec.a, entries);
+            Long b = null != spec.b ? value(spec.b, entries) : null;
+            switch (spec.type) {
+                case RATIO:
+                    Float rateA = null != a ? rates.process(this.rateA, a, now) : null;
+                    Float rateB = null != b ? rates.process(this.rateB, b, now) : null;
+                    // The rates are floats, so keep the ratio to the same precision.
+                    if (null == rateA || null == rateB || rateB <= 0) {
+                        return null;
+                    }
+                    return (float) (rateA / (double) rateB * spec.scale);
+                case DIFFERENCE:
+                    return null != a && null != b ? (Number) (a - b) : null;
+                case FRACTION:
+                    return null != a && null != b && 0 != b ? (Number) (a * spec.scale / b) : null;
+                case RATE:
+                    Float rate = null != a ? rates.process(this.rateA, a, now) : null;
+                    return null != rate ? (Number) (float) (rate * spec.scale) : null;
+                default:
+                    return null;
+            }
+        }
+
+        private static Long value(String attr, Attributes... entries) throws NamingException {
+            for (Attributes entry : entries) {
+                Attribute value = null != entry ? entry.get(attr) : null;
+                if (null != value && null != value.get()) {
+                    try {
+                        return Numbers.parseLong(value.get());
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
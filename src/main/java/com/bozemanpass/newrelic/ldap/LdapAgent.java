@@ -23,41 +23,91 @@
 
 package com.bozemanpass.newrelic.ldap;
 
+import com.bozemanpass.newrelic.ldap.util.DaemonThreadFactory;
+import com.bozemanpass.newrelic.ldap.util.MetricSpool;
+import com.bozemanpass.newrelic.ldap.util.TlsContext;
+import com.bozemanpass.newrelic.ldap.util.TracingSocketFactory;
 import com.newrelic.metrics.publish.Agent;
 import com.newrelic.metrics.publish.configuration.ConfigurationException;
-import com.newrelic.metrics.publish.processors.EpochProcessor;
-import com.newrelic.metrics.publish.processors.Processor;
 import com.newrelic.metrics.publish.util.Logger;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 import javax.naming.Context;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.*;
+import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.StartTlsRequest;
+import javax.naming.ldap.StartTlsResponse;
+import javax.net.SocketFactory;
+import java.security.KeyStore;
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class LdapAgent extends Agent {
     private static final Logger log = Logger.getLogger(LdapAgent.class);
 
     private static final int DEFAULT_TIMEOUT = 10000;
+    private static final long DEFAULT_POOL_MAX_IDLE = 300000;
+    private static final long DEFAULT_POOL_MAX_AGE = 3600000;
+    private static final long DEFAULT_POOL_VALIDATE_AFTER = 120000;
+    private static final long DEFAULT_POOL_BACKOFF_MIN = 1000;
+    private static final long DEFAULT_POOL_BACKOFF_MAX = 300000;
+    private static final long DEFAULT_BACKEND_CACHE_TTL = 300000;
+    private static final int DEFAULT_BACKEND_CONCURRENCY = 1;
+    private static final int DEFAULT_RATE_EVICT_AFTER = 10;
+    private static final long DEFAULT_SAMPLING_INTERVAL = 5000;
+    private static final long PUBLISH_INTERVAL = 60000;
+    private static final long DEFAULT_PROBE_INTERVAL = 10000;
+    private static final int DEFAULT_LOAD_CONCURRENCY = 4;
+    private static final long DEFAULT_LOAD_DURATION = 5000;
+    private static final long DEFAULT_LOAD_INTERVAL = 900000;
+    private static final long DEFAULT_CYCLE_DEADLINE = 50000;
+    private static final long DEFAULT_MAIN_BUDGET = 15000;
+    private static final long DEFAULT_DATABASE_BUDGET = 15000;
+    private static final long DEFAULT_BACKEND_BUDGET = 30000;
+    private static final long DEFAULT_REPLICATION_BUDGET = 15000;
+    private static final int DEFAULT_SUPPRESSION_HEARTBEAT = 10;
+    private static final long DEFAULT_SPOOL_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_ACCESS_LOG_INTERVAL = 1000;
+    private static final int DEFAULT_DBFILE_TOP = 10;
+    private static final int DEFAULT_CONNECTIONS_TOP = 10;
+    private static final int DEFAULT_DBFILE_WINDOW = 10;
+    private static final List<String> DEFAULT_DBFILE_RANK_BY =
+            Arrays.asList("dbfilepagein", "dbfilecachehit", "dbfilecachemiss");
+
+    /**
+     * The cn=snmp,cn=monitor counters from the RFC 2788 operations table, which are Counter32 and were
+     * kept as 32 bit values by older servers; everything else is 64 bits wide.
+     */
+    private static final Set<String> SNMP_COUNTER32_ATTRS = new HashSet<>(Arrays.asList(
+            "anonymousbinds", "unauthbinds", "simpleauthbinds", "strongauthbinds", "bindsecurityerrors",
+            "inops", "readops", "compareops", "addentryops", "removeentryops", "modifyentryops", "modifyrdnops",
+            "listops", "searchops", "onelevelsearchops", "wholesubtreesearchops", "referrals", "chainings",
+            "securityerrors", "errors"));
+
+    private static final boolean DISABLE_HOSTNAME_VERIFICATION =
+            Boolean.getBoolean("com.sun.jndi.ldap.object.disableEndpointIdentification");
 
     private static final String GUID = "com.bozemanpass.newrelic.ldap";
     private static final String VERSION = "1.0.3";
 
-    private static final String MONITOR_DN = "cn=monitor";
-    private static final String SNMP_DN = "cn=snmp,cn=monitor";
-    private static final String DB_MONITOR_DN = "cn=database,cn=monitor,cn=ldbm database,cn=plugins,cn=config";
-    private static final String BACKENDMONITOR_ATTR = "backendmonitordn";
-    private static final String DBFILENAME_ATTR = "dbfilename";
-    private static final String READWAITERS_ATTR = "readwaiters";
     private static final String BASIC_COUNTER_PREFIX = "LDAP";
     private static final String LDBM_PREFIX = "Database";
+    private static final String CLIENTS_PREFIX = BASIC_COUNTER_PREFIX + "/Clients";
     private static final String BACKEND_COUNTER_PREFIX = "Backend";
+    private static final String REPLICATION_PREFIX = "Replication";
     private static final String TIMEDOPS_PREFIX = "LDAP/TimedOps";
-    private static final String COUNT_SUFFIX = "Count";
-    private static final String RATE_SUFFIX = "Rate";
+    private static final String SEARCH_PROBE_PREFIX = TIMEDOPS_PREFIX + "/Search";
+    private static final String MODIFY_PROBE_PREFIX = TIMEDOPS_PREFIX + "/Modify";
+    private static final String CONNECT_PROBE_PREFIX = TIMEDOPS_PREFIX + "/Connect";
+    private static final String LOAD_PROBE_PREFIX = TIMEDOPS_PREFIX + "/Load";
+    private static final String ACCESS_LOG_PREFIX = "LDAP/AccessLog";
 
     private final String agentName;
     private final String host;
@@ -67,29 +117,69 @@ public class LdapAgent extends Agent {
     private final boolean anonymousBind;
     private final boolean trustAnySSL;
     private final boolean useSSL;
+    private final boolean startTls;
+    private final boolean bindExternal;
+    private final TlsContext tls;
     private final int timeout;
     private final Map<String, Object> config;
-    private final Map<String, LdapMetric> ldapCounters;
-    private final Map<String, LdapMetric> ldapGauges;
-    private final Map<String, LdapMetric> ldbmCounters;
-    private final Map<String, LdapMetric> ldbmGauges;
-    private final Map<String, LdapMetric> backendCounters;
-    private final Map<String, LdapMetric> backendGauges;
-    private final Map<String, Processor> processors = new HashMap<>();
-    private final Map<String, Processor> backendProcessors = new HashMap<>();
-    private final Map<String, Processor> ldbmProcessors = new HashMap<>();
-
-    private String searchbase = null;
-    private String searchscope = null;
-    private String searchfilter = null;
-    private String modifydn = null;
-    private String modifyattr = null;
+    private final MetricTable ldapMetrics;
+    private final MetricTable ldbmMetrics;
+    private final Map<String, MetricSpec> backendCounters;
+    private final Map<String, MetricSpec> backendGauges;
+    private final RateEngine rates;
+    private final Sampler sampler;
+    private final LdapConnectionPool.Connector connector;
+    private final LdapConnectionPool pool;
+    private final MonitorReader reader;
+    private final ExecutorService backendExecutor;
+    private final Map<String, BackendEntryParser> backendParsers = new ConcurrentHashMap<>();
+    private final boolean verifyBackendParser;
+    private final int dbFileTop;
+    private final int dbFileWindow;
+    private final Set<String> dbFileRankBy;
+    private final Map<String, DbFileRanker> dbFileRankers = new HashMap<>();
+    private final ReplicationReader replication;
+    private final ConnectionTracker connectionTracker;
+    private final List<DerivedMetric.Bound> ldapDerived;
+    private final List<DerivedMetric.Bound> ldbmDerived;
+    private final List<DerivedMetric> backendDerived;
+    private final Map<String, List<DerivedMetric.Bound>> backendDerivedBound = new HashMap<>();
+
+    private final ProbeScheduler probes;
+    private final LoadProbe loadProbe;
+    private final AccessLogTailer accessLog;
+
+    private final AgentStats stats = new AgentStats();
+    private final boolean agentMetrics;
+    private final CycleDeadline deadline;
+    private final ChangeSuppressor suppressor;
+    private final MetricSpool spool;
+    private long spoolTimestamp = 0;
+
+    private AgentScheduler scheduler = null;
+    private List<MetricSink> sinks = Collections.emptyList();
+    private boolean newRelic = true;
+    private List<ReportedMetric> capture = null;
+    // Finished cycles the Runner has not collected yet, oldest first; guarded by itself.
+    private final Deque<List<ReportedMetric>> completed = new ArrayDeque<>();
+    private int maxCompleted = 2;
 
 
     public LdapAgent(Map<String, Object> config) throws ConfigurationException {
+        this(config, null);
+    }
+
+    /**
+     * @param config    the agent configuration
+     * @param connector opens the connections used for polling, or null to connect to the configured server
+     * @throws ConfigurationException
+     */
+    LdapAgent(Map<String, Object> config, LdapConnectionPool.Connector connector) throws ConfigurationException {
         super(GUID, VERSION);
 
         try {
+            this.connector = null != connector ? connector : this::connect;
+
             this.config = Collections.unmodifiableMap(config);
 
             String s = (String) config.get("host");
@@ -104,7 +194,12 @@ public class LdapAgent extends Agent {
             s = (String) config.get("bindpw");
             this.bindpw = !isNullOrEmpty(s) ? s : null;
 
-            this.anonymousBind = isNullOrEmpty(binddn) || isNullOrEmpty(bindpw);
+            JSONObject jo = (JSONObject) config.get("tls");
+            Map<String, Object> tlsConfig = null != jo ? jo : Collections.<String, Object>emptyMap();
+            Boolean b = (Boolean) tlsConfig.get("bind_external");
+            this.bindExternal = null != b ? b : false;
+
+            this.anonymousBind = !bindExternal && (isNullOrEmpty(binddn) || isNullOrEmpty(bindpw));
 
             Long i = (Long) config.get("port");
             this.port = null != i ? i.intValue() : 389;
@@ -112,62 +207,255 @@ public class LdapAgent extends Agent {
             i = (Long) config.get("timeout");
             timeout = null != i ? i.intValue() : DEFAULT_TIMEOUT;
 
-            Boolean b = (Boolean) config.get("trust_any_ssl");
+            b = (Boolean) config.get("trust_any_ssl");
             trustAnySSL = null != b ? b : false;
 
             b = (Boolean) config.get("use_ssl");
             useSSL = null != b ? b : 636 == this.port;
 
-            JSONObject jo = (JSONObject) config.get("ldap");
-            this.ldapCounters = Collections.unmodifiableMap(parseMetricSpecs((Map<String, String>) jo.get("counters")));
-            this.ldapGauges = Collections.unmodifiableMap(parseMetricSpecs((Map<String, String>) jo.get("gauges")));
+            b = (Boolean) config.get("start_tls");
+            startTls = !useSSL && null != b && b;
 
-            for (String key : ldapCounters.keySet()) {
-                processors.put(key, new EpochProcessor());
+            if (useSSL || startTls) {
+                this.tls = createTlsContext(tlsConfig);
+                stats.setTls(tls);
+            } else if (bindExternal) {
+                throw new ConfigurationException("tls.bind_external needs use_ssl or start_tls");
+            } else {
+                this.tls = null;
             }
 
+            jo = (JSONObject) config.get("ldap");
+            this.ldapMetrics = MetricTable.compile(BASIC_COUNTER_PREFIX,
+                    MetricSpec.parseAll("ldap.counters", null != jo ? (Map<String, ?>) jo.get("counters") : null),
+                    MetricSpec.parseAll("ldap.gauges", null != jo ? (Map<String, ?>) jo.get("gauges") : null),
+                    SNMP_COUNTER32_ATTRS);
+
             jo = (JSONObject) config.get("backendmonitor");
-            if (null != jo) {
-                this.backendCounters = Collections.unmodifiableMap(parseMetricSpecs((Map<String, String>) jo.get("counters")));
-                this.backendGauges = Collections.unmodifiableMap(parseMetricSpecs((Map<String, String>) jo.get("gauges")));
+            this.backendCounters = MetricSpec.parseAll("backendmonitor.counters",
+                    null != jo ? (Map<String, ?>) jo.get("counters") : null);
+            this.backendGauges = MetricSpec.parseAll("backendmonitor.gauges",
+                    null != jo ? (Map<String, ?>) jo.get("gauges") : null);
+
+            jo = (JSONObject) config.get("ldbm");
+            this.ldbmMetrics = MetricTable.compile(LDBM_PREFIX,
+                    MetricSpec.parseAll("ldbm.counters", null != jo ? (Map<String, ?>) jo.get("counters") : null),
+                    MetricSpec.parseAll("ldbm.gauges", null != jo ? (Map<String, ?>) jo.get("gauges") : null));
+
+            i = (Long) config.get("rate_evict_after");
+            this.rates = new RateEngine(null != i ? i.intValue() : DEFAULT_RATE_EVICT_AFTER);
+
+            i = (Long) config.get("backend_cache_ttl");
+            long backendCacheTtl = null != i ? i : DEFAULT_BACKEND_CACHE_TTL;
+
+            jo = (JSONObject) config.get("derived");
+            Map<String, Object> derivedConfig = null != jo ? jo : Collections.<String, Object>emptyMap();
+            b = (Boolean) derivedConfig.get("builtin");
+            boolean builtIn = null != b ? b : true;
+            List<DerivedMetric> derived = DerivedMetric.parseAll("ldap",
+                    (Map<String, ?>) derivedConfig.get("ldap"), builtIn);
+            this.ldapDerived = DerivedMetric.bindAll(BASIC_COUNTER_PREFIX, derived);
+            Set<String> mainKeys = new LinkedHashSet<>(ldapMetrics.attributes());
+            mainKeys.addAll(DerivedMetric.attributes(derived));
+
+            jo = (JSONObject) config.get("connections");
+            b = null != jo ? (Boolean) jo.get("enabled") : null;
+            if (null != b && b) {
+                i = (Long) jo.get("top");
+                this.connectionTracker = new ConnectionTracker(CLIENTS_PREFIX,
+                        null != i ? i.intValue() : DEFAULT_CONNECTIONS_TOP);
+                mainKeys.add(ConnectionTracker.CONNECTION_ATTR);
             } else {
-                this.backendGauges = Collections.emptyMap();
-                this.backendCounters = Collections.emptyMap();
+                this.connectionTracker = null;
             }
 
-            jo = (JSONObject) config.get("ldbm");
-            if (null != jo) {
-                this.ldbmCounters = Collections.unmodifiableMap(parseMetricSpecs((Map<String, String>) jo.get("counters")));
-                this.ldbmGauges = Collections.unmodifiableMap(parseMetricSpecs((Map<String, String>) jo.get("gauges")));
+            derived = DerivedMetric.parseAll("ldbm", (Map<String, ?>) derivedConfig.get("ldbm"), builtIn);
+            this.ldbmDerived = DerivedMetric.bindAll(LDBM_PREFIX, derived);
+            Set<String> ldbmKeys = new LinkedHashSet<>(ldbmMetrics.attributes());
+            ldbmKeys.addAll(DerivedMetric.attributes(derived));
+
+            this.backendDerived = DerivedMetric.parseAll("backendmonitor",
+                    (Map<String, ?>) derivedConfig.get("backendmonitor"), builtIn);
+            Set<String> backendKeys = new LinkedHashSet<>(backendCounters.keySet());
+            backendKeys.addAll(backendGauges.keySet());
+            backendKeys.addAll(DerivedMetric.attributes(backendDerived));
+            this.reader = new MonitorReader(mainKeys, ldbmKeys, backendKeys, backendCacheTtl, timeout);
+
+            jo = (JSONObject) config.get("replication");
+            b = null != jo ? (Boolean) jo.get("enabled") : null;
+            this.replication = null != b && b
+                    ? new ReplicationReader(REPLICATION_PREFIX, backendCacheTtl, timeout)
+                    : null;
+
+            b = (Boolean) config.get("agent_metrics");
+            this.agentMetrics = null != b ? b : true;
+
+            jo = (JSONObject) config.get("suppression");
+            b = null != jo ? (Boolean) jo.get("enabled") : null;
+            if (null != b && b) {
+                i = (Long) jo.get("heartbeat");
+                int heartbeat = null != i ? i.intValue() : DEFAULT_SUPPRESSION_HEARTBEAT;
+                b = (Boolean) jo.get("zeros_only");
+                this.suppressor = new ChangeSuppressor(heartbeat, null != b ? b : false);
+            } else {
+                this.suppressor = null;
+            }
+
+            jo = (JSONObject) config.get("deadline");
+            Map<String, Object> deadlineConfig = null != jo ? jo : Collections.<String, Object>emptyMap();
+            i = (Long) deadlineConfig.get("cycle");
+            long cycleDeadline = null != i ? i : DEFAULT_CYCLE_DEADLINE;
+            Map<AgentStats.Group, Long> budgets = new EnumMap<>(AgentStats.Group.class);
+            i = (Long) deadlineConfig.get("main");
+            budgets.put(AgentStats.Group.MAIN, null != i ? i : DEFAULT_MAIN_BUDGET);
+            i = (Long) deadlineConfig.get("database");
+            budgets.put(AgentStats.Group.DATABASE, null != i ? i : DEFAULT_DATABASE_BUDGET);
+            i = (Long) deadlineConfig.get("backend");
+            budgets.put(AgentStats.Group.BACKEND, null != i ? i : DEFAULT_BACKEND_BUDGET);
+            i = (Long) deadlineConfig.get("replication");
+            budgets.put(AgentStats.Group.REPLICATION, null != i ? i : DEFAULT_REPLICATION_BUDGET);
+            this.deadline = new CycleDeadline(cycleDeadline, budgets);
+            Runtime.getRuntime().addShutdownHook(new Thread(deadline::close));
+
+            b = (Boolean) config.get("verify_backend_parser");
+            this.verifyBackendParser = null != b ? b : false;
+
+            jo = (JSONObject) config.get("spool");
+            b = null != jo ? (Boolean) jo.get("enabled") : null;
+            if (null != b && b) {
+                s = (String) jo.get("path");
+                String path = !isNullOrEmpty(s) ? s : "spool/" + fileName(agentName) + ".spool";
+                i = (Long) jo.get("size");
+                this.spool = new MetricSpool(new File(path), null != i ? i : DEFAULT_SPOOL_SIZE);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        spool.close();
+                    } catch (IOException e) {
+                        log.error(e, "Error closing the metric spool");
+                    }
+                }));
+            } else {
+                this.spool = null;
+            }
+
+            jo = (JSONObject) config.get("dbfile_limit");
+            b = null != jo ? (Boolean) jo.get("enabled") : null;
+            if (null != b && b) {
+                i = (Long) jo.get("top");
+                this.dbFileTop = null != i ? Math.max(0, i.intValue()) : DEFAULT_DBFILE_TOP;
+                i = (Long) jo.get("window");
+                this.dbFileWindow = null != i ? Math.max(1, i.intValue()) : DEFAULT_DBFILE_WINDOW;
+                JSONArray ja = (JSONArray) jo.get("rank_by");
+                this.dbFileRankBy = new HashSet<>();
+                for (Object attr : null != ja ? ja : DEFAULT_DBFILE_RANK_BY) {
+                    this.dbFileRankBy.add(attr.toString().toLowerCase());
+                }
             } else {
-                this.ldbmCounters = Collections.emptyMap();
-                this.ldbmGauges = Collections.emptyMap();
+                this.dbFileTop = -1;
+                this.dbFileWindow = 0;
+                this.dbFileRankBy = Collections.emptySet();
             }
 
-            for (String key : ldbmCounters.keySet()) {
-                ldbmProcessors.put(key, new EpochProcessor());
+            i = (Long) config.get("backend_concurrency");
+            int backendConcurrency = null != i ? Math.max(1, i.intValue()) : DEFAULT_BACKEND_CONCURRENCY;
+            this.backendExecutor = backendConcurrency > 1
+                    ? Executors.newFixedThreadPool(backendConcurrency, new DaemonThreadFactory("ldap-backend"))
+                    : null;
+
+            jo = (JSONObject) config.get("connection_pool");
+            Map<String, Object> poolConfig = null != jo ? jo : Collections.<String, Object>emptyMap();
+            b = (Boolean) poolConfig.get("enabled");
+            boolean pooled = null != b ? b : true;
+            i = (Long) poolConfig.get("size");
+            // Keep at least one connection for the poll itself, plus one for each concurrent backend reader.
+            int poolSize = Math.max(null != i ? i.intValue() : 1, backendConcurrency + 1);
+            i = (Long) poolConfig.get("max_idle");
+            long maxIdle = null != i ? i : DEFAULT_POOL_MAX_IDLE;
+            i = (Long) poolConfig.get("max_age");
+            long maxAge = null != i ? i : DEFAULT_POOL_MAX_AGE;
+            i = (Long) poolConfig.get("validate_after");
+            long validateAfter = null != i ? i : DEFAULT_POOL_VALIDATE_AFTER;
+            i = (Long) poolConfig.get("backoff_min");
+            long backoffMin = null != i ? i : DEFAULT_POOL_BACKOFF_MIN;
+            i = (Long) poolConfig.get("backoff_max");
+            long backoffMax = null != i ? i : DEFAULT_POOL_BACKOFF_MAX;
+
+            this.pool = new LdapConnectionPool(this.connector, pooled, poolSize, maxIdle, maxAge,
+                    validateAfter, backoffMin, backoffMax);
+            Runtime.getRuntime().addShutdownHook(new Thread(pool::close));
+
+            jo = (JSONObject) config.get("sampling");
+            b = null != jo ? (Boolean) jo.get("enabled") : null;
+            if (null != b && b) {
+                i = (Long) jo.get("interval");
+                long interval = Math.max(1000, null != i ? i : DEFAULT_SAMPLING_INTERVAL);
+                // Room for two publish intervals' worth, in case a poll cycle runs late.
+                int capacity = (int) (2 * ((PUBLISH_INTERVAL + interval - 1) / interval));
+                LdapConnectionPool samplerPool = new LdapConnectionPool(this.connector, true, 1, maxIdle, maxAge,
+                        validateAfter, backoffMin, backoffMax);
+                this.sampler = new Sampler(ldapMetrics, samplerPool, interval, capacity);
+                this.sampler.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(sampler::close));
+            } else {
+                this.sampler = null;
             }
 
             jo = (JSONObject) config.get("timedops");
-            if (null != jo) {
-                Map<String, String> m = (Map<String, String>) jo.get("search");
-                if (null != m) {
-                    s = m.get("base");
-                    searchbase = !isNullOrEmpty(s) ? s : null;
-                    s = m.get("filter");
-                    searchfilter = !isNullOrEmpty(s) ? s : "(objectClass=*)";
-                    s = m.get("scope");
-                    searchscope = !isNullOrEmpty(s) ? s : "base";
+            List<Probe> probeList = null != jo ? parseProbes(jo) : Collections.<Probe>emptyList();
+            if (!probeList.isEmpty()) {
+                i = (Long) jo.get("interval");
+                long probeInterval = Math.max(1000, null != i ? i : DEFAULT_PROBE_INTERVAL);
+                LdapConnectionPool probePool = new LdapConnectionPool(this.connector, true, 1, maxIdle, maxAge,
+                        validateAfter, backoffMin, backoffMax);
+                this.probes = new ProbeScheduler(probeList, probePool, probeInterval, stats);
+                this.probes.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(probes::close));
+            } else {
+                this.probes = null;
+            }
+
+            this.loadProbe = null != jo ? parseLoadProbe(jo) : null;
+            if (null != loadProbe) {
+                loadProbe.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(loadProbe::close));
+            }
+
+            jo = (JSONObject) config.get("access_log");
+            b = null != jo ? (Boolean) jo.get("enabled") : null;
+            if (null != b && b) {
+                s = (String) jo.get("path");
+                if (isNullOrEmpty(s)) {
+                    throw new ConfigurationException("access_log needs the path of the access log");
                 }
+                File path = new File(s);
+                s = (String) jo.get("offset_file");
+                File offsetFile = new File(!isNullOrEmpty(s) ? s : "spool/" + fileName(agentName) + ".access.offset");
+                i = (Long) jo.get("interval");
+                long interval = Math.max(100, null != i ? i : DEFAULT_ACCESS_LOG_INTERVAL);
+                this.accessLog = new AccessLogTailer(path, offsetFile, interval, ACCESS_LOG_PREFIX);
+                this.accessLog.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(accessLog::close));
+            } else {
+                this.accessLog = null;
+            }
 
-                m = (Map<String, String>) jo.get("modify");
-                if (null != m) {
-                    s = m.get("dn");
-                    modifydn = !isNullOrEmpty(s) ? s : null;
-                    s = m.get("attribute");
-                    modifyattr = !isNullOrEmpty(s) ? s : "internationalisdnnumber";
+            EnumSet<AgentStats.Group> groups = EnumSet.of(AgentStats.Group.MAIN);
+            if (!anonymousBind) {
+                groups.add(AgentStats.Group.DATABASE);
+                groups.add(AgentStats.Group.BACKEND);
+                if (null != replication) {
+                    groups.add(AgentStats.Group.REPLICATION);
                 }
             }
+            if (null != probes || null != loadProbe) {
+                groups.add(AgentStats.Group.TIMED_OPS);
+            }
+            if (null != accessLog) {
+                groups.add(AgentStats.Group.ACCESS_LOG);
+            }
+            stats.setGroups(groups);
+        } catch (ConfigurationException e) {
+            throw e;
         } catch (Throwable t) {
             throw new ConfigurationException(t);
         }
@@ -178,226 +466,662 @@ public class LdapAgent extends Agent {
         return agentName;
     }
 
+    @Override
+    public void reportMetric(String metricName, String units, Number value) {
+        reportMetric(metricName, units, value, MetricLabels.NONE);
+    }
+
+    /**
+     * Report a metric, passing the segments of its name that the sinks carry as labels on to them.
+     *
+     * @param labels the backend, db file, client or agreement the metric belongs to
+     */
+    void reportMetric(String metricName, String units, Number value, MetricLabels labels) {
+        if (null != value) {
+            for (MetricSink sink : sinks) {
+                sink.report(metricName, units, value.doubleValue(), labels);
+            }
+            if (null != spool) {
+                try {
+                    spool.append(spoolTimestamp, metricName, value.doubleValue());
+                } catch (IOException e) {
+                    stats.error(e);
+                    log.debug(e, "Error spooling ", metricName);
+                }
+            }
+        }
+        if (!newRelic) {
+            return;
+        }
+
+        if (null != suppressor && !suppressor.shouldSend(metricName, value)) {
+            stats.metricSuppressed();
+            return;
+        }
+        if (null != value) {
+            stats.metricReported();
+        }
+        if (null != capture) {
+            capture.add(new ReportedMetric(metricName, units, value));
+        } else {
+            send(metricName, units, value);
+        }
+    }
+
+    /**
+     * Hand a metric to New Relic.  Every metric bound for New Relic ends up here, labelled or not, so this is
+     * the place to watch what the agent sends.
+     */
+    protected void send(String metricName, String units, Number value) {
+        super.reportMetric(metricName, units, value);
+    }
+
+    /**
+     * @param sinks    where else to send the metrics
+     * @param newRelic whether to send the metrics to New Relic as well
+     */
+    void setSinks(List<MetricSink> sinks, boolean newRelic) {
+        this.sinks = sinks;
+        this.newRelic = newRelic;
+    }
+
+    /**
+     * Have the cycles run by a scheduler rather than by the Runner.
+     */
+    void setScheduler(AgentScheduler scheduler) {
+        this.scheduler = scheduler;
+        // Enough for every cycle that can finish between two reports, plus one for the clocks drifting.
+        long interval = scheduler.getInterval();
+        this.maxCompleted = (int) Math.max(2, (PUBLISH_INTERVAL + interval - 1) / interval + 1);
+        scheduler.register(this);
+    }
+
     /**
      * The main method.  This is called at an interval of ~ 60 seconds by the Runner.
+     * <p>
+     * Under an {@link AgentScheduler}, the cycles have already been run on the scheduler's threads, and this
+     * just reports what every cycle finished since the last call found.  The Runner's clock is not the
+     * scheduler's, so that can be two cycles, which New Relic then averages, or none, in which case nothing is
+     * reported rather than sending the same values twice.
      */
     @Override
     public void pollCycle() {
-        try {
-            DirContext ctx = connect();
-            try {
-                processMainLdapCounters(ctx);
+        if (null == scheduler) {
+            runCycle();
+            return;
+        }
 
-                // The backend monitor entry is not readable anonymously by default.
-                if (!anonymousBind) {
-                    processLdbmCounters(ctx);
-                    processBackendDbCounters(ctx);
-                }
+        scheduler.start();
+        List<List<ReportedMetric>> cycles;
+        synchronized (completed) {
+            cycles = new ArrayList<>(completed);
+            completed.clear();
+        }
+        if (cycles.isEmpty()) {
+            log.debug("No poll cycle finished since the last report for ", agentName);
+            return;
+        }
+        for (List<ReportedMetric> metrics : cycles) {
+            for (ReportedMetric m : metrics) {
+                send(m.name, m.units, m.value);
+            }
+        }
+    }
 
-                if (!isNullOrEmpty(searchbase)) {
-                    reportSearchTime(ctx);
+    /**
+     * Run a cycle for the {@link AgentScheduler}, holding on to what it reports until the Runner asks for it.
+     *
+     * @param lag     how late the cycle started relative to its slot (ms)
+     * @param skipped the number of slots missed since the previous cycle because it overran
+     */
+    void runScheduledCycle(long lag, int skipped) {
+        stats.scheduled(lag, skipped);
+        capture = new ArrayList<>();
+        try {
+            runCycle();
+            boolean dropped;
+            synchronized (completed) {
+                dropped = completed.size() >= maxCompleted;
+                if (dropped) {
+                    completed.removeFirst();
                 }
+                completed.addLast(capture);
+            }
+            if (dropped) {
+                stats.cycleDropped();
+                log.warn("Dropped the oldest unreported poll cycle for ", agentName,
+                        ", the Runner has not collected the last ", maxCompleted);
+            }
+        } finally {
+            capture = null;
+        }
+    }
 
-                if (!isNullOrEmpty(modifydn) && !anonymousBind) {
-                    reportModifyTime(ctx);
+    /**
+     * Poll the server and report the results.
+     * <p>
+     * Each collection group is read under its own time budget, see {@link CycleDeadline}, so a group that
+     * fails or overruns only costs its own metrics.
+     */
+    private void runCycle() {
+        long cycleStart = System.nanoTime();
+        spoolTimestamp = System.currentTimeMillis();
+        long allocated = AgentStats.currentThreadAllocated();
+        try {
+            deadline.start();
+            runGroup(AgentStats.Group.MAIN, this::collectMainLdapCounters);
+
+            // The database and backend monitor entries are not readable anonymously by default.
+            if (!anonymousBind) {
+                runGroup(AgentStats.Group.DATABASE, this::collectLdbmCounters);
+                runGroup(AgentStats.Group.BACKEND, this::collectBackendDbCounters);
+                if (null != replication) {
+                    runGroup(AgentStats.Group.REPLICATION, this::collectReplicationStatus);
                 }
-            } finally {
-                ctx.close();
             }
+
         } catch (Throwable t) {
+            stats.error(t);
             log.error(t, "Error polling!");
         }
+
+        // What the background readers gathered is published stage by stage, so one failing does not cost the
+        // others, nor the timeouts that show which groups were lost.
+        long start = System.nanoTime();
+        if (null != probes) {
+            publishStage("timed operations", () -> {
+                probes.publish(this);
+                stats.addNanos(AgentStats.Group.TIMED_OPS, probes.takeBusyNanos());
+            });
+        }
+        if (null != loadProbe) {
+            publishStage("load test", () -> loadProbe.publish(this));
+        }
+        stats.addTime(AgentStats.Group.TIMED_OPS, start);
+
+        if (null != accessLog) {
+            publishStage("access log", () -> {
+                accessLog.publish(this);
+                stats.addNanos(AgentStats.Group.ACCESS_LOG, accessLog.takeBusyNanos());
+            });
+        }
+
+        // The sampler reads over its own connection, so its window is published even if Main failed.
+        if (null != sampler) {
+            publishStage("sampling", () -> sampler.publish(this));
+        }
+        publishStage("timeout", () -> deadline.publish(this));
+        rates.endCycle();
+
+        if (agentMetrics) {
+            if (allocated >= 0) {
+                allocated = AgentStats.currentThreadAllocated() - allocated;
+            }
+            stats.publish(this, System.nanoTime() - cycleStart, allocated);
+        }
+
+        if (null != suppressor) {
+            suppressor.endCycle();
+        }
+        if (null != spool) {
+            try {
+                spool.commit();
+            } catch (IOException e) {
+                stats.error(e);
+                log.error(e, "Error compacting the metric spool's names");
+            }
+        }
+        for (MetricSink sink : sinks) {
+            sink.endCycle();
+        }
+    }
+
+    /**
+     * Run one publishing stage of the cycle, logging any failure rather than letting it end the cycle.
+     */
+    private void publishStage(String what, Runnable stage) {
+        try {
+            stage.run();
+        } catch (RuntimeException e) {
+            stats.error(e);
+            log.error(e, String.format("Error publishing %s metrics", what));
+        }
     }
 
     /**
-     * Report the main LDAP counters.  These are all the classics, like the number of searches, adds, etc.
+     * Collect and publish one group, logging any failure rather than letting it end the cycle.
      *
-     * @param ctx the LDAP connection
+     * @throws InterruptedException if the poll thread was interrupted
+     */
+    private void runGroup(AgentStats.Group group, CycleDeadline.Collector collector) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            deadline.run(group, collector);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            stats.error(e);
+            log.error(e, String.format("Error polling %s metrics", group.displayName));
+        } finally {
+            stats.addTime(group, start);
+            stats.addAllocated(deadline.takeAllocated());
+        }
+    }
+
+    /**
+     * Read the main LDAP counters.  These are all the classics, like the number of searches, adds, etc.
+     *
+     * @return publishes the counters
      * @throws NamingException
      */
-    private void processMainLdapCounters(DirContext ctx) throws NamingException {
+    CycleDeadline.Publisher collectMainLdapCounters() throws NamingException {
+        MonitorSnapshot snapshot = new MonitorSnapshot();
+        withConnection(ctx -> {
+            reader.readMain(ctx, snapshot, !anonymousBind);
+            return null;
+        });
+
+        MetricTable.Batch batch = ldapMetrics.newBatch();
+
         // We can get most of the basic metrics we need off the SNMP entry.
         // In a default installation of 389DS, this entry is readable anonymously.
-        Map<String, Long> snmpCounters = parseMonitorEntry(ctx, SNMP_DN, ldapCounters, ldapGauges);
+        batch.read(snapshot.get(MonitorReader.SNMP_DN));
 
-        for (Map.Entry<String, Long> entry : snmpCounters.entrySet()) {
-            String key = entry.getKey();
-            Long val = entry.getValue();
-            if (ldapCounters.containsKey(key)) {
-                LdapMetric cfg = ldapCounters.get(key);
-                reportMetric(BASIC_COUNTER_PREFIX + "/" + cfg.metric + "/" + RATE_SUFFIX, cfg.unit
-                        + "/sec", processors.get(key).process(val));
-                reportMetric(BASIC_COUNTER_PREFIX + "/" + cfg.metric + "/" + COUNT_SUFFIX, cfg.unit, val);
-            } else if (ldapGauges.containsKey(key)) {
-                LdapMetric cfg = ldapGauges.get(key);
-                reportMetric(BASIC_COUNTER_PREFIX + "/" + cfg.metric, cfg.unit, val);
-            }
+        // The only basic metric we cannot find on the SNMP entry is 'readwaiters'
+        MetricDescriptor readWaiters = ldapMetrics.get(MonitorReader.READWAITERS_ATTR);
+        if (null != readWaiters) {
+            Attributes monitor = snapshot.get(MonitorReader.MONITOR_DN);
+            batch.read(readWaiters, null != monitor ? monitor.get(MonitorReader.READWAITERS_ATTR) : null);
         }
 
-        // The only basic metric we cannot find on the SNMP entry is 'readwaiters'
-        if (ldapGauges.containsKey(READWAITERS_ATTR)) {
-            LdapMetric cfg = ldapGauges.get(READWAITERS_ATTR);
-            Map<String, Long> monitor = parseMonitorEntry(ctx, MONITOR_DN, ldapCounters, ldapGauges);
-            reportMetric(BASIC_COUNTER_PREFIX + "/" + cfg.metric, cfg.unit, monitor.get(READWAITERS_ATTR));
+        long now = monotonicMillis();
+        if (null != connectionTracker) {
+            Attributes monitor = snapshot.get(MonitorReader.MONITOR_DN);
+            connectionTracker.update(null != monitor ? monitor.get(ConnectionTracker.CONNECTION_ATTR) : null,
+                    now, System.currentTimeMillis());
         }
+        return () -> {
+            batch.publish(this, rates, now);
+            stats.addSkipped(batch.getSkipped());
+            publishDerived(ldapDerived, now, MetricLabels.NONE,
+                    snapshot.get(MonitorReader.SNMP_DN), snapshot.get(MonitorReader.MONITOR_DN));
+            if (null != connectionTracker) {
+                connectionTracker.publish(this);
+            }
+        };
     }
 
     /**
-     * Report the overall DB metrics.
+     * Read the overall DB metrics.
      *
-     * @param ctx the LDAP connection
+     * @return publishes the metrics
      * @throws NamingException
      */
-    private void processLdbmCounters(DirContext ctx) throws NamingException {
-        Map<String, Long> ldbm = parseMonitorEntry(ctx, DB_MONITOR_DN, ldbmCounters, ldbmGauges);
-        for (Map.Entry<String, Long> entry : ldbm.entrySet()) {
-            String key = entry.getKey();
-            Long val = entry.getValue();
-            if (ldbmCounters.containsKey(key)) {
-                LdapMetric cfg = ldbmCounters.get(key);
-                reportMetric(LDBM_PREFIX + "/" + cfg.metric + "/" + RATE_SUFFIX, cfg.unit
-                        + "/sec", ldbmProcessors.get(key).process(val));
-                reportMetric(LDBM_PREFIX + "/" + cfg.metric + "/" + COUNT_SUFFIX, cfg.unit, val);
-            } else if (ldbmGauges.containsKey(key)) {
-                LdapMetric cfg = ldbmGauges.get(key);
-                reportMetric(LDBM_PREFIX + "/" + cfg.metric, cfg.unit, val);
-            }
-        }
+    CycleDeadline.Publisher collectLdbmCounters() throws NamingException {
+        MonitorSnapshot snapshot = new MonitorSnapshot();
+        withConnection(ctx -> {
+            reader.readLdbm(ctx, snapshot);
+            return null;
+        });
+
+        MetricTable.Batch batch = ldbmMetrics.newBatch();
+        batch.read(snapshot.get(MonitorReader.DB_MONITOR_DN));
+
+        long now = monotonicMillis();
+        return () -> {
+            batch.publish(this, rates, now);
+            stats.addSkipped(batch.getSkipped());
+            publishDerived(ldbmDerived, now, MetricLabels.NONE, snapshot.get(MonitorReader.DB_MONITOR_DN));
+        };
     }
 
     /**
-     * Discover and report the per-backend DB metrics.
+     * Read the per-backend DB metrics.
+     * <p>
+     * The backend entries are either read with a single search, or when backend_concurrency is greater than
+     * one, read and parsed in parallel over separate connections.  Either way the results are reported in
+     * backend order once they are all in, so the published output does not depend on thread timing.
      *
-     * @param ctx the LDAP connection
+     * @return publishes the metrics
      * @throws NamingException
+     * @throws InterruptedException
      */
-    private void processBackendDbCounters(DirContext ctx) throws NamingException {
-        List<String> backendMonitors = lookupBackendEntryDNs(ctx);
-        for (String backendMonitorDn : backendMonitors) {
-            //this is kind of hackish, but the entry will look something like:
-            // cn=monitor,cn=userRoot,cn=ldbm database,cn=plugins,cn=config
-            //    or
-            // cn=monitor,cn=NetscapeRoot,cn=ldbm database,cn=plugins,cn=config
-
-            String backendName = backendMonitorDn.split(",")[1].split("=", 2)[1];
-            LdapContext entryCtx = (LdapContext) ctx.lookup(backendMonitorDn);
-            NamingEnumeration attrs = entryCtx.getAttributes("").getAll();
-
-            // There are multiple DB files, each with a set of metrics.
-            // The attributes on the monitor entry look something like:
-            //    dbfilename-15: userRoot/givenName.db
-            //    dbfilecachehit-15: 825858
-            //    ...
-            // We want to strip the number from the attribute agentName and report
-            // all matching metrics and values under the appropriate
-            // filename (eg, userRoot/givenName.db4).
-
-            Map<String, Attribute> mappedAttrs = new HashMap<>();
-            while (attrs.hasMore()) {
-                Attribute attr = (Attribute) attrs.next();
-                mappedAttrs.put(attr.getID(), attr);
-            }
-
-            for (Map.Entry<String, Attribute> entry : mappedAttrs.entrySet()) {
-                Attribute attr = entry.getValue();
-                String longName = entry.getKey();
-                String shortName = attr.getID().toLowerCase().split("-", 2)[0];
-
-                if (DBFILENAME_ATTR.equalsIgnoreCase(shortName)) {
-                    continue;
+    CycleDeadline.Publisher collectBackendDbCounters() throws NamingException, InterruptedException {
+        List<String> backendMonitors = reader.getBackendDNs();
+        backendParsers.keySet().retainAll(backendMonitors);
+        Map<String, List<BackendEntryParser.Sample>> results = new LinkedHashMap<>();
+        Map<String, Attributes> entries = new HashMap<>();
+
+        if (null == backendExecutor) {
+            MonitorSnapshot snapshot = new MonitorSnapshot();
+            withConnection(ctx -> {
+                reader.readBackends(ctx, snapshot);
+                return null;
+            });
+            for (String backendMonitorDn : backendMonitors) {
+                Attributes monitorEntry = snapshot.get(backendMonitorDn);
+                if (null != monitorEntry) {
+                    results.put(backendMonitorDn, parseBackendEntry(backendMonitorDn, monitorEntry));
+                    entries.put(backendMonitorDn, monitorEntry);
                 }
+            }
+        } else {
+            final String[] attrIds = reader.getBackendAttrs();
+            List<Future<BackendRead>> reads = new ArrayList<>(backendMonitors.size());
+            for (final String backendMonitorDn : backendMonitors) {
+                reads.add(backendExecutor.submit(() -> {
+                    long start = AgentStats.currentThreadAllocated();
+                    try {
+                        Attributes monitorEntry = withConnection(ctx -> reader.readBackend(ctx, backendMonitorDn, attrIds));
+                        return new BackendRead(monitorEntry, parseBackendEntry(backendMonitorDn, monitorEntry));
+                    } finally {
+                        deadline.addAllocatedSince(start);
+                    }
+                }));
+            }
 
-                String currentDbFile = null;
-                if (longName.matches(".*-[0-9]+$")) {
-                    String[] parts = longName.split("-", 2);
-                    currentDbFile = mappedAttrs.get(DBFILENAME_ATTR + "-" + parts[1]).get().toString().split("/", 2)[1];
+            List<Attributes> read = new ArrayList<>(backendMonitors.size());
+            try {
+                for (int idx = 0; idx < backendMonitors.size(); idx++) {
+                    try {
+                        BackendRead backend = reads.get(idx).get();
+                        reader.checkBackendLayout(backend.entry);
+                        read.add(backend.entry);
+                        results.put(backendMonitors.get(idx), backend.samples);
+                        entries.put(backendMonitors.get(idx), backend.entry);
+                    } catch (ExecutionException e) {
+                        // Not learning the layout from the rest, which may not have all of this one's files.
+                        read.add(null);
+                        stats.error(e.getCause());
+                        log.error(e.getCause(), String.format("Error reading backend monitor %s", backendMonitors.get(idx)));
+                    }
                 }
+            } catch (InterruptedException e) {
+                // Out of time; stop the reads still going.
+                for (Future<BackendRead> f : reads) {
+                    f.cancel(true);
+                }
+                throw e;
+            }
+            reader.learnBackendLayout(read);
+        }
 
-                if (backendCounters.containsKey(shortName)) {
-                    Long val = Long.parseLong(attr.get().toString());
-                    LdapMetric spec = backendCounters.get(shortName);
-
-                    String calculatedName = backendName + "/" + spec.metric;
-                    if (spec.metric.contains("%s")) {
-                        calculatedName = String.format(calculatedName, currentDbFile);
+        long now = monotonicMillis();
+        return () -> {
+            if (dbFileTop >= 0) {
+                dbFileRankers.keySet().retainAll(backendMonitors);
+            }
+            backendDerivedBound.keySet().retainAll(backendMonitors);
+            for (Map.Entry<String, List<BackendEntryParser.Sample>> e : results.entrySet()) {
+                String backend = BackendEntryParser.backendName(e.getKey());
+                if (dbFileTop < 0) {
+                    for (BackendEntryParser.Sample sample : e.getValue()) {
+                        MetricDescriptor d = sample.metric;
+                        if (d.counter) {
+                            reportMetric(d.rateName, d.rateUnit, rates.process(d.rate, sample.value, now), d.labels);
+                            reportMetric(d.countName, d.unit, sample.value, d.labels);
+                        } else {
+                            reportMetric(d.name, d.unit, sample.value, d.labels);
+                        }
                     }
+                } else {
+                    publishLimited(e.getKey(), e.getValue(), now);
+                }
 
-                    Processor p = backendProcessors.get(calculatedName);
-                    if (null == p) {
-                        p = new EpochProcessor();
-                        backendProcessors.put(calculatedName, p);
-                    }
+                List<DerivedMetric.Bound> derived = backendDerivedBound.computeIfAbsent(e.getKey(),
+                        k -> DerivedMetric.bindAll(BACKEND_COUNTER_PREFIX + "/" + backend, backendDerived));
+                publishDerived(derived, now, backendParsers.get(e.getKey()).getLabels(), entries.get(e.getKey()));
+            }
+        };
+    }
+
+    /**
+     * Report the derived metrics worked out from a group's monitor entries, see {@link DerivedMetric}.
+     *
+     * @param derived the derived metrics
+     * @param now     when the entries were read, in milliseconds on a monotonic clock
+     * @param labels  the labels of the backend the entries belong to, or NONE
+     * @param sources the monitor entries, in the order to look for attributes on them
+     * @throws NamingException
+     */
+    private void publishDerived(List<DerivedMetric.Bound> derived, long now, MetricLabels labels,
+                                Attributes... sources) throws NamingException {
+        for (DerivedMetric.Bound d : derived) {
+            reportMetric(d.name, d.spec.unit, d.evaluate(rates, now, sources), labels);
+        }
+    }
 
-                    reportMetric(BACKEND_COUNTER_PREFIX + "/" + calculatedName + "/" + RATE_SUFFIX, spec.unit
-                            + "/sec", p.process(val));
-                    reportMetric(BACKEND_COUNTER_PREFIX + "/" + calculatedName + "/" + COUNT_SUFFIX, spec.unit, val);
-                } else if (backendGauges.containsKey(shortName)) {
-                    Long val = Long.parseLong(attr.get().toString());
-                    LdapMetric spec = backendGauges.get(shortName);
+    /**
+     * Read the status of the replication agreements, see {@link ReplicationReader}.
+     *
+     * @return publishes the metrics
+     * @throws NamingException
+     */
+    CycleDeadline.Publisher collectReplicationStatus() throws NamingException {
+        List<ReplicationReader.Agreement> agreements = withConnection(replication::read);
+
+        long now = monotonicMillis();
+        return () -> {
+            for (ReplicationReader.Agreement a : agreements) {
+                reportMetric(a.lagName, "seconds", a.lag, a.labels);
+                reportMetric(a.sentRateName, "changes/second", rates.process(a.sentRate, a.sent, now), a.labels);
+                reportMetric(a.sentCountName, "changes", a.sent, a.labels);
+                reportMetric(a.skippedRateName, "changes/second", rates.process(a.skippedRate, a.skipped, now),
+                        a.labels);
+                reportMetric(a.skippedCountName, "changes", a.skipped, a.labels);
+                reportMetric(a.durationName, "milliseconds", a.duration, a.labels);
+                reportMetric(a.ageName, "seconds", a.age, a.labels);
+                reportMetric(a.statusName, "code", a.status, a.labels);
+                reportMetric(a.inProgressName, "sessions", a.inProgress ? 1 : 0, a.labels);
+            }
+        };
+    }
 
-                    String calculatedName = backendName + "/" + spec.metric;
-                    if (calculatedName.contains("%s")) {
-                        calculatedName = String.format(calculatedName, currentDbFile);
-                    }
+    /**
+     * Publish a backend's samples, reporting only the busiest db files on their own and rolling the rest into
+     * __other__, see {@link DbFileRanker}.  Every file's rate is still worked out, so a file that moves in or
+     * out of the top files has a correct rate straight away; __other__ reports the sum of the rates and counts
+     * of the files rolled into it.
+     */
+    private void publishLimited(String backendMonitorDn, List<BackendEntryParser.Sample> samples, long now) {
+        Float[] fileRates = new Float[samples.size()];
+        Map<String, Double> activity = new HashMap<>();
+        for (int idx = 0; idx < samples.size(); idx++) {
+            MetricDescriptor d = samples.get(idx).metric;
+            if (d.counter) {
+                fileRates[idx] = rates.process(d.rate, samples.get(idx).value, now);
+            }
+            if (null != d.dbFile) {
+                double active = null != fileRates[idx] && dbFileRankBy.contains(d.ldapAttr) ? fileRates[idx] : 0;
+                activity.merge(d.dbFile, active, Double::sum);
+            }
+        }
 
-                    reportMetric(BACKEND_COUNTER_PREFIX + "/" + calculatedName, spec.unit, val);
+        DbFileRanker ranker = dbFileRankers.computeIfAbsent(backendMonitorDn,
+                k -> new DbFileRanker(dbFileTop, dbFileWindow));
+        ranker.update(activity);
+
+        Map<MetricDescriptor, double[]> others = new LinkedHashMap<>();
+        for (int idx = 0; idx < samples.size(); idx++) {
+            BackendEntryParser.Sample sample = samples.get(idx);
+            MetricDescriptor d = sample.metric;
+            if (null != d.dbFile && !ranker.isPicked(d.dbFile)) {
+                // {count or value, rate, number of rates}
+                double[] sum = others.computeIfAbsent(d.other, k -> new double[3]);
+                sum[0] += sample.value;
+                if (null != fileRates[idx]) {
+                    sum[1] += fileRates[idx];
+                    sum[2]++;
                 }
+            } else if (d.counter) {
+                reportMetric(d.rateName, d.rateUnit, fileRates[idx], d.labels);
+                reportMetric(d.countName, d.unit, sample.value, d.labels);
+            } else {
+                reportMetric(d.name, d.unit, sample.value, d.labels);
+            }
+        }
+
+        for (Map.Entry<MetricDescriptor, double[]> e : others.entrySet()) {
+            MetricDescriptor d = e.getKey();
+            double[] sum = e.getValue();
+            if (d.counter) {
+                reportMetric(d.rateName, d.rateUnit, sum[2] > 0 ? (Number) sum[1] : null, d.labels);
+                reportMetric(d.countName, d.unit, (long) sum[0], d.labels);
+            } else {
+                reportMetric(d.name, d.unit, (long) sum[0], d.labels);
             }
         }
     }
 
     /**
-     * Modify an entry and record the time taken.
+     * Do some work over a pooled connection, discarding the connection if it failed.
      *
-     * @param ctx the LDAP connection
+     * @param work what to do with the connection
+     * @return the result of the work
      * @throws NamingException
      */
-    private void reportModifyTime(DirContext ctx) throws NamingException {
-        ModificationItem mod = new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
-                new BasicAttribute(modifyattr, "New Relic " + new Date().toString()));
-
-        long start = System.currentTimeMillis();
-        ctx.modifyAttributes(modifydn, new ModificationItem[]{mod});
-        long stop = System.currentTimeMillis();
-
-        reportMetric(TIMEDOPS_PREFIX + "/" + "Modify/Time", "milliseconds", stop - start);
+    private <T> T withConnection(ConnectionWork<T> work) throws NamingException {
+        DirContext ctx = pool.borrow();
+        boolean reusable = false;
+        try {
+            T ret = work.apply(ctx);
+            reusable = true;
+            return ret;
+        } catch (NamingException e) {
+            reusable = !LdapConnectionPool.isConnectionFailure(e);
+            throw e;
+        } finally {
+            if (reusable) {
+                pool.release(ctx);
+            } else {
+                pool.invalidate(ctx);
+            }
+        }
     }
 
     /**
-     * Search and record the time taken.
+     * Pull the configured counters and gauges off a single backend monitor entry.
      *
-     * @param ctx the LDAP connection
+     * @param backendMonitorDn the DN of the backend monitor entry
+     * @param monitorEntry     the attributes of the backend monitor entry
+     * @return the samples, ordered by metric name
      * @throws NamingException
      */
-    private void reportSearchTime(DirContext ctx) throws NamingException {
-        SearchControls ctls = new SearchControls();
+    private List<BackendEntryParser.Sample> parseBackendEntry(String backendMonitorDn, Attributes monitorEntry)
+            throws NamingException {
+        BackendEntryParser parser = backendParsers.computeIfAbsent(backendMonitorDn,
+                dn -> new BackendEntryParser(BACKEND_COUNTER_PREFIX, dn, backendCounters, backendGauges, verifyBackendParser));
+        return parser.parse(monitorEntry);
+    }
+
+    /**
+     * Build the timed operation probes.  The original unnamed search and modify blocks are kept, and
+     * publish under LDAP/TimedOps/Search and LDAP/TimedOps/Modify; named probes publish under
+     * LDAP/TimedOps/Search/name or LDAP/TimedOps/Modify/name.
+     *
+     * @param timedops the timedops section of the configuration
+     * @return the probes
+     * @throws ConfigurationException if a named probe is malformed
+     */
+    private List<Probe> parseProbes(Map<String, Object> timedops) throws ConfigurationException {
+        List<Probe> ret = new ArrayList<>();
 
-        int scope = SearchControls.SUBTREE_SCOPE;
-        if ("base".equalsIgnoreCase(searchscope)) {
-            scope = SearchControls.OBJECT_SCOPE;
-        } else if ("one".equalsIgnoreCase(searchscope)) {
-            scope = SearchControls.ONELEVEL_SCOPE;
+        Map<String, String> m = (Map<String, String>) timedops.get("search");
+        if (null != m && !isNullOrEmpty(m.get("base"))) {
+            ret.add(searchProbe("search", SEARCH_PROBE_PREFIX, m));
         }
 
-        ctls.setSearchScope(scope);
-        ctls.setTimeLimit(timeout);
+        m = (Map<String, String>) timedops.get("modify");
+        if (null != m && !isNullOrEmpty(m.get("dn")) && !anonymousBind) {
+            ret.add(modifyProbe("modify", MODIFY_PROBE_PREFIX, m));
+        }
 
-        long start = System.currentTimeMillis();
-        NamingEnumeration ne = ctx.search(searchbase, searchfilter, ctls);
-        long stop = System.currentTimeMillis();
+        m = (Map<String, String>) timedops.get("connect");
+        if (null != m && Boolean.TRUE.equals(((Map<String, ?>) m).get("enabled"))) {
+            ret.add(new ConnectProbe("connect", CONNECT_PROBE_PREFIX, this::connect));
+        }
 
-        int howMany = 0;
-        try {
-            while (ne.hasMore()) {
-                ne.next();
-                howMany++;
+        Map<String, Map<String, String>> named = (Map<String, Map<String, String>>) timedops.get("probes");
+        if (null != named) {
+            for (Map.Entry<String, Map<String, String>> entry : new TreeMap<>(named).entrySet()) {
+                String name = entry.getKey();
+                m = entry.getValue();
+                String type = m.get("type");
+                if ("search".equalsIgnoreCase(type)) {
+                    if (isNullOrEmpty(m.get("base"))) {
+                        throw new ConfigurationException(String.format("Search probe %s has no base", name));
+                    }
+                    ret.add(searchProbe(name, SEARCH_PROBE_PREFIX + "/" + name, m));
+                } else if ("modify".equalsIgnoreCase(type)) {
+                    if (isNullOrEmpty(m.get("dn"))) {
+                        throw new ConfigurationException(String.format("Modify probe %s has no dn", name));
+                    }
+                    if (anonymousBind) {
+                        log.warn(String.format("Skipping modify probe %s, no bind credentials", name));
+                        continue;
+                    }
+                    ret.add(modifyProbe(name, MODIFY_PROBE_PREFIX + "/" + name, m));
+                } else if ("connect".equalsIgnoreCase(type)) {
+                    ret.add(new ConnectProbe(name, CONNECT_PROBE_PREFIX + "/" + name, this::connect));
+                } else {
+                    throw new ConfigurationException(String.format(
+                            "Probe %s has unknown type \"%s\" (expected \"search\", \"modify\" or \"connect\")", name, type));
+                }
             }
-        } finally {
-            ne.close();
         }
+        return ret;
+    }
 
-        reportMetric(TIMEDOPS_PREFIX + "/" + "Search/Time", "milliseconds", stop - start);
-        reportMetric(TIMEDOPS_PREFIX + "/" + "Search/Results", "entries", howMany);
+    /**
+     * Build the load probe, if it is enabled.  It runs the unnamed search, and optionally the unnamed modify.
+     *
+     * @param timedops the timedops section of the configuration
+     * @return the load probe, or null if it is not enabled
+     * @throws ConfigurationException if the load probe has nothing to run
+     */
+    private LoadProbe parseLoadProbe(Map<String, Object> timedops) throws ConfigurationException {
+        Map<String, Object> load = (Map<String, Object>) timedops.get("load");
+        if (null == load || !Boolean.TRUE.equals(load.get("enabled"))) {
+            return null;
+        }
+
+        List<Probe> operations = new ArrayList<>();
+        Map<String, String> m = (Map<String, String>) timedops.get("search");
+        if (null == m || isNullOrEmpty(m.get("base"))) {
+            throw new ConfigurationException("The load probe needs timedops.search to be configured");
+        }
+        operations.add(searchProbe("load", LOAD_PROBE_PREFIX, m));
+
+        m = (Map<String, String>) timedops.get("modify");
+        if (Boolean.TRUE.equals(load.get("modify")) && null != m && !isNullOrEmpty(m.get("dn")) && !anonymousBind) {
+            operations.add(modifyProbe("load", LOAD_PROBE_PREFIX, m));
+        }
+
+        Long i = (Long) load.get("concurrency");
+        int concurrency = null != i ? i.intValue() : DEFAULT_LOAD_CONCURRENCY;
+        i = (Long) load.get("duration");
+        long duration = null != i ? i : DEFAULT_LOAD_DURATION;
+        i = (Long) load.get("interval");
+        long interval = null != i ? i : DEFAULT_LOAD_INTERVAL;
+
+        return new LoadProbe(LOAD_PROBE_PREFIX, connector, operations, concurrency, duration, interval);
+    }
+
+    private SearchProbe searchProbe(String name, String prefix, Map<String, String> m) {
+        String s = m.get("filter");
+        String filter = !isNullOrEmpty(s) ? s : "(objectClass=*)";
+        s = m.get("scope");
+        String scope = !isNullOrEmpty(s) ? s : "base";
+        List<String> attrs = (List<String>) ((Map<String, ?>) m).get("attributes");
+        Long i = (Long) ((Map<String, ?>) m).get("page_size");
+        return new SearchProbe(name, prefix, m.get("base"), scope, filter,
+                null != attrs ? attrs.toArray(new String[0]) : null, null != i ? i.intValue() : 0, timeout);
+    }
+
+    private ModifyProbe modifyProbe(String name, String prefix, Map<String, String> m) {
+        String s = m.get("attribute");
+        String attribute = !isNullOrEmpty(s) ? s : "internationalisdnnumber";
+        return new ModifyProbe(name, prefix, m.get("dn"), attribute);
     }
 
     /**
@@ -407,120 +1131,198 @@ public class LdapAgent extends Agent {
      * @throws NamingException
      */
     private DirContext connect() throws NamingException {
-        Hashtable env = new Hashtable();
+        return connect(new TracingSocketFactory.Trace());
+    }
+
+    /**
+     * Connect and bind the to the LDAP server, recording how long the TCP connect and TLS handshake took.
+     *
+     * @param trace where to record the timings
+     * @return the LDAP connection DirContext
+     * @throws NamingException
+     */
+    private DirContext connect(TracingSocketFactory.Trace trace) throws NamingException {
+        Hashtable<String, Object> env = new Hashtable<>();
         env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        env.put(Context.SECURITY_AUTHENTICATION, "simple");
         env.put("com.sun.jndi.ldap.read.timeout", String.valueOf(timeout));
         env.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(timeout));
 
-        if (!anonymousBind) {
-            env.put(Context.SECURITY_PRINCIPAL, binddn);
-            env.put(Context.SECURITY_CREDENTIALS, bindpw);
+        Hashtable<String, Object> auth = new Hashtable<>();
+        if (bindExternal) {
+            auth.put(Context.SECURITY_AUTHENTICATION, "EXTERNAL");
+        } else {
+            auth.put(Context.SECURITY_AUTHENTICATION, "simple");
+            if (!anonymousBind) {
+                auth.put(Context.SECURITY_PRINCIPAL, binddn);
+                auth.put(Context.SECURITY_CREDENTIALS, bindpw);
+            }
+        }
+        // With StartTLS the bind has to wait until TLS is up.
+        if (!startTls) {
+            env.putAll(auth);
+        } else {
+            env.put(Context.SECURITY_AUTHENTICATION, "none");
         }
-
 
         StringBuilder url = new StringBuilder();
+        SocketFactory socketFactory;
         if (useSSL) {
             url.append("ldaps://");
             env.put(Context.SECURITY_PROTOCOL, "ssl");
-            if (trustAnySSL) {
-                env.put("java.naming.ldap.factory.socket",
-                        "com.bozemanpass.newrelic.ldap.util.DummySSLSocketFactory");
-            }
+            socketFactory = tls.getSocketFactory();
         } else {
             url.append("ldap://");
+            socketFactory = SocketFactory.getDefault();
         }
+        env.put("java.naming.ldap.factory.socket", TracingSocketFactory.class.getName());
 
         url.append(host).append(":").append(port);
 
         env.put(Context.PROVIDER_URL, url.toString());
 
-        log.debug(String.format("Connecting %s @ %s ...", anonymousBind ? "ANON" : binddn, url.toString()));
+        log.debug(String.format("Connecting %s @ %s%s ...", bindExternal ? "EXTERNAL" : anonymousBind ? "ANON" : binddn,
+                url.toString(), startTls ? " with StartTLS" : ""));
 
-        return new InitialDirContext(env);
-    }
+        boolean verifyHostname = !trustAnySSL && !DISABLE_HOSTNAME_VERIFICATION;
+        TracingSocketFactory.begin(socketFactory, verifyHostname, trace, stats.getTraffic());
+        LdapContext ctx;
+        try {
+            // An LdapContext, so that probes can use request controls such as paged results.
+            ctx = new InitialLdapContext(env, null);
+        } finally {
+            TracingSocketFactory.end();
+        }
 
-    /**
-     * Used for parsing the standard cn=monitor and cn=snmp,cn=monitor metrics.
-     *
-     * @param ctx the LDAP connection
-     * @param dn  the DN of the monitor entry to lookup
-     * @return
-     * @throws NamingException
-     */
-    private Map<String, Long> parseMonitorEntry(DirContext ctx, String dn, Map<String, LdapMetric> counters, Map<String, LdapMetric> gauges) throws NamingException {
-        Map<String, Long> ret = new HashMap<>();
-        LdapContext entryCtx = (LdapContext) ctx.lookup(dn);
-        NamingEnumeration attrs = entryCtx.getAttributes("").getAll();
-        while (attrs.hasMore()) {
-            Attribute attr = (Attribute) attrs.next();
-            // These are all single-valued, numeric attributes
-            String name = attr.getID().toLowerCase();
-            if (counters.containsKey(name) || gauges.containsKey(name)) {
-                Object value = attr.get();
-                if (null != value) {
-                    try {
-                        ret.put(name, Long.parseLong(value.toString()));
-                    } catch (Throwable t) {
-                        log.warn(String.format("Forced to skip attribute: %s", attr.getID()));
-                    }
+        if (startTls) {
+            try {
+                StartTlsResponse response = (StartTlsResponse) ctx.extendedOperation(new StartTlsRequest());
+                if (!verifyHostname) {
+                    response.setHostnameVerifier((hostname, session) -> true);
                 }
+                response.negotiate(TracingSocketFactory.startTls(tls.getSocketFactory(), verifyHostname, trace,
+                        stats.getTraffic()));
+                for (Map.Entry<String, Object> e : auth.entrySet()) {
+                    ctx.addToEnvironment(e.getKey(), e.getValue());
+                }
+                // Bind now, over TLS, rather than on the first operation.
+                ctx.reconnect(null);
+            } catch (NamingException | RuntimeException e) {
+                closeQuietly(ctx);
+                throw e;
+            } catch (IOException e) {
+                closeQuietly(ctx);
+                NamingException ne = new NamingException("StartTLS failed: " + e.getMessage());
+                ne.setRootCause(e);
+                throw ne;
             }
         }
-        return ret;
+
+        if (trace.getTlsNanos() > 0) {
+            tls.handshakeCompleted(trace.getTlsNanos());
+        }
+        return ctx;
+    }
+
+    private static void closeQuietly(DirContext ctx) {
+        try {
+            ctx.close();
+        } catch (NamingException e) {
+            // ignore
+        }
     }
 
     /**
-     * The DN of the backend monitor entry is stored as an attribute on cn=monitor
+     * Build the agent's TLS context from the tls section of the config.
      *
-     * @param ctx the LDAP connection
-     * @return the DN of the backend monitor entry
-     * @throws NamingException
+     * @param tlsConfig the tls section, possibly empty
+     * @return the context for every TLS connection the agent makes
+     * @throws Exception if a keystore cannot be loaded
      */
-    private List<String> lookupBackendEntryDNs(DirContext ctx) throws NamingException {
-        LdapContext entryCtx = (LdapContext) ctx.lookup(MONITOR_DN);
-        Attribute attr = entryCtx.getAttributes("").get(BACKENDMONITOR_ATTR);
-        List<String> ret = new LinkedList<>();
-        NamingEnumeration values = attr.getAll();
-        while (values.hasMore()) {
-            ret.add(values.next().toString());
+    private TlsContext createTlsContext(Map<String, Object> tlsConfig) throws Exception {
+        KeyStore trustStore = null;
+        String s = (String) tlsConfig.get("truststore");
+        if (!isNullOrEmpty(s)) {
+            trustStore = TlsContext.loadKeyStore(s, emptyToNull(tlsConfig.get("truststore_type")),
+                    password(tlsConfig.get("truststore_password")));
         }
-        return ret;
+
+        KeyStore keyStore = null;
+        char[] keyPassword = null;
+        s = (String) tlsConfig.get("keystore");
+        if (!isNullOrEmpty(s)) {
+            char[] storePassword = password(tlsConfig.get("keystore_password"));
+            keyStore = TlsContext.loadKeyStore(s, emptyToNull(tlsConfig.get("keystore_type")), storePassword);
+            keyPassword = password(tlsConfig.get("key_password"));
+            keyPassword = null != keyPassword ? keyPassword : storePassword;
+        } else if (bindExternal) {
+            throw new ConfigurationException("tls.bind_external needs a client certificate in tls.keystore");
+        }
+
+        Long i = (Long) tlsConfig.get("session_cache_size");
+        int sessionCacheSize = null != i ? i.intValue() : -1;
+        i = (Long) tlsConfig.get("session_timeout");
+        int sessionTimeout = null != i ? i.intValue() : -1;
+
+        return new TlsContext(trustAnySSL, trustStore, keyStore, keyPassword, sessionCacheSize, sessionTimeout);
     }
 
+    private static char[] password(Object value) {
+        String s = emptyToNull(value);
+        return null != s ? s.toCharArray() : null;
+    }
+
+    private static String emptyToNull(Object value) {
+        String s = (String) value;
+        return !isNullOrEmpty(s) ? s : null;
+    }
+
+    /**
+     * Something to do with a pooled connection.
+     */
+    private interface ConnectionWork<T> {
+        T apply(DirContext ctx) throws NamingException;
+    }
 
     /**
-     * Helper for holding the definitions of the metrics we are interested in.
+     * A backend monitor entry read by one of the backend readers, along with its parsed samples.
      */
-    private static class LdapMetric {
-        final String ldapAttr;
-        final String metric;
-        final String unit;
+    private static class BackendRead {
+        final Attributes entry;
+        final List<BackendEntryParser.Sample> samples;
 
-        LdapMetric(String ldapAttr, String metric, String unit) {
-            this.ldapAttr = ldapAttr;
-            this.metric = metric;
-            this.unit = unit;
+        BackendRead(Attributes entry, List<BackendEntryParser.Sample> samples) {
+            this.entry = entry;
+            this.samples = samples;
         }
     }
 
     /**
-     * Parse out all the metric specifications.
-     *
-     * @param input the metric specification as a map of strings
-     * @return
+     * A metric reported by a scheduled cycle, held until the Runner polls the agent.
      */
-    private Map<String, LdapMetric> parseMetricSpecs(Map<String, String> input) {
-        Map<String, LdapMetric> ret = new HashMap<>();
-        for (Map.Entry<String, String> entry : input.entrySet()) {
-            String key = entry.getKey();
-            String[] parts = entry.getValue().split(";", 2);
-            ret.put(key, new LdapMetric(key, parts[0], parts[1]));
+    private static class ReportedMetric {
+        final String name;
+        final String units;
+        final Number value;
+
+        ReportedMetric(String name, String units, Number value) {
+            this.name = name;
+            this.units = units;
+            this.value = value;
         }
-        return ret;
+    }
+
+    private static long monotonicMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
     }
 
     private static boolean isNullOrEmpty(String s) {
         return null == s || s.trim().isEmpty();
     }
+
+    /**
+     * @return the name, with anything that does not belong in a file name replaced
+     */
+    private static String fileName(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
 }
@@ -27,11 +27,44 @@ import com.newrelic.metrics.publish.Agent;
 import com.newrelic.metrics.publish.AgentFactory;
 import com.newrelic.metrics.publish.configuration.ConfigurationException;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 public class LdapAgentFactory extends AgentFactory {
+    private final AgentScheduler scheduler;
+    private final List<MetricSink.Provider> sinks;
+    private final boolean newRelic;
+
+    public LdapAgentFactory() {
+        this(null, Collections.<MetricSink.Provider>emptyList(), true);
+    }
+
+    /**
+     * @param scheduler polls the agents created, or null to leave the polling to the Runner
+     * @param sinks     where else to send the agents' metrics
+     * @param newRelic  whether to send the agents' metrics to New Relic as well
+     */
+    LdapAgentFactory(AgentScheduler scheduler, List<MetricSink.Provider> sinks, boolean newRelic) {
+        this.scheduler = scheduler;
+        this.sinks = sinks;
+        this.newRelic = newRelic;
+    }
+
     @Override
     public Agent createConfiguredAgent(Map<String, Object> config) throws ConfigurationException {
-        return new LdapAgent(config);
+        LdapAgent agent = new LdapAgent(config);
+        if (!sinks.isEmpty() || !newRelic) {
+            List<MetricSink> agentSinks = new ArrayList<>(sinks.size());
+            for (MetricSink.Provider provider : sinks) {
+                agentSinks.add(provider.forAgent(agent.getAgentName()));
+            }
+            agent.setSinks(agentSinks, newRelic);
+        }
+        if (null != scheduler) {
+            agent.setScheduler(scheduler);
+        }
+        return agent;
     }
 }
@@ -0,0 +1,250 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A small pool of long-lived, bound LDAP connections owned by a single agent.
+ * <p>
+ * Idle connections are retired once they exceed the max idle or max age limits, and are checked
+ * with a cheap root DSE read before reuse if they have been idle for a while.  When connecting
+ * fails, further attempts are suppressed with an exponential backoff so that an unreachable server
+ * is not hammered with connects and binds.
+ * <p>
+ * When pooling is disabled every borrow opens a fresh connection and every release closes it,
+ * which is the original one-connection-per-poll-cycle behaviour; there is no backoff either, so
+ * every cycle tries to connect.
+ */
+public class LdapConnectionPool {
+    private static final Logger log = Logger.getLogger(LdapConnectionPool.class);
+
+    private static final String[] LIVENESS_ATTRS = new String[]{"1.1"};
+
+    /**
+     * Opens a new, bound connection.
+     */
+    interface Connector {
+        DirContext connect() throws NamingException;
+    }
+
+    private final Connector connector;
+    private final boolean enabled;
+    private final int size;
+    private final long maxIdle;
+    private final long maxAge;
+    private final long validateAfter;
+    private final long backoffMin;
+    private final long backoffMax;
+
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final Map<DirContext, PooledConnection> leased = new IdentityHashMap<>();
+
+    private long backoff = 0;
+    private long nextAttempt = 0;
+    private boolean closed = false;
+
+    /**
+     * @param connector     opens new connections
+     * @param enabled       false to open and close a connection for every borrow
+     * @param size          the maximum number of idle connections to keep
+     * @param maxIdle       close connections idle for longer than this (ms)
+     * @param maxAge        close connections older than this (ms)
+     * @param validateAfter check connections idle for longer than this before reuse (ms)
+     * @param backoffMin    the initial delay before reconnecting after a failure (ms)
+     * @param backoffMax    the maximum delay before reconnecting after a failure (ms)
+     */
+    LdapConnectionPool(Connector connector, boolean enabled, int size, long maxIdle, long maxAge,
+                       long validateAfter, long backoffMin, long backoffMax) {
+        this.connector = connector;
+        this.enabled = enabled;
+        this.size = Math.max(1, size);
+        this.maxIdle = maxIdle;
+        this.maxAge = maxAge;
+        this.validateAfter = validateAfter;
+        this.backoffMin = Math.max(0, backoffMin);
+        this.backoffMax = Math.max(this.backoffMin, backoffMax);
+    }
+
+    /**
+     * Get a live connection, reusing an idle one when possible.
+     *
+     * @return the LDAP connection DirContext
+     * @throws NamingException if no connection could be established, or if a reconnect is being held off
+     */
+    DirContext borrow() throws NamingException {
+        if (!enabled) {
+            DirContext ctx = connector.connect();
+            synchronized (this) {
+                leased.put(ctx, new PooledConnection(ctx));
+            }
+            return ctx;
+        }
+
+        PooledConnection pc;
+        while (null != (pc = pollIdle())) {
+            long now = System.currentTimeMillis();
+            if (now - pc.created > maxAge || now - pc.lastUsed > maxIdle) {
+                log.debug("Retiring pooled LDAP connection.");
+                closeQuietly(pc.ctx);
+                continue;
+            }
+            if (now - pc.lastUsed > validateAfter && !isAlive(pc.ctx)) {
+                log.debug("Discarding dead pooled LDAP connection.");
+                closeQuietly(pc.ctx);
+                continue;
+            }
+            synchronized (this) {
+                leased.put(pc.ctx, pc);
+            }
+            return pc.ctx;
+        }
+
+        synchronized (this) {
+            long wait = nextAttempt - System.currentTimeMillis();
+            if (wait > 0) {
+                throw new ServiceUnavailableException(String.format("Reconnect suppressed for another %d ms", wait));
+            }
+        }
+
+        DirContext ctx;
+        try {
+            ctx = connector.connect();
+        } catch (NamingException e) {
+            synchronized (this) {
+                backoff = 0 == backoff ? backoffMin : Math.min(backoffMax, backoff * 2);
+                nextAttempt = System.currentTimeMillis() + backoff;
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            backoff = 0;
+            nextAttempt = 0;
+            leased.put(ctx, new PooledConnection(ctx));
+        }
+        return ctx;
+    }
+
+    /**
+     * Return a healthy connection to the pool.
+     *
+     * @param ctx the connection obtained from borrow()
+     */
+    void release(DirContext ctx) {
+        PooledConnection pc;
+        synchronized (this) {
+            pc = leased.remove(ctx);
+            if (null != pc && enabled && !closed && idle.size() < size) {
+                pc.lastUsed = System.currentTimeMillis();
+                idle.push(pc);
+                return;
+            }
+        }
+        closeQuietly(ctx);
+    }
+
+    /**
+     * Close and forget a connection that is, or may be, broken.
+     *
+     * @param ctx the connection obtained from borrow()
+     */
+    void invalidate(DirContext ctx) {
+        synchronized (this) {
+            leased.remove(ctx);
+        }
+        closeQuietly(ctx);
+    }
+
+    /**
+     * Close all idle connections.  Leased connections are closed as they are returned.
+     */
+    void close() {
+        Deque<PooledConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            idle.clear();
+        }
+        for (PooledConnection pc : toClose) {
+            closeQuietly(pc.ctx);
+        }
+    }
+
+    /**
+     * @param e the failure
+     * @return true if the failure means the connection itself can no longer be trusted
+     */
+    static boolean isConnectionFailure(NamingException e) {
+        // An interrupted request is abandoned with its reply still to come, so the connection is out of step.
+        return e instanceof CommunicationException || e instanceof ServiceUnavailableException
+                || e instanceof InterruptedNamingException;
+    }
+
+    private synchronized PooledConnection pollIdle() {
+        return closed ? null : idle.poll();
+    }
+
+    private boolean isAlive(DirContext ctx) {
+        try {
+            ctx.getAttributes("", LIVENESS_ATTRS);
+            return true;
+        } catch (NamingException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(DirContext ctx) {
+        try {
+            ctx.close();
+        } catch (Throwable t) {
+            // ignore
+        }
+    }
+
+    /**
+     * Book-keeping for a single pooled connection.
+     */
+    private static class PooledConnection {
+        final DirContext ctx;
+        final long created;
+        long lastUsed;
+
+        PooledConnection(DirContext ctx) {
+            this.ctx = ctx;
+            this.created = System.currentTimeMillis();
+            this.lastUsed = this.created;
+        }
+    }
+}
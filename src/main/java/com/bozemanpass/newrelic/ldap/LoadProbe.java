@@ -0,0 +1,229 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.DaemonThreadFactory;
+import com.bozemanpass.newrelic.ldap.util.LatencyHistogram;
+import com.newrelic.metrics.publish.Agent;
+import com.newrelic.metrics.publish.util.Logger;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures throughput under load: once every interval, the configured operations are run back to back
+ * from several connections at once for a short, fixed window.  The results of the latest run are
+ * published by the next poll cycle under LDAP/TimedOps/Load.
+ * <p>
+ * Concurrency, duration and frequency are capped so that a misconfiguration cannot turn the monitor
+ * into a load test of a production server.
+ */
+class LoadProbe {
+    private static final Logger log = Logger.getLogger(LoadProbe.class);
+
+    static final int MAX_CONCURRENCY = 16;
+    static final long MAX_DURATION = 30000;
+    static final long MIN_INTERVAL = 60000;
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final String opsPerSecName;
+    private final String p50Name;
+    private final String p90Name;
+    private final String p99Name;
+    private final String maxName;
+    private final String countName;
+    private final String errorsName;
+    private final String concurrencyName;
+
+    private final LdapConnectionPool.Connector connector;
+    private final List<Probe> operations;
+    private final int concurrency;
+    private final long duration;
+    private final long interval;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers;
+
+    private Result latest = null;
+
+    /**
+     * @param metricPrefix the metric name prefix, eg LDAP/TimedOps/Load
+     * @param connector    opens the connections, which are closed after each run
+     * @param operations   the operations each connection cycles through; their own metrics are not published
+     * @param concurrency  the number of connections, capped at MAX_CONCURRENCY
+     * @param duration     how long each run lasts (ms), capped at MAX_DURATION
+     * @param interval     the time between runs (ms), at least MIN_INTERVAL
+     */
+    LoadProbe(String metricPrefix, LdapConnectionPool.Connector connector, List<Probe> operations,
+              int concurrency, long duration, long interval) {
+        this.opsPerSecName = metricPrefix + "/OpsPerSec";
+        this.p50Name = metricPrefix + "/P50";
+        this.p90Name = metricPrefix + "/P90";
+        this.p99Name = metricPrefix + "/P99";
+        this.maxName = metricPrefix + "/Max";
+        this.countName = metricPrefix + "/Count";
+        this.errorsName = metricPrefix + "/Errors";
+        this.concurrencyName = metricPrefix + "/Concurrency";
+
+        this.connector = connector;
+        this.operations = new ArrayList<>(operations);
+        this.concurrency = Math.max(1, Math.min(MAX_CONCURRENCY, concurrency));
+        this.duration = Math.max(1000, Math.min(MAX_DURATION, duration));
+        this.interval = Math.max(MIN_INTERVAL, interval);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ldap-load"));
+        this.workers = Executors.newFixedThreadPool(this.concurrency, new DaemonThreadFactory("ldap-load-worker"));
+    }
+
+    /**
+     * Start running in the background.  The first run waits one interval, so that starting the
+     * plugin does not immediately put load on the server.
+     */
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::runOnce, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop running.
+     */
+    void close() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Run the operations from every connection for one window.
+     */
+    void runOnce() {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
+
+        long start = System.nanoTime();
+        List<Future<?>> running = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            final int offset = i;
+            running.add(workers.submit(() -> work(offset, deadline, latencies, errors)));
+        }
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.debug(String.format("Load worker failed: %s", e));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        synchronized (this) {
+            latest = new Result(latencies, errors.get(), elapsed);
+        }
+    }
+
+    private void work(int offset, long deadline, LatencyHistogram latencies, AtomicLong errors) {
+        DirContext ctx;
+        try {
+            ctx = connector.connect();
+        } catch (NamingException e) {
+            errors.incrementAndGet();
+            return;
+        }
+
+        try {
+            // Stagger the starting operation so a mixed search/modify load is mixed across connections too.
+            int next = offset;
+            while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                Probe op = operations.get(next++ % operations.size());
+                long t0 = System.nanoTime();
+                try {
+                    op.execute(ctx);
+                    latencies.record(System.nanoTime() - t0);
+                } catch (NamingException e) {
+                    errors.incrementAndGet();
+                    if (LdapConnectionPool.isConnectionFailure(e)) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            try {
+                ctx.close();
+            } catch (NamingException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Publish the results of the latest run, if it has not been published yet.
+     *
+     * @param agent the agent to report through
+     */
+    void publish(Agent agent) {
+        Result result;
+        synchronized (this) {
+            result = latest;
+            latest = null;
+        }
+        if (null == result) {
+            return;
+        }
+
+        LatencyHistogram h = result.latencies;
+        agent.reportMetric(concurrencyName, "connections", concurrency);
+        agent.reportMetric(countName, "operations", h.getCount());
+        agent.reportMetric(errorsName, "errors", result.errors);
+        agent.reportMetric(opsPerSecName, "operations/sec", h.getCount() * 1e9 / result.elapsedNanos);
+        if (h.getCount() > 0) {
+            agent.reportMetric(p50Name, "milliseconds", h.getValueAtQuantile(0.50) / NANOS_PER_MILLI);
+            agent.reportMetric(p90Name, "milliseconds", h.getValueAtQuantile(0.90) / NANOS_PER_MILLI);
+            agent.reportMetric(p99Name, "milliseconds", h.getValueAtQuantile(0.99) / NANOS_PER_MILLI);
+            agent.reportMetric(maxName, "milliseconds", h.getMax() / NANOS_PER_MILLI);
+        }
+    }
+
+    /**
+     * The outcome of one run.
+     */
+    private static class Result {
+        final LatencyHistogram latencies;
+        final long errors;
+        final long elapsedNanos;
+
+        Result(LatencyHistogram latencies, long errors, long elapsedNanos) {
+            this.latencies = latencies;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+}
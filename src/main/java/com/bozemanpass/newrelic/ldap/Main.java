@@ -23,19 +23,141 @@
 
 package com.bozemanpass.newrelic.ldap;
 
+import com.bozemanpass.newrelic.ldap.util.MetricSpool;
 import com.newrelic.metrics.publish.Runner;
+import com.newrelic.metrics.publish.configuration.Config;
 import com.newrelic.metrics.publish.configuration.ConfigurationException;
 
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 public class Main {
+    private static final int DEFAULT_SCHEDULER_THREADS = 8;
+    // The SDK reports once a minute, and does not make that configurable.
+    private static final long DEFAULT_SCHEDULER_INTERVAL = TimeUnit.SECONDS.toMillis(60);
+    private static final long DEFAULT_REPLAY_MAX_AGE = 86400000;
+    private static final int DEFAULT_PROMETHEUS_PORT = 9464;
+    private static final String DEFAULT_PROMETHEUS_PREFIX = "ldap_";
+    private static final String DEFAULT_STATSD_HOST = "localhost";
+    private static final int DEFAULT_STATSD_PORT = 8125;
+    private static final String DEFAULT_STATSD_PREFIX = "ldap";
 
     public static void main(String[] args) {
+        if (args.length > 0 && "--replay-spool".equals(args[0])) {
+            System.exit(replaySpool(args));
+        }
+
         try {
             Runner runner = new Runner();
-            runner.add(new LdapAgentFactory());
+            Map<String, Object> sinkConfig = Config.getValue("sinks");
+            if (null == sinkConfig) {
+                sinkConfig = Collections.emptyMap();
+            }
+            Boolean b = (Boolean) sinkConfig.get("newrelic");
+            runner.add(new LdapAgentFactory(createScheduler(), createSinks(sinkConfig), null != b ? b : true));
             runner.setupAndRun();
         } catch (ConfigurationException e) {
             System.err.println("ERROR: " + e.getMessage());
             System.exit(-1);
         }
     }
+
+    /**
+     * Write out the records in a metric spool up to a maximum age, oldest first, one per line as
+     * epoch millis, name and value separated by tabs.  The spool is only read, so this is safe to run while
+     * the plugin is writing to it.
+     * <p>
+     * Usage: --replay-spool &lt;spool file&gt; [max age in ms]
+     *
+     * @return the exit status
+     */
+    private static int replaySpool(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: --replay-spool <spool file> [max age in ms]");
+            return -1;
+        }
+        File file = new File(args[1]);
+        if (!file.isFile()) {
+            System.err.println("ERROR: No spool at " + file);
+            return -1;
+        }
+        long maxAge = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_REPLAY_MAX_AGE;
+
+        try (MetricSpool spool = MetricSpool.openReadOnly(file)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+            spool.replay(maxAge, (timestamp, name, value) ->
+                    out.append(Long.toString(timestamp)).append('\t').append(name).append('\t')
+                            .append(Double.toString(value)).append('\n'));
+            out.flush();
+            return 0;
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * @return the sinks turned on in the top level "sinks" section of plugin.json
+     * @throws ConfigurationException if a sink cannot be started
+     */
+    private static List<MetricSink.Provider> createSinks(Map<String, Object> config) throws ConfigurationException {
+        List<MetricSink.Provider> sinks = new ArrayList<>();
+        try {
+            Map<String, Object> jo = (Map<String, Object>) config.get("prometheus");
+            Boolean b = null != jo ? (Boolean) jo.get("enabled") : null;
+            if (null != b && b) {
+                String host = (String) jo.get("host");
+                Long i = (Long) jo.get("port");
+                String prefix = (String) jo.get("prefix");
+                sinks.add(new PrometheusExporter(null != host && !host.isEmpty() ? host : null,
+                        null != i ? i.intValue() : DEFAULT_PROMETHEUS_PORT,
+                        null != prefix ? prefix : DEFAULT_PROMETHEUS_PREFIX));
+            }
+
+            jo = (Map<String, Object>) config.get("statsd");
+            b = null != jo ? (Boolean) jo.get("enabled") : null;
+            if (null != b && b) {
+                String host = (String) jo.get("host");
+                Long i = (Long) jo.get("port");
+                String prefix = (String) jo.get("prefix");
+                b = (Boolean) jo.get("tags");
+                sinks.add(new StatsdSink(null != host && !host.isEmpty() ? host : DEFAULT_STATSD_HOST,
+                        null != i ? i.intValue() : DEFAULT_STATSD_PORT,
+                        null != prefix ? prefix : DEFAULT_STATSD_PREFIX, null != b ? b : false));
+            }
+        } catch (IOException e) {
+            throw new ConfigurationException(e);
+        }
+        return sinks;
+    }
+
+    /**
+     * @return a scheduler to poll the agents concurrently, if the top level "scheduler" section of plugin.json
+     * asks for one, or else null to leave the polling to the Runner
+     */
+    private static AgentScheduler createScheduler() {
+        Map<String, Object> config = Config.getValue("scheduler");
+        if (null == config) {
+            return null;
+        }
+
+        Boolean b = (Boolean) config.get("concurrent");
+        if (null == b || !b) {
+            return null;
+        }
+
+        Long i = (Long) config.get("threads");
+        int threads = null != i ? Math.max(1, i.intValue()) : DEFAULT_SCHEDULER_THREADS;
+
+        b = (Boolean) config.get("stagger");
+        boolean stagger = null != b ? b : true;
+
+        i = (Long) config.get("interval");
+        long interval = Math.max(1000, null != i ? i : DEFAULT_SCHEDULER_INTERVAL);
+        return new AgentScheduler(interval, threads, stagger);
+    }
 }
\ No newline at end of file
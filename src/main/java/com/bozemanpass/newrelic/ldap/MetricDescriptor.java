@@ -0,0 +1,108 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+/**
+ * A metric with its final published names and units worked out up front.
+ * <p>
+ * A counter is published twice, as name/Rate in unit/sec and as name/Count in unit; a gauge is
+ * published once, as name in unit.
+ */
+class MetricDescriptor {
+    private static final String COUNT_SUFFIX = "/Count";
+    private static final String RATE_SUFFIX = "/Rate";
+    private static final String RATE_UNIT_SUFFIX = "/sec";
+
+    final String ldapAttr;
+    final String name;
+    final String unit;
+    final boolean counter;
+    final String rateName;
+    final String rateUnit;
+    final String countName;
+    final RateEngine.Handle rate;
+    final int slot;
+    final String dbFile;
+    final MetricLabels labels;
+    final MetricDescriptor other;
+
+    /**
+     * @param ldapAttr the lower case attribute the value is read from
+     * @param name     the full metric name, without any Rate/Count suffix
+     * @param unit     the unit
+     * @param counter  true for a counter, false for a gauge
+     * @param slot     the index of this descriptor in its table, used for per-metric state
+     */
+    MetricDescriptor(String ldapAttr, String name, String unit, boolean counter, int slot) {
+        this(ldapAttr, name, unit, counter, false, slot, null, MetricLabels.NONE, null);
+    }
+
+    /**
+     * @param ldapAttr  the lower case attribute the value is read from
+     * @param name      the full metric name, without any Rate/Count suffix
+     * @param unit      the unit
+     * @param counter   true for a counter, false for a gauge
+     * @param counter32 true for a counter that is 32 bits wide and can wrap
+     * @param slot      the index of this descriptor in its table, used for per-metric state
+     */
+    MetricDescriptor(String ldapAttr, String name, String unit, boolean counter, boolean counter32, int slot) {
+        this(ldapAttr, name, unit, counter, counter32, slot, null, MetricLabels.NONE, null);
+    }
+
+    /**
+     * @param ldapAttr the lower case attribute the value is read from
+     * @param name     the full metric name, without any Rate/Count suffix
+     * @param unit     the unit
+     * @param counter  true for a counter, false for a gauge
+     * @param slot     the index of this descriptor in its table, used for per-metric state
+     * @param dbFile   the db file a per-file backend metric belongs to, or null
+     * @param labels   the backend and db file, for the sinks
+     * @param other    the metric a per-file backend metric is rolled into when its file is not reported on its own
+     */
+    MetricDescriptor(String ldapAttr, String name, String unit, boolean counter, int slot, String dbFile,
+                     MetricLabels labels, MetricDescriptor other) {
+        this(ldapAttr, name, unit, counter, false, slot, dbFile, labels, other);
+    }
+
+    private MetricDescriptor(String ldapAttr, String name, String unit, boolean counter, boolean counter32, int slot,
+                             String dbFile, MetricLabels labels, MetricDescriptor other) {
+        this.ldapAttr = ldapAttr;
+        this.name = name;
+        this.unit = unit;
+        this.counter = counter;
+        this.rateName = counter ? name + RATE_SUFFIX : null;
+        this.rateUnit = counter ? unit + RATE_UNIT_SUFFIX : null;
+        this.countName = counter ? name + COUNT_SUFFIX : null;
+        this.rate = counter ? new RateEngine.Handle(name, counter32) : null;
+        this.slot = slot;
+        this.dbFile = dbFile;
+        this.labels = labels;
+        this.other = other;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + unit + "]";
+    }
+}
@@ -0,0 +1,102 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import java.util.Arrays;
+
+/**
+ * The segments of a metric name that a sink can carry as labels or tags instead, eg the backend and db file of
+ * Backend/userRoot/DB Cache/cn.db/Hits/Rate, or the client address of LDAP/Clients/ByAddress/10.1.1.1/Connections.
+ * <p>
+ * Labels are immutable, so the agent works them out once and passes the same instance with every metric they
+ * belong to.
+ */
+final class MetricLabels {
+    static final MetricLabels NONE = new MetricLabels(new String[0], new String[0]);
+
+    static final String BACKEND = "backend";
+    static final String DB_FILE = "dbfile";
+    static final String CLIENT = "client";
+    static final String BIND_DN = "binddn";
+    static final String AGREEMENT = "agreement";
+
+    private final String[] names;
+    private final String[] values;
+
+    private MetricLabels(String[] names, String[] values) {
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * @param name  the label name
+     * @param value the metric name segment it stands for, or null for none
+     */
+    static MetricLabels of(String name, String value) {
+        return NONE.with(name, value);
+    }
+
+    /**
+     * @param name  the label name
+     * @param value the metric name segment it stands for, or null for none
+     * @return these labels with one more, or these labels if the value is null
+     */
+    MetricLabels with(String name, String value) {
+        if (null == value) {
+            return this;
+        }
+        String[] n = Arrays.copyOf(names, names.length + 1);
+        String[] v = Arrays.copyOf(values, values.length + 1);
+        n[names.length] = name;
+        v[values.length] = value;
+        return new MetricLabels(n, v);
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String name(int idx) {
+        return names[idx];
+    }
+
+    String value(int idx) {
+        return values[idx];
+    }
+
+    /**
+     * Take the labelled segments out of a metric name, eg Backend/userRoot/DB Cache/cn.db/Hits/Rate becomes
+     * Backend/DB Cache/Hits/Rate.
+     */
+    String genericName(String metricName) {
+        String ret = metricName;
+        for (String segment : values) {
+            int at = ret.indexOf("/" + segment + "/");
+            if (at >= 0) {
+                ret = ret.substring(0, at) + ret.substring(at + segment.length() + 1);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,53 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+/**
+ * Somewhere other than New Relic to send an agent's metrics.
+ * <p>
+ * A sink is called on the agent's poll thread with every value the agent reports, and then once at the end
+ * of the cycle.  It must not block for long, since that would hold up the poll.
+ */
+interface MetricSink {
+
+    /**
+     * Creates the sink for each agent.
+     */
+    interface Provider {
+        MetricSink forAgent(String agentName);
+    }
+
+    /**
+     * @param name   the full metric name, eg Backend/userRoot/DB Cache/cn.db/Hits/Rate
+     * @param unit   the unit
+     * @param value  the value
+     * @param labels the segments of the name the sink may carry as labels or tags instead
+     */
+    void report(String name, String unit, double value, MetricLabels labels);
+
+    /**
+     * The end of the agent's poll cycle; everything it found has been reported.
+     */
+    void endCycle();
+}
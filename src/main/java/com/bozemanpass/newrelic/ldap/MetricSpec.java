@@ -0,0 +1,82 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.newrelic.metrics.publish.configuration.ConfigurationException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One "name;unit" metric specification from the plugin configuration, for a single LDAP attribute.
+ */
+class MetricSpec {
+    final String ldapAttr;
+    final String metric;
+    final String unit;
+
+    MetricSpec(String ldapAttr, String metric, String unit) {
+        this.ldapAttr = ldapAttr;
+        this.metric = metric;
+        this.unit = unit;
+    }
+
+    /**
+     * Parse out all the metric specifications in one section of the configuration.
+     *
+     * @param section the configuration section, eg ldap.counters, used in error messages
+     * @param input   the metric specifications as a map of attribute name to "name;unit", may be null
+     * @return the specs, keyed by lower case attribute name
+     * @throws ConfigurationException if any specification is malformed
+     */
+    static Map<String, MetricSpec> parseAll(String section, Map<String, ?> input) throws ConfigurationException {
+        if (null == input) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, MetricSpec> ret = new HashMap<>();
+        for (Map.Entry<String, ?> entry : input.entrySet()) {
+            String key = entry.getKey().toLowerCase();
+            Object value = entry.getValue();
+            if (!(value instanceof String)) {
+                throw new ConfigurationException(String.format(
+                        "Invalid metric spec for %s.%s: expected a \"name;unit\" string but found %s",
+                        section, entry.getKey(), value));
+            }
+
+            String[] parts = ((String) value).split(";", 2);
+            if (parts.length != 2 || parts[0].isEmpty() || parts[1].isEmpty()) {
+                throw new ConfigurationException(String.format(
+                        "Invalid metric spec for %s.%s: \"%s\" (expected \"name;unit\")",
+                        section, entry.getKey(), value));
+            }
+            if (null != ret.put(key, new MetricSpec(key, parts[0], parts[1]))) {
+                throw new ConfigurationException(String.format(
+                        "Duplicate metric spec for %s.%s", section, entry.getKey()));
+            }
+        }
+        return Collections.unmodifiableMap(ret);
+    }
+}
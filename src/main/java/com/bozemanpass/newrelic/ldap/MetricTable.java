@@ -0,0 +1,217 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.Numbers;
+import com.newrelic.metrics.publish.Agent;
+import com.newrelic.metrics.publish.util.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import java.util.*;
+
+/**
+ * The compiled counters and gauges for one group of metrics read off fixed monitor entries, such as
+ * the LDAP/ or Database/ metrics.
+ * <p>
+ * Everything about a metric except its value is worked out once at startup, so a poll cycle only has
+ * to fill in a {@link Batch} and walk the descriptors to publish it.
+ */
+class MetricTable {
+    private static final Logger log = Logger.getLogger(MetricTable.class);
+
+    private final MetricDescriptor[] descriptors;
+    private final Map<String, MetricDescriptor> byAttr;
+
+    private MetricTable(MetricDescriptor[] descriptors) {
+        this.descriptors = descriptors;
+        this.byAttr = new HashMap<>();
+        for (MetricDescriptor d : descriptors) {
+            byAttr.put(d.ldapAttr, d);
+        }
+    }
+
+    /**
+     * @param prefix   the metric name prefix, eg LDAP
+     * @param counters the counter specs
+     * @param gauges   the gauge specs
+     * @return the compiled table, with metrics in name order
+     */
+    static MetricTable compile(String prefix, Map<String, MetricSpec> counters, Map<String, MetricSpec> gauges) {
+        return compile(prefix, counters, gauges, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param prefix    the metric name prefix, eg LDAP
+     * @param counters  the counter specs
+     * @param gauges    the gauge specs
+     * @param counter32 the lower case attributes whose counters are 32 bits wide and can wrap
+     * @return the compiled table, with metrics in name order
+     */
+    static MetricTable compile(String prefix, Map<String, MetricSpec> counters, Map<String, MetricSpec> gauges,
+                               Set<String> counter32) {
+        List<MetricSpec> specs = new ArrayList<>(counters.values());
+        for (MetricSpec spec : gauges.values()) {
+            if (!counters.containsKey(spec.ldapAttr)) {
+                specs.add(spec);
+            }
+        }
+        specs.sort(Comparator.comparing(spec -> spec.metric));
+
+        MetricDescriptor[] descriptors = new MetricDescriptor[specs.size()];
+        for (int i = 0; i < descriptors.length; i++) {
+            MetricSpec spec = specs.get(i);
+            descriptors[i] = new MetricDescriptor(spec.ldapAttr, prefix + "/" + spec.metric, spec.unit,
+                    counters.containsKey(spec.ldapAttr), counter32.contains(spec.ldapAttr), i);
+        }
+        return new MetricTable(descriptors);
+    }
+
+    /**
+     * @return the attributes this table reads
+     */
+    Set<String> attributes() {
+        return Collections.unmodifiableSet(byAttr.keySet());
+    }
+
+    /**
+     * @return the descriptors, indexed by slot
+     */
+    MetricDescriptor[] descriptors() {
+        return descriptors.clone();
+    }
+
+    /**
+     * @param ldapAttr the lower case attribute name
+     * @return the descriptor for the attribute, or null if it is not configured
+     */
+    MetricDescriptor get(String ldapAttr) {
+        return byAttr.get(ldapAttr);
+    }
+
+    /**
+     * @return an empty batch of values for this table
+     */
+    Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * The values read for a table during one poll cycle.
+     */
+    class Batch {
+        private final long[] values = new long[descriptors.length];
+        private final boolean[] present = new boolean[descriptors.length];
+        private int skipped = 0;
+
+        /**
+         * Record the value of every configured attribute on a monitor entry.
+         *
+         * @param entry the attributes of the monitor entry, may be null if it could not be read
+         * @throws NamingException
+         */
+        void read(Attributes entry) throws NamingException {
+            if (null == entry) {
+                return;
+            }
+            NamingEnumeration<? extends Attribute> attrs = entry.getAll();
+            while (attrs.hasMore()) {
+                Attribute attr = attrs.next();
+                MetricDescriptor d = byAttr.get(attr.getID().toLowerCase());
+                if (null != d) {
+                    read(d, attr);
+                }
+            }
+        }
+
+        /**
+         * Record the value of a single configured attribute.
+         *
+         * @param d    the descriptor of the metric
+         * @param attr the attribute, may be null if it was not returned
+         * @throws NamingException
+         */
+        void read(MetricDescriptor d, Attribute attr) throws NamingException {
+            // These are all single-valued, numeric attributes
+            Object value = null != attr ? attr.get() : null;
+            if (null == value) {
+                return;
+            }
+            try {
+                values[d.slot] = Numbers.parseLong(value);
+                present[d.slot] = true;
+            } catch (NumberFormatException e) {
+                log.warn(String.format("Forced to skip attribute: %s", attr.getID()));
+                skipped++;
+            }
+        }
+
+        /**
+         * @return the number of attributes that could not be parsed
+         */
+        int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @param slot the slot of the metric
+         * @return true if a value was read for the metric
+         */
+        boolean has(int slot) {
+            return present[slot];
+        }
+
+        /**
+         * @param slot the slot of the metric
+         * @return the value read for the metric, or 0 if none was
+         */
+        long get(int slot) {
+            return values[slot];
+        }
+
+        /**
+         * Publish every value that was read.
+         *
+         * @param agent the agent to report through
+         * @param rates the rate engine for counters
+         * @param now   when the values were read, in milliseconds on a monotonic clock
+         */
+        void publish(Agent agent, RateEngine rates, long now) {
+            for (MetricDescriptor d : descriptors) {
+                if (!present[d.slot]) {
+                    continue;
+                }
+                Long val = values[d.slot];
+                if (d.counter) {
+                    agent.reportMetric(d.rateName, d.rateUnit, rates.process(d.rate, val, now));
+                    agent.reportMetric(d.countName, d.unit, val);
+                } else {
+                    agent.reportMetric(d.name, d.unit, val);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import java.util.Date;
+
+/**
+ * Times a replace of a single attribute on an entry.
+ */
+class ModifyProbe extends Probe {
+    private final String dn;
+    private final String attribute;
+
+    /**
+     * @param name         the probe name, for logging
+     * @param metricPrefix the metric name prefix, eg LDAP/TimedOps/Modify
+     * @param dn           the entry to modify
+     * @param attribute    the attribute to replace
+     */
+    ModifyProbe(String name, String metricPrefix, String dn, String attribute) {
+        super(name, metricPrefix);
+        this.dn = dn;
+        this.attribute = attribute;
+    }
+
+    @Override
+    void execute(DirContext ctx) throws NamingException {
+        ModificationItem mod = new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                new BasicAttribute(attribute, "New Relic " + new Date().toString()));
+        ctx.modifyAttributes(dn, new ModificationItem[]{mod});
+    }
+}
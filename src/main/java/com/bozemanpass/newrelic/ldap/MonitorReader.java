@@ -0,0 +1,275 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import java.util.*;
+
+/**
+ * Reads the monitor entries for a poll cycle in as few round trips as possible.
+ * <p>
+ * Rather than a lookup and a full attribute read per entry, cn=monitor and cn=snmp,cn=monitor are fetched
+ * with one search, the database monitor with one base read, and all of the backend monitor entries
+ * with one search under the ldbm database plugin.  Every request names the attributes it wants, built
+ * from the configured metric specs.
+ * <p>
+ * The per-file attributes on the backend monitor entries (dbfilecachehit-15, ...) cannot be requested
+ * by prefix, so the first backend read asks for everything, remembers which attributes matched, and
+ * asks for exactly those until the cache expires.  The list of backend monitor DNs from cn=monitor is
+ * cached with the same TTL.  The layout is only learned from a read in which every backend answered, and
+ * it also asks for the next dbfilename-N after the last one seen, so an index added since is noticed on the
+ * next read and the layout learned again rather than its metrics going missing until the cache expires.
+ */
+public class MonitorReader {
+    private static final Logger log = Logger.getLogger(MonitorReader.class);
+
+    static final String MONITOR_DN = "cn=monitor";
+    static final String SNMP_DN = "cn=snmp,cn=monitor";
+    static final String LDBM_DN = "cn=ldbm database,cn=plugins,cn=config";
+    static final String DB_MONITOR_DN = "cn=database,cn=monitor," + LDBM_DN;
+    static final String BACKENDMONITOR_ATTR = "backendmonitordn";
+    static final String DBFILENAME_ATTR = "dbfilename";
+    static final String READWAITERS_ATTR = "readwaiters";
+
+    private static final String MONITOR_FILTER = "(|(cn=monitor)(cn=snmp))";
+    private static final String BACKEND_FILTER = "(cn=monitor)";
+    private static final String ALL_ATTRS = "*";
+
+    private final String[] mainAttrs;
+    private final String[] mainAttrsWithBackends;
+    private final String[] ldbmAttrs;
+    private final Set<String> backendKeys;
+    private final long cacheTtl;
+    private final int timeout;
+
+    private List<String> backendDNs = Collections.emptyList();
+    private String[] backendAttrs = null;
+    private int nextDbFile = 0;
+    private long cacheExpires = 0;
+
+    /**
+     * @param mainKeys    the attributes wanted from cn=monitor and cn=snmp,cn=monitor
+     * @param ldbmKeys    the attributes wanted from the database monitor
+     * @param backendKeys the attributes wanted from the backend monitors, without any -N suffix
+     * @param cacheTtl    how long to trust the backend DN list and attribute layout (ms)
+     * @param timeout     the server side time limit for each search (ms)
+     */
+    MonitorReader(Collection<String> mainKeys, Collection<String> ldbmKeys, Collection<String> backendKeys,
+                  long cacheTtl, int timeout) {
+        this.mainAttrs = mainKeys.toArray(new String[0]);
+        Set<String> withBackends = new LinkedHashSet<>(mainKeys);
+        withBackends.add(BACKENDMONITOR_ATTR);
+        this.mainAttrsWithBackends = withBackends.toArray(new String[0]);
+        this.ldbmAttrs = ldbmKeys.toArray(new String[0]);
+        this.backendKeys = new HashSet<>();
+        for (String key : backendKeys) {
+            this.backendKeys.add(key.toLowerCase());
+        }
+        this.cacheTtl = cacheTtl;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Read cn=monitor and cn=snmp,cn=monitor with a single search, refreshing the cached list of
+     * backend monitor DNs if asked to and it has expired.
+     */
+    void readMain(DirContext ctx, MonitorSnapshot snapshot, boolean refreshBackends) throws NamingException {
+        boolean refresh = refreshBackends && System.currentTimeMillis() >= cacheExpires;
+        search(ctx, MONITOR_DN, SearchControls.SUBTREE_SCOPE, MONITOR_FILTER,
+                refresh ? mainAttrsWithBackends : mainAttrs, snapshot);
+
+        if (refresh) {
+            Attributes monitor = snapshot.get(MONITOR_DN);
+            Attribute attr = null != monitor ? monitor.get(BACKENDMONITOR_ATTR) : null;
+            List<String> dns = new ArrayList<>();
+            if (null != attr) {
+                NamingEnumeration values = attr.getAll();
+                while (values.hasMore()) {
+                    dns.add(values.next().toString());
+                }
+            }
+            synchronized (this) {
+                backendDNs = Collections.unmodifiableList(dns);
+                backendAttrs = null;
+            }
+            cacheExpires = System.currentTimeMillis() + cacheTtl;
+        }
+    }
+
+    /**
+     * Read the database monitor entry.
+     */
+    void readLdbm(DirContext ctx, MonitorSnapshot snapshot) throws NamingException {
+        if (0 == ldbmAttrs.length) {
+            return;
+        }
+        snapshot.put(DB_MONITOR_DN, ctx.getAttributes(DB_MONITOR_DN, ldbmAttrs));
+    }
+
+    /**
+     * Read all backend monitor entries with one search.  Any backend that lives outside the ldbm
+     * database plugin is read on its own.
+     */
+    void readBackends(DirContext ctx, MonitorSnapshot snapshot) throws NamingException {
+        if (backendDNs.isEmpty()) {
+            return;
+        }
+
+        String[] attrs = getBackendAttrs();
+        search(ctx, LDBM_DN, SearchControls.SUBTREE_SCOPE, BACKEND_FILTER, attrs, snapshot);
+
+        List<Attributes> entries = new ArrayList<>(backendDNs.size());
+        for (String dn : backendDNs) {
+            if (!snapshot.contains(dn)) {
+                snapshot.put(dn, readBackend(ctx, dn, attrs));
+            }
+            Attributes entry = snapshot.get(dn);
+            checkBackendLayout(entry);
+            entries.add(entry);
+        }
+        learnBackendLayout(entries);
+    }
+
+    /**
+     * Read a single backend monitor entry.
+     *
+     * @param ctx   the LDAP connection
+     * @param dn    the DN of the backend monitor entry
+     * @param attrs the attributes to request, from getBackendAttrs()
+     * @return the attributes of the entry
+     * @throws NamingException
+     */
+    Attributes readBackend(DirContext ctx, String dn, String[] attrs) throws NamingException {
+        return ctx.getAttributes(dn, attrs);
+    }
+
+    /**
+     * @return the attributes to request from the backend monitor entries; everything if the layout is not known yet
+     */
+    synchronized String[] getBackendAttrs() {
+        return null != backendAttrs ? backendAttrs : new String[]{ALL_ATTRS};
+    }
+
+    /**
+     * Remember which attributes on the backend monitor entries we actually want, if not already known.
+     *
+     * @param entries backend monitor entries read with all attributes, with null for any that could not be
+     *                read, in which case nothing is learned and the next read asks for everything again
+     * @throws NamingException
+     */
+    synchronized void learnBackendLayout(Collection<Attributes> entries) throws NamingException {
+        if (null != backendAttrs || entries.contains(null)) {
+            return;
+        }
+
+        Set<String> wanted = new LinkedHashSet<>(backendKeys);
+        int dbFiles = 0;
+        for (Attributes entry : entries) {
+            NamingEnumeration<String> ids = entry.getIDs();
+            while (ids.hasMore()) {
+                String id = ids.next();
+                String shortName = id.toLowerCase().split("-", 2)[0];
+                if (backendKeys.contains(shortName) || DBFILENAME_ATTR.equals(shortName)) {
+                    wanted.add(id);
+                }
+                dbFiles = Math.max(dbFiles, dbFileIndex(id) + 1);
+            }
+        }
+        wanted.add(DBFILENAME_ATTR + "-" + dbFiles);
+        nextDbFile = dbFiles;
+        backendAttrs = wanted.toArray(new String[0]);
+        log.debug(String.format("Backend monitor layout: %d attributes over %d backends",
+                backendAttrs.length, entries.size()));
+    }
+
+    /**
+     * Forget the learned layout if a backend monitor entry has a dbfilename-N beyond it, meaning an index
+     * was added, so the next read asks for everything again.
+     *
+     * @param entry a backend monitor entry, or null
+     * @throws NamingException
+     */
+    synchronized void checkBackendLayout(Attributes entry) throws NamingException {
+        if (null == backendAttrs || null == entry) {
+            return;
+        }
+        NamingEnumeration<String> ids = entry.getIDs();
+        while (ids.hasMore()) {
+            if (dbFileIndex(ids.next()) >= nextDbFile) {
+                backendAttrs = null;
+                log.debug("Backend monitor layout changed, reading all attributes again");
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return N for a dbfilename-N attribute, or -1 for any other attribute
+     */
+    private static int dbFileIndex(String id) {
+        int dash = id.indexOf('-');
+        if (dash != DBFILENAME_ATTR.length() || !id.regionMatches(true, 0, DBFILENAME_ATTR, 0, dash)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(id.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the cached DNs of the backend monitor entries
+     */
+    synchronized List<String> getBackendDNs() {
+        return backendDNs;
+    }
+
+    private void search(DirContext ctx, String base, int scope, String filter, String[] attrs,
+                        MonitorSnapshot snapshot) throws NamingException {
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(scope);
+        ctls.setReturningAttributes(attrs);
+        ctls.setReturningObjFlag(false);
+        ctls.setTimeLimit(timeout);
+
+        NamingEnumeration<SearchResult> results = ctx.search(base, filter, ctls);
+        try {
+            while (results.hasMore()) {
+                SearchResult result = results.next();
+                snapshot.put(result.getNameInNamespace(), result.getAttributes());
+            }
+        } finally {
+            results.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import javax.naming.directory.Attributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The monitor entries read during a single poll cycle, keyed by normalized DN.
+ */
+public class MonitorSnapshot {
+    private final Map<String, Attributes> entries = new HashMap<>();
+
+    void put(String dn, Attributes attrs) {
+        entries.put(normalizeDn(dn), attrs);
+    }
+
+    /**
+     * @param dn the DN of the entry
+     * @return the attributes read for the entry, or null if it was not read
+     */
+    Attributes get(String dn) {
+        return entries.get(normalizeDn(dn));
+    }
+
+    boolean contains(String dn) {
+        return entries.containsKey(normalizeDn(dn));
+    }
+
+    /**
+     * Lower-case a DN and drop any whitespace around the ',' and '=' separators, which is enough to
+     * compare the DNs 389DS hands back with the ones we ask for.
+     *
+     * @param dn the DN
+     * @return the normalized DN
+     */
+    static String normalizeDn(String dn) {
+        StringBuilder sb = new StringBuilder(dn.length());
+        boolean afterSeparator = false;
+        for (int i = 0; i < dn.length(); i++) {
+            char c = dn.charAt(i);
+            if (',' == c || '=' == c) {
+                int end = sb.length();
+                while (end > 0 && ' ' == sb.charAt(end - 1)) {
+                    end--;
+                }
+                sb.setLength(end);
+                sb.append(c);
+                afterSeparator = true;
+            } else if (' ' == c && afterSeparator) {
+                continue;
+            } else {
+                sb.append(Character.toLowerCase(c));
+                afterSeparator = false;
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,148 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.LatencyHistogram;
+import com.newrelic.metrics.publish.Agent;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A timed LDAP operation, run repeatedly by the {@link ProbeScheduler}, whose latencies are collected
+ * in a histogram and published as percentiles once per poll cycle.
+ */
+abstract class Probe {
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final String name;
+    private final String timeName;
+    private final String p50Name;
+    private final String p90Name;
+    private final String p99Name;
+    private final String maxName;
+    private final String countName;
+    private final String errorsName;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * @param name         the probe name, for logging
+     * @param metricPrefix the metric name prefix, eg LDAP/TimedOps/Search
+     */
+    Probe(String name, String metricPrefix) {
+        this.name = name;
+        this.timeName = metricPrefix + "/Time";
+        this.p50Name = metricPrefix + "/P50";
+        this.p90Name = metricPrefix + "/P90";
+        this.p99Name = metricPrefix + "/P99";
+        this.maxName = metricPrefix + "/Max";
+        this.countName = metricPrefix + "/Count";
+        this.errorsName = metricPrefix + "/Errors";
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Run the operation once and record how long it took.
+     *
+     * @param ctx the LDAP connection
+     * @throws NamingException if the operation failed, which is counted as an error
+     */
+    void run(DirContext ctx) throws NamingException {
+        long start = System.nanoTime();
+        try {
+            execute(ctx);
+        } catch (NamingException e) {
+            errors.incrementAndGet();
+            throw e;
+        }
+        latencies.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Perform the operation being timed.
+     *
+     * @param ctx the LDAP connection
+     * @throws NamingException
+     */
+    abstract void execute(DirContext ctx) throws NamingException;
+
+    /**
+     * Publish the latencies recorded since the last call, and start a new interval.
+     *
+     * @param agent the agent to report through
+     */
+    void publish(Agent agent) {
+        latencies.drainTo(interval);
+        long count = interval.getCount();
+        if (count > 0) {
+            agent.reportMetric(timeName, "milliseconds", interval.getMean() / NANOS_PER_MILLI);
+            agent.reportMetric(p50Name, "milliseconds", millis(interval.getValueAtQuantile(0.50)));
+            agent.reportMetric(p90Name, "milliseconds", millis(interval.getValueAtQuantile(0.90)));
+            agent.reportMetric(p99Name, "milliseconds", millis(interval.getValueAtQuantile(0.99)));
+            agent.reportMetric(maxName, "milliseconds", millis(interval.getMax()));
+        }
+        agent.reportMetric(countName, "operations", count);
+        agent.reportMetric(errorsName, "errors", errors.getAndSet(0));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * The latencies of one phase of an operation, published as name/Time (the mean) and name/P99.
+     */
+    static class Phase {
+        private final String timeName;
+        private final String p99Name;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LatencyHistogram interval = new LatencyHistogram();
+
+        /**
+         * @param metricName the metric name of the phase, eg LDAP/TimedOps/Search/FirstEntry
+         */
+        Phase(String metricName) {
+            this.timeName = metricName + "/Time";
+            this.p99Name = metricName + "/P99";
+        }
+
+        void record(long nanos) {
+            latencies.record(nanos);
+        }
+
+        void publish(Agent agent) {
+            latencies.drainTo(interval);
+            if (interval.getCount() > 0) {
+                agent.reportMetric(timeName, "milliseconds", interval.getMean() / NANOS_PER_MILLI);
+                agent.reportMetric(p99Name, "milliseconds", millis(interval.getValueAtQuantile(0.99)));
+            }
+        }
+    }
+}
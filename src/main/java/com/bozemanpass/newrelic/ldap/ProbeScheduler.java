@@ -0,0 +1,148 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.DaemonThreadFactory;
+import com.newrelic.metrics.publish.Agent;
+import com.newrelic.metrics.publish.util.Logger;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the timed operation probes in the background, one round of all probes every interval, over a
+ * connection of its own so the timings are not skewed by the poll cycle's own reads.
+ */
+class ProbeScheduler {
+    private static final Logger log = Logger.getLogger(ProbeScheduler.class);
+
+    private final List<Probe> probes;
+    private final LdapConnectionPool pool;
+    private final long interval;
+    private final AgentStats stats;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    /**
+     * @param probes   the probes to run
+     * @param pool     the scheduler's own connection pool
+     * @param interval the time between rounds (ms)
+     * @param stats    where to count unexpected errors
+     */
+    ProbeScheduler(List<Probe> probes, LdapConnectionPool pool, long interval, AgentStats stats) {
+        this.probes = new ArrayList<>(probes);
+        this.pool = pool;
+        this.interval = interval;
+        this.stats = stats;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ldap-probe"));
+    }
+
+    /**
+     * Start running the probes in the background.
+     */
+    void start() {
+        executor.scheduleAtFixedRate(this::runRound, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop running the probes and close the connection.
+     */
+    void close() {
+        executor.shutdownNow();
+        pool.close();
+    }
+
+    /**
+     * Run every probe once.  Nothing may escape, as that would cancel the scheduled task for good.
+     */
+    void runRound() {
+        long start = System.nanoTime();
+        try {
+            runProbes();
+        } catch (Throwable t) {
+            stats.error(t);
+            log.error(t, "Error running the timed operations");
+        } finally {
+            busyNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void runProbes() {
+        DirContext ctx;
+        try {
+            ctx = pool.borrow();
+        } catch (NamingException e) {
+            log.debug(String.format("Skipping probes, cannot connect: %s", e));
+            return;
+        }
+
+        // Anything other than a NamingException leaves the connection in an unknown state.
+        boolean reusable = false;
+        try {
+            boolean failed = false;
+            for (Probe probe : probes) {
+                try {
+                    probe.run(ctx);
+                } catch (NamingException e) {
+                    log.debug(String.format("Probe %s failed: %s", probe.getName(), e));
+                    if (LdapConnectionPool.isConnectionFailure(e)) {
+                        failed = true;
+                        break;
+                    }
+                }
+            }
+            reusable = !failed;
+        } finally {
+            if (reusable) {
+                pool.release(ctx);
+            } else {
+                pool.invalidate(ctx);
+            }
+        }
+    }
+
+    /**
+     * @return the time spent running probes since the last call
+     */
+    long takeBusyNanos() {
+        return busyNanos.getAndSet(0);
+    }
+
+    /**
+     * Publish every probe's results since the last call.
+     *
+     * @param agent the agent to report through
+     */
+    void publish(Agent agent) {
+        for (Probe probe : probes) {
+            probe.publish(agent);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.DaemonThreadFactory;
+import com.newrelic.metrics.publish.util.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the latest metrics of every agent at /metrics, in the Prometheus text format.
+ * <p>
+ * The page is encoded once, whenever an agent finishes a poll cycle, and each scrape just writes out the
+ * bytes, so any number of scrapers can read it without holding up the poll threads or each other.  The
+ * backend, db file, client address, bind DN and replication agreement in a metric name become labels,
+ * alongside the agent's name, so that each family has a fixed name and
+ * Backend/userRoot/DB Cache/cn.db/Hits/Rate is served as
+ * <pre>
+ *    ldap_backend_db_cache_hits_rate{agent="myldap",backend="userRoot",dbfile="cn.db"} 12.5
+ * </pre>
+ * Every metric is served as a gauge, since rates and counts have already been worked out.
+ */
+class PrometheusExporter implements MetricSink.Provider {
+    private static final Logger log = Logger.getLogger(PrometheusExporter.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final int THREADS = 2;
+
+    private final String prefix;
+    private final HttpServer server;
+    private final Map<String, List<Sample>> snapshots = new TreeMap<>();
+    private volatile byte[] page = new byte[0];
+
+    /**
+     * @param host   the address to listen on, or null for all
+     * @param port   the port to listen on
+     * @param prefix prepended to every metric name, unless the name already starts with it
+     * @throws IOException if the port cannot be opened
+     */
+    PrometheusExporter(String host, int port, String prefix) throws IOException {
+        this.prefix = prefix;
+        InetSocketAddress address = null != host ? new InetSocketAddress(host, port) : new InetSocketAddress(port);
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext("/metrics", this::serve);
+        this.server.setExecutor(Executors.newFixedThreadPool(THREADS, new DaemonThreadFactory("prometheus")));
+        this.server.start();
+        log.info("Serving Prometheus metrics at http://", address.getHostString(), ":", port, "/metrics");
+    }
+
+    @Override
+    public MetricSink forAgent(String agentName) {
+        return new AgentSink(agentName);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = page;
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Replace an agent's metrics with those from its latest cycle, and encode the page again.
+     */
+    private synchronized void update(String agentName, List<Sample> samples) {
+        snapshots.put(agentName, samples);
+
+        // The text format wants all of the lines for a metric together, so group them over all of the agents.
+        Map<String, List<Sample>> families = new TreeMap<>();
+        int count = 0;
+        for (List<Sample> agentSamples : snapshots.values()) {
+            for (Sample sample : agentSamples) {
+                families.computeIfAbsent(sample.series.family, k -> new ArrayList<>()).add(sample);
+                count++;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(count * 128);
+        for (Map.Entry<String, List<Sample>> family : families.entrySet()) {
+            Series first = family.getValue().get(0).series;
+            sb.append("# HELP ").append(family.getKey()).append(' ').append(first.help).append('\n');
+            sb.append("# TYPE ").append(family.getKey()).append(" gauge\n");
+            for (Sample sample : family.getValue()) {
+                sb.append(family.getKey()).append(sample.series.labels).append(' ');
+                appendValue(sb, sample.value);
+                sb.append('\n');
+            }
+        }
+        page = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendValue(StringBuilder sb, double value) {
+        if (Double.isNaN(value)) {
+            sb.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            sb.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+    }
+
+    private String family(String genericName) {
+        StringBuilder sb = new StringBuilder(genericName.length() + prefix.length());
+        boolean underscore = false;
+        for (int i = 0; i < genericName.length(); i++) {
+            char c = Character.toLowerCase(genericName.charAt(i));
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                if (underscore && sb.length() > 0) {
+                    sb.append('_');
+                }
+                sb.append(c);
+                underscore = false;
+            } else {
+                underscore = true;
+            }
+        }
+        String name = sb.toString();
+        return name.startsWith(prefix) ? name : prefix + name;
+    }
+
+    private static String labels(String agentName, MetricLabels labels) {
+        StringBuilder sb = new StringBuilder("{agent=\"").append(escape(agentName)).append('"');
+        for (int idx = 0; idx < labels.size(); idx++) {
+            sb.append(',').append(labels.name(idx)).append("=\"").append(escape(labels.value(idx))).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\n", "\\n").replace("\"", "\\\"");
+    }
+
+    /**
+     * Collects an agent's metrics over a cycle, and hands them to the exporter at the end of it.
+     */
+    private class AgentSink implements MetricSink {
+        private final String agentName;
+        private final Map<String, Series> series = new HashMap<>();
+        private List<Sample> samples = new ArrayList<>();
+        private long cycle = 0;
+
+        AgentSink(String agentName) {
+            this.agentName = agentName;
+        }
+
+        @Override
+        public void report(String name, String unit, double value, MetricLabels labels) {
+            Series s = series.get(name);
+            if (null == s) {
+                String generic = labels.genericName(name);
+                s = new Series(family(generic), generic + " [" + unit + "]", labels(agentName, labels));
+                series.put(name, s);
+            }
+            s.cycle = cycle;
+            samples.add(new Sample(s, value));
+        }
+
+        @Override
+        public void endCycle() {
+            update(agentName, samples);
+            samples = new ArrayList<>(samples.size());
+            // Forget the names of metrics that have gone, such as those of a dropped index.
+            series.values().removeIf(s -> s.cycle != cycle);
+            cycle++;
+        }
+    }
+
+    /**
+     * A metric name worked out into its Prometheus family and labels.
+     */
+    private static class Series {
+        final String family;
+        final String help;
+        final String labels;
+        long cycle;
+
+        Series(String family, String help, String labels) {
+            this.family = family;
+            this.help = help.replace("\\", "\\\\").replace("\n", "\\n");
+            this.labels = labels;
+        }
+    }
+
+    private static class Sample {
+        final Series series;
+        final double value;
+
+        Sample(Series series, double value) {
+            this.series = series;
+            this.value = value;
+        }
+    }
+}
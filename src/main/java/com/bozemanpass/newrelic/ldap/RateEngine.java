@@ -0,0 +1,210 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns counter samples into per-second rates, keeping the previous sample of every counter in
+ * primitive arrays indexed by a dense id.
+ * <p>
+ * Counters that have not been sampled for a number of poll cycles, such as those for a dropped index,
+ * are evicted and their slots reused, so memory stays flat however many db files come and go.  Callers
+ * hold a {@link Handle} that caches the slot; the slot's generation is bumped on eviction so a stale
+ * handle is noticed and re-resolved by key.
+ * <p>
+ * A counter that goes backwards has usually been reset by a server restart, so no rate is published for
+ * that sample and the counter starts again from the new value, rather than publishing a huge negative
+ * rate.  Only a counter whose handle says it is 32 bits wide, as the SNMP counters are on older servers,
+ * can instead have wrapped; that is only believed when the wrapped delta is in line with the counter's
+ * recent deltas, since a restart of a busy server looks much the same.
+ */
+class RateEngine {
+    private static final Logger log = Logger.getLogger(RateEngine.class);
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long WRAP_32 = 1L << 32;
+    private static final long WRAP_DELTA_FACTOR = 4;
+
+    private final int evictAfter;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Deque<Integer> free = new ArrayDeque<>();
+
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private long[] values = new long[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private long[] lastDeltas = new long[INITIAL_CAPACITY];
+    private long[] lastSeen = new long[INITIAL_CAPACITY];
+    private int[] generations = new int[INITIAL_CAPACITY];
+    private boolean[] primed = new boolean[INITIAL_CAPACITY];
+    private int size = 0;
+    private long cycle = 0;
+
+    /**
+     * @param evictAfter drop counters that have not been sampled for this many poll cycles
+     */
+    RateEngine(int evictAfter) {
+        this.evictAfter = Math.max(1, evictAfter);
+    }
+
+    /**
+     * Record a counter sample and work out its rate since the previous one.
+     *
+     * @param handle the counter
+     * @param value  the counter value
+     * @param now    when the value was read, in milliseconds on a monotonic clock
+     * @return the rate per second, or null on the first sample, after a reset, or if no time has passed
+     */
+    synchronized Float process(Handle handle, long value, long now) {
+        int id = resolve(handle);
+        lastSeen[id] = cycle;
+
+        if (!primed[id]) {
+            primed[id] = true;
+            values[id] = value;
+            times[id] = now;
+            lastDeltas[id] = -1;
+            return null;
+        }
+
+        long elapsed = now - times[id];
+        if (elapsed <= 0) {
+            return null;
+        }
+
+        long previous = values[id];
+        long delta = value - previous;
+        values[id] = value;
+        times[id] = now;
+
+        if (delta < 0) {
+            long wrapped = value + WRAP_32 - previous;
+            if (handle.counter32 && previous < WRAP_32 && value >= 0 && lastDeltas[id] > 0
+                    && wrapped <= lastDeltas[id] * WRAP_DELTA_FACTOR) {
+                delta = wrapped;
+            } else {
+                log.debug(String.format("Counter %s reset from %d to %d", keys[id], previous, value));
+                lastDeltas[id] = -1;
+                return null;
+            }
+        }
+        lastDeltas[id] = delta;
+
+        return (float) (delta * 1000.0 / elapsed);
+    }
+
+    /**
+     * Finish a poll cycle, evicting any counters that have not been sampled recently.
+     */
+    synchronized void endCycle() {
+        for (int id = 0; id < size; id++) {
+            if (null != keys[id] && cycle - lastSeen[id] >= evictAfter) {
+                log.debug(String.format("Evicting counter %s", keys[id]));
+                ids.remove(keys[id]);
+                keys[id] = null;
+                primed[id] = false;
+                generations[id]++;
+                free.push(id);
+            }
+        }
+        cycle++;
+    }
+
+    /**
+     * @return the number of counters currently tracked
+     */
+    synchronized int size() {
+        return ids.size();
+    }
+
+    private int resolve(Handle handle) {
+        int id = handle.id;
+        if (id >= 0 && generations[id] == handle.generation) {
+            return id;
+        }
+
+        Integer existing = ids.get(handle.key);
+        if (null != existing) {
+            id = existing;
+        } else {
+            id = allocate(handle.key);
+        }
+        handle.id = id;
+        handle.generation = generations[id];
+        return id;
+    }
+
+    private int allocate(String key) {
+        int id;
+        if (!free.isEmpty()) {
+            id = free.pop();
+        } else {
+            if (size == keys.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+                times = Arrays.copyOf(times, capacity);
+                lastDeltas = Arrays.copyOf(lastDeltas, capacity);
+                lastSeen = Arrays.copyOf(lastSeen, capacity);
+                generations = Arrays.copyOf(generations, capacity);
+                primed = Arrays.copyOf(primed, capacity);
+            }
+            id = size++;
+        }
+        keys[id] = key;
+        primed[id] = false;
+        lastSeen[id] = cycle;
+        ids.put(key, id);
+        return id;
+    }
+
+    /**
+     * A caller's reference to one counter, caching its slot in the engine.
+     */
+    static class Handle {
+        final String key;
+        final boolean counter32;
+        int id = -1;
+        int generation;
+
+        Handle(String key) {
+            this(key, false);
+        }
+
+        /**
+         * @param key       identifies the counter
+         * @param counter32 true if the counter is 32 bits wide and can wrap
+         */
+        Handle(String key, boolean counter32) {
+            this.key = key;
+            this.counter32 = counter32;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+package com.bozemanpass.newrelic.ldap;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * Reads the status of the replication agreements under cn=mapping tree,cn=config.
+ * <p>
+ * The replicas (whose nsds50ruv holds the supplier's own RUV) and their agreements (whose nsds50ruv holds
+ * the consumer's RUV as of the last session) are all read with one search, however many agreements there
+ * are.  A server with no replicas is only searched again once the cache expires, so it costs nothing to
+ * leave this on.  The agreements found are kept between cycles, along with their metric names, labels and
+ * rate handles, and forgotten when they go away.
+ */
+class ReplicationReader {
+    private static final Logger log = Logger.getLogger(ReplicationReader.class);
+
+    static final String MAPPING_TREE_DN = "cn=mapping tree,cn=config";
+
+    private static final String REPLICA_CLASS = "nsds5replica";
+    private static final String FILTER = "(|(objectClass=nsds5replica)(objectClass=nsds5replicationAgreement)"
+            + "(objectClass=nsDSWindowsReplicationAgreement))";
+    private static final String RUV_ATTR = "nsds50ruv";
+    private static final String START_ATTR = "nsds5replicaLastUpdateStart";
+    private static final String END_ATTR = "nsds5replicaLastUpdateEnd";
+    private static final String STATUS_ATTR = "nsds5replicaLastUpdateStatus";
+    private static final String IN_PROGRESS_ATTR = "nsds5replicaUpdateInProgress";
+    private static final String CHANGES_SENT_ATTR = "nsds5replicaChangesSentSinceStartup";
+    private static final String[] ATTRS = {"objectClass", "cn", RUV_ATTR, START_ATTR, END_ATTR, STATUS_ATTR,
+            IN_PROGRESS_ATTR, CHANGES_SENT_ATTR};
+
+    private static final DateTimeFormatter GENERALIZED_TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss'Z'");
+
+    private final String prefix;
+    private final long cacheTtl;
+    private final int timeout;
+    private final Map<String, Agreement> agreements = new LinkedHashMap<>();
+    private long retryAt = 0;
+
+    /**
+     * @param prefix   the metric name prefix, eg Replication
+     * @param cacheTtl how long to wait before looking again on a server with no replicas (ms)
+     * @param timeout  the server side time limit for the search (ms)
+     */
+    ReplicationReader(String prefix, long cacheTtl, int timeout) {
+        this.prefix = prefix;
+        this.cacheTtl = cacheTtl;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Read the status of every agreement.
+     *
+     * @param ctx the LDAP connection
+     * @return the agreements, in the order the server returned them
+     * @throws NamingException
+     */
+    List<Agreement> read(DirContext ctx) throws NamingException {
+        if (System.currentTimeMillis() < retryAt) {
+            return Collections.emptyList();
+        }
+
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctls.setReturningAttributes(ATTRS);
+        ctls.setReturningObjFlag(false);
+        ctls.setTimeLimit(timeout);
+
+        Map<String, Map<Integer, Long>> supplierRuvs = new HashMap<>();
+        Map<String, Attributes> found = new LinkedHashMap<>();
+        NamingEnumeration<SearchResult> results;
+        try {
+            results = ctx.search(MAPPING_TREE_DN, FILTER, ctls);
+        } catch (NameNotFoundException e) {
+            log.debug("No mapping tree, looking again in ", cacheTtl, " ms");
+            agreements.clear();
+            retryAt = System.currentTimeMillis() + cacheTtl;
+            return Collections.emptyList();
+        }
+        try {
+            while (results.hasMore()) {
+                SearchResult result = results.next();
+                String dn = MonitorSnapshot.normalizeDn(result.getNameInNamespace());
+                Attributes attrs = result.getAttributes();
+                if (hasValue(attrs.get("objectClass"), REPLICA_CLASS)) {
+                    supplierRuvs.put(dn, parseRuv(attrs.get(RUV_ATTR)));
+                } else {
+                    found.put(dn, attrs);
+                }
+            }
+        } finally {
+            results.close();
+        }
+
+        if (supplierRuvs.isEmpty()) {
+            log.debug("No replicas found, looking again in ", cacheTtl, " ms");
+            retryAt = System.currentTimeMillis() + cacheTtl;
+        }
+
+        agreements.keySet().retainAll(found.keySet());
+        List<Agreement> ret = new ArrayList<>(found.size());
+        for (Map.Entry<String, Attributes> e : found.entrySet()) {
+            String dn = e.getKey();
+            Attributes attrs = e.getValue();
+            Agreement agreement = agreements.get(dn);
+            if (null == agreement) {
+                Attribute cn = attrs.get("cn");
+                agreement = new Agreement(prefix, null != cn ? cn.get().toString() : dn);
+                agreements.put(dn, agreement);
+            }
+            int comma = dn.indexOf(',');
+            Map<Integer, Long> supplierRuv = comma >= 0 ? supplierRuvs.get(dn.substring(comma + 1)) : null;
+            agreement.update(attrs, supplierRuv);
+            ret.add(agreement);
+        }
+        return ret;
+    }
+
+    /**
+     * Pull the time of the latest change from each replica out of a RUV, whose values look like
+     * <pre>
+     * {replicageneration} 5bc85e01000000010000
+     * {replica 1 ldap://host1:389} 5bc85e1d000000010000 5bc8a2c4000300010000 5bc8a2c4
+     * </pre>
+     * where the first four bytes of a CSN are its time in seconds.
+     *
+     * @return the time of the latest change (seconds), by replica id
+     * @throws NamingException
+     */
+    static Map<Integer, Long> parseRuv(Attribute ruv) throws NamingException {
+        Map<Integer, Long> ret = new HashMap<>();
+        if (null == ruv) {
+            return ret;
+        }
+        NamingEnumeration<?> values = ruv.getAll();
+        while (values.hasMore()) {
+            String value = values.next().toString().trim();
+            if (!value.startsWith("{replica ")) {
+                continue;
+            }
+            String[] parts = value.split("\\s+");
+            // {replica, <rid>, <url>}, min CSN, max CSN
+            if (parts.length < 5 || parts[4].length() < 8) {
+                continue;
+            }
+            try {
+                int rid = Integer.parseInt(parts[1]);
+                ret.put(rid, Long.parseLong(parts[4].substring(0, 8), 16));
+            } catch (NumberFormatException e) {
+                log.debug("Ignoring unparseable RUV element ", value);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the generalized time as milliseconds since the epoch, or null if it is unset (0 or 1970)
+     */
+    static Long parseTime(Attribute attr) throws NamingException {
+        if (null == attr) {
+            return null;
+        }
+        try {
+            long ret = LocalDateTime.parse(attr.get().toString().trim(), GENERALIZED_TIME)
+                    .toInstant(ZoneOffset.UTC).toEpochMilli();
+            return ret > 0 ? ret : null;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The status is "Error (0) Replica acquired successfully: ..." in newer versions, and "0 Replica acquired
+     * successfully: ..." in older ones.
+     *
+     * @return the result code of the last update, or null if there is none
+     */
+    static Integer parseStatus(Attribute attr) throws NamingException {
+        if (null == attr) {
+            return null;
+        }
+        String s = attr.get().toString().trim();
+        if (s.startsWith("Error (")) {
+            s = s.substring("Error (".length());
+        }
+        int end = s.startsWith("-") ? 1 : 0;
+        while (end < s.length() && Character.isDigit(s.charAt(end))) {
+            end++;
+        }
+        try {
+            return Integer.parseInt(s.substring(0, end));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasValue(Attribute attr, String value) throws NamingException {
+        if (null == attr) {
+            return false;
+        }
+        NamingEnumeration<?> values = attr.getAll();
+        while (values.hasMore()) {
+            if (value.equalsIgnoreCase(values.next().toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One replication agreement and its status as of the latest read.
+     */
+    static class Agreement {
+        final String lagName;
+        final String sentRateName;
+        final String sentCountName;
+        final String skippedRateName;
+        final String skippedCountName;
+        final String durationName;
+        final String ageName;
+        final String statusName;
+        final String inProgressName;
+        final MetricLabels labels;
+        final RateEngine.Handle sentRate;
+        final RateEngine.Handle skippedRate;
+
+        Long lag;
+        long sent;
+        long skipped;
+        Long duration;
+        Long age;
+        Integer status;
+        boolean inProgress;
+
+        /**
+         * @param prefix the metric name prefix, eg Replication
+         * @param name   the agreement's name, eg agmt-to-host2
+         */
+        Agreement(String prefix, String name) {
+            String metricPrefix = prefix + "/" + name;
+            this.lagName = metricPrefix + "/Lag";
+            this.sentRateName = metricPrefix + "/Changes/Sent/Rate";
+            this.sentCountName = metricPrefix + "/Changes/Sent/Count";
+            this.skippedRateName = metricPrefix + "/Changes/Skipped/Rate";
+            this.skippedCountName = metricPrefix + "/Changes/Skipped/Count";
+            this.durationName = metricPrefix + "/LastUpdate/Duration";
+            this.ageName = metricPrefix + "/LastUpdate/Age";
+            this.statusName = metricPrefix + "/LastUpdate/Status";
+            this.inProgressName = metricPrefix + "/InProgress";
+            this.labels = MetricLabels.of(MetricLabels.AGREEMENT, name);
+            this.sentRate = new RateEngine.Handle(sentRateName);
+            this.skippedRate = new RateEngine.Handle(skippedRateName);
+        }
+
+        /**
+         * @param attrs       the agreement entry
+         * @param supplierRuv the latest change from each replica on this server (seconds), or null if unknown
+         * @throws NamingException
+         */
+        void update(Attributes attrs, Map<Integer, Long> supplierRuv) throws NamingException {
+            // The lag is how far the consumer is behind on whichever replica it is furthest behind on.
+            lag = null;
+            Map<Integer, Long> consumerRuv = parseRuv(attrs.get(RUV_ATTR));
+            if (null != supplierRuv && !consumerRuv.isEmpty()) {
+                long max = 0;
+                for (Map.Entry<Integer, Long> e : supplierRuv.entrySet()) {
+                    Long consumed = consumerRuv.get(e.getKey());
+                    if (null != consumed) {
+                        max = Math.max(max, e.getValue() - consumed);
+                    }
+                }
+                lag = max;
+            }
+
+            // "<rid>:<sent>/<skipped>" for each replica whose changes were sent.
+            sent = 0;
+            skipped = 0;
+            Attribute changes = attrs.get(CHANGES_SENT_ATTR);
+            if (null != changes) {
+                for (String element : changes.get().toString().trim().split("\\s+")) {
+                    int colon = element.indexOf(':');
+                    int slash = element.indexOf('/', colon + 1);
+                    if (colon < 0 || slash < 0) {
+                        continue;
+                    }
+                    try {
+                        sent += Long.parseLong(element.substring(colon + 1, slash));
+                        skipped += Long.parseLong(element.substring(slash + 1));
+                    } catch (NumberFormatException e) {
+                        log.debug("Ignoring unparseable change count ", element);
+                    }
+                }
+            }
+
+            Long start = parseTime(attrs.get(START_ATTR));
+            Long end = parseTime(attrs.get(END_ATTR));
+            duration = null != start && null != end && end >= start ? end - start : null;
+            age = null != end ? Math.max(0, (System.currentTimeMillis() - end) / 1000) : null;
+            status = parseStatus(attrs.get(STATUS_ATTR));
+            Attribute attr = attrs.get(IN_PROGRESS_ATTR);
+            inProgress = null != attr && "TRUE".equalsIgnoreCase(attr.get().toString().trim());
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.bozemanpass.newrelic.ldap.util.DaemonThreadFactory;
+import com.newrelic.metrics.publish.Agent;
+import com.newrelic.metrics.publish.util.Logger;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the LDAP/ counters and gauges at a sub-minute interval between poll cycles, so that short
+ * spikes are not lost between one poll and the next.
+ * <p>
+ * Each sample is two single-entry reads, cn=snmp,cn=monitor and (for readwaiters) cn=monitor, over a
+ * connection of the sampler's own.  Samples go into a fixed-size ring buffer, and each poll cycle
+ * publishes the Min, Max, Mean and Last of every gauge, and the PeakRate of every counter, over the
+ * samples taken since the previous poll.
+ */
+class Sampler {
+    private static final Logger log = Logger.getLogger(Sampler.class);
+
+    private static final String MIN_SUFFIX = "/Min";
+    private static final String MAX_SUFFIX = "/Max";
+    private static final String MEAN_SUFFIX = "/Mean";
+    private static final String LAST_SUFFIX = "/Last";
+    private static final String PEAK_RATE_SUFFIX = "/PeakRate";
+
+    private final MetricTable table;
+    private final LdapConnectionPool pool;
+    private final long interval;
+    private final String[] snmpAttrs;
+    private final MetricDescriptor readWaiters;
+    private final MetricDescriptor[] descriptors;
+    private final String[][] names;
+    private final Ring ring;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param table    the LDAP/ metrics to sample
+     * @param pool     the sampler's own connection pool
+     * @param interval the sampling interval (ms)
+     * @param capacity the number of samples kept between polls; older samples are overwritten
+     */
+    Sampler(MetricTable table, LdapConnectionPool pool, long interval, int capacity) {
+        this.table = table;
+        this.pool = pool;
+        this.interval = interval;
+        this.readWaiters = table.get(MonitorReader.READWAITERS_ATTR);
+        this.descriptors = table.descriptors();
+
+        List<String> attrs = new ArrayList<>();
+        for (MetricDescriptor d : descriptors) {
+            if (d != readWaiters) {
+                attrs.add(d.ldapAttr);
+            }
+        }
+        this.snmpAttrs = attrs.toArray(new String[0]);
+
+        this.names = new String[descriptors.length][];
+        for (MetricDescriptor d : descriptors) {
+            names[d.slot] = d.counter
+                    ? new String[]{d.name + PEAK_RATE_SUFFIX}
+                    : new String[]{d.name + MIN_SUFFIX, d.name + MAX_SUFFIX, d.name + MEAN_SUFFIX, d.name + LAST_SUFFIX};
+        }
+
+        this.ring = new Ring(Math.max(2, capacity), descriptors.length);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ldap-sampler"));
+    }
+
+    /**
+     * Start sampling in the background.
+     */
+    void start() {
+        executor.scheduleAtFixedRate(this::sample, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sampling and close the connection.
+     */
+    void close() {
+        executor.shutdownNow();
+        pool.close();
+    }
+
+    /**
+     * Take one sample.
+     */
+    void sample() {
+        MetricTable.Batch batch = table.newBatch();
+        try {
+            DirContext ctx = pool.borrow();
+            boolean reusable = false;
+            try {
+                if (snmpAttrs.length > 0) {
+                    batch.read(ctx.getAttributes(MonitorReader.SNMP_DN, snmpAttrs));
+                }
+                if (null != readWaiters) {
+                    Attributes monitor = ctx.getAttributes(MonitorReader.MONITOR_DN,
+                            new String[]{MonitorReader.READWAITERS_ATTR});
+                    batch.read(readWaiters, monitor.get(MonitorReader.READWAITERS_ATTR));
+                }
+                reusable = true;
+            } catch (NamingException e) {
+                reusable = !LdapConnectionPool.isConnectionFailure(e);
+                throw e;
+            } finally {
+                if (reusable) {
+                    pool.release(ctx);
+                } else {
+                    pool.invalidate(ctx);
+                }
+            }
+        } catch (Throwable t) {
+            log.debug(String.format("Sampling failed: %s", t));
+            return;
+        }
+        ring.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()), batch);
+    }
+
+    /**
+     * Publish the aggregates of the samples taken since the last call, and start a new interval.
+     *
+     * @param agent the agent to report through
+     */
+    void publish(Agent agent) {
+        ring.publish(agent);
+    }
+
+    /**
+     * A fixed-size ring of samples, one primitive array per metric.
+     */
+    private class Ring {
+        private final int capacity;
+        private final long[] times;
+        private final long[][] values;
+        private final boolean[][] present;
+        private final long[] prevTime;
+        private final long[] prevValue;
+        private final boolean[] hasPrev;
+        private int head = 0;
+        private int count = 0;
+
+        Ring(int capacity, int metrics) {
+            this.capacity = capacity;
+            this.times = new long[capacity];
+            this.values = new long[metrics][capacity];
+            this.present = new boolean[metrics][capacity];
+            this.prevTime = new long[metrics];
+            this.prevValue = new long[metrics];
+            this.hasPrev = new boolean[metrics];
+        }
+
+        synchronized void add(long time, MetricTable.Batch batch) {
+            int pos = (head + count) % capacity;
+            if (count == capacity) {
+                // Overwrite the oldest sample, carrying it as the baseline for counter rates.
+                retire(head);
+                head = (head + 1) % capacity;
+            } else {
+                count++;
+            }
+
+            times[pos] = time;
+            for (int slot = 0; slot < values.length; slot++) {
+                present[slot][pos] = batch.has(slot);
+                values[slot][pos] = batch.get(slot);
+            }
+        }
+
+        synchronized void publish(Agent agent) {
+            for (MetricDescriptor d : descriptors) {
+                int slot = d.slot;
+                if (d.counter) {
+                    publishPeakRate(agent, d, slot);
+                } else {
+                    publishGauge(agent, d, slot);
+                }
+            }
+
+            while (count > 0) {
+                retire(head);
+                head = (head + 1) % capacity;
+                count--;
+            }
+        }
+
+        private void publishGauge(Agent agent, MetricDescriptor d, int slot) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            long sum = 0;
+            long last = 0;
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                int pos = (head + i) % capacity;
+                if (present[slot][pos]) {
+                    long v = values[slot][pos];
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                    sum += v;
+                    last = v;
+                    n++;
+                }
+            }
+            if (0 == n) {
+                return;
+            }
+
+            String[] aggregateNames = names[slot];
+            agent.reportMetric(aggregateNames[0], d.unit, min);
+            agent.reportMetric(aggregateNames[1], d.unit, max);
+            agent.reportMetric(aggregateNames[2], d.unit, (float) sum / n);
+            agent.reportMetric(aggregateNames[3], d.unit, last);
+        }
+
+        private void publishPeakRate(Agent agent, MetricDescriptor d, int slot) {
+            boolean hasBase = hasPrev[slot];
+            long baseTime = prevTime[slot];
+            long baseValue = prevValue[slot];
+            float peak = -1;
+            for (int i = 0; i < count; i++) {
+                int pos = (head + i) % capacity;
+                if (!present[slot][pos]) {
+                    continue;
+                }
+                long t = times[pos];
+                long v = values[slot][pos];
+                // A counter that went backwards was reset or wrapped; skip that interval.
+                if (hasBase && t > baseTime && v >= baseValue) {
+                    peak = Math.max(peak, (float) ((v - baseValue) * 1000.0 / (t - baseTime)));
+                }
+                hasBase = true;
+                baseTime = t;
+                baseValue = v;
+            }
+            if (peak >= 0) {
+                agent.reportMetric(names[slot][0], d.rateUnit, peak);
+            }
+        }
+
+        private void retire(int pos) {
+            for (int slot = 0; slot < values.length; slot++) {
+                if (present[slot][pos]) {
+                    hasPrev[slot] = true;
+                    prevTime[slot] = times[pos];
+                    prevValue[slot] = values[slot][pos];
+                }
+            }
+        }
+    }
+}
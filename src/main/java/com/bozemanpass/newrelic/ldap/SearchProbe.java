@@ -0,0 +1,249 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.newrelic.metrics.publish.Agent;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.NotContextException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.IOException;
+
+/**
+ * Times a search, including reading all of the results.  As well as the overall latency, the time to
+ * the first entry (how long the server took to evaluate the search) and the time to read the rest
+ * (how long it took to send the results) are published separately, along with the entries per second.
+ * <p>
+ * With a page size, the search is made a page at a time with the paged results control, asking for no
+ * attributes unless told otherwise, so that a search over a large subtree can be timed without running
+ * into the server's size limit.  The entries are counted as they arrive and never kept, and the time
+ * for each page and the number of pages are published as well.
+ */
+class SearchProbe extends Probe {
+    private final String base;
+    private final String filter;
+    private final int scope;
+    private final String[] attributes;
+    private final int pageSize;
+    private final int timeout;
+    private final String resultsName;
+    private final String pagesName;
+    private final String entriesPerSecName;
+    private final Phase firstEntry;
+    private final Phase drain;
+    private final Phase page;
+
+    private volatile int results = -1;
+    private volatile int pages = -1;
+    private long intervalEntries = 0;
+    private long intervalNanos = 0;
+
+    /**
+     * @param name         the probe name, for logging
+     * @param metricPrefix the metric name prefix, eg LDAP/TimedOps/Search
+     * @param base         the search base
+     * @param scope        the search scope: base, one or sub
+     * @param filter       the search filter
+     * @param attributes   the attributes to return, or null for all of them (none of them when paged)
+     * @param pageSize     the entries per page, or 0 to not page the search
+     * @param timeout      the server side time limit (ms)
+     */
+    SearchProbe(String name, String metricPrefix, String base, String scope, String filter, String[] attributes,
+                int pageSize, int timeout) {
+        super(name, metricPrefix);
+        this.base = base;
+        this.filter = filter;
+        this.attributes = null == attributes && pageSize > 0 ? new String[]{"1.1"} : attributes;
+        this.pageSize = pageSize;
+        this.timeout = timeout;
+        this.resultsName = metricPrefix + "/Results";
+        this.pagesName = metricPrefix + "/Pages";
+        this.entriesPerSecName = metricPrefix + "/EntriesPerSec";
+        this.firstEntry = new Phase(metricPrefix + "/FirstEntry");
+        this.drain = new Phase(metricPrefix + "/Drain");
+        this.page = new Phase(metricPrefix + "/Page");
+
+        if ("base".equalsIgnoreCase(scope)) {
+            this.scope = SearchControls.OBJECT_SCOPE;
+        } else if ("one".equalsIgnoreCase(scope)) {
+            this.scope = SearchControls.ONELEVEL_SCOPE;
+        } else {
+            this.scope = SearchControls.SUBTREE_SCOPE;
+        }
+    }
+
+    @Override
+    void execute(DirContext ctx) throws NamingException {
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(scope);
+        ctls.setTimeLimit(timeout);
+        ctls.setReturningAttributes(attributes);
+
+        if (pageSize > 0) {
+            executePaged(ctx, ctls);
+            return;
+        }
+
+        long start = System.nanoTime();
+        NamingEnumeration<SearchResult> ne = ctx.search(base, filter, ctls);
+        int howMany = 0;
+        long first;
+        try {
+            boolean more = ne.hasMore();
+            first = System.nanoTime();
+            while (more) {
+                ne.next();
+                howMany++;
+                more = ne.hasMore();
+            }
+        } finally {
+            ne.close();
+        }
+        long end = System.nanoTime();
+
+        firstEntry.record(first - start);
+        drain.record(end - first);
+        synchronized (this) {
+            intervalEntries += howMany;
+            intervalNanos += end - start;
+        }
+        results = howMany;
+    }
+
+    private void executePaged(DirContext ctx, SearchControls ctls) throws NamingException {
+        if (!(ctx instanceof LdapContext)) {
+            throw new NotContextException("A paged search needs an LdapContext");
+        }
+
+        // A new instance shares the connection but has its own request controls.
+        LdapContext paged = ((LdapContext) ctx).newInstance(new Control[]{pageControl(null)});
+        int howMany = 0;
+        int pageCount = 0;
+        long first = -1;
+        long start = System.nanoTime();
+        try {
+            byte[] cookie;
+            do {
+                long pageStart = System.nanoTime();
+                NamingEnumeration<SearchResult> ne = paged.search(base, filter, ctls);
+                try {
+                    boolean more = ne.hasMore();
+                    if (first < 0) {
+                        first = System.nanoTime();
+                    }
+                    while (more) {
+                        ne.next();
+                        howMany++;
+                        more = ne.hasMore();
+                    }
+                } finally {
+                    ne.close();
+                }
+                page.record(System.nanoTime() - pageStart);
+                pageCount++;
+
+                cookie = cookie(paged.getResponseControls());
+                if (null != cookie) {
+                    paged.setRequestControls(new Control[]{pageControl(cookie)});
+                }
+            } while (null != cookie);
+        } finally {
+            paged.close();
+        }
+        long end = System.nanoTime();
+
+        firstEntry.record(first - start);
+        drain.record(end - first);
+        synchronized (this) {
+            intervalEntries += howMany;
+            intervalNanos += end - start;
+        }
+        results = howMany;
+        pages = pageCount;
+    }
+
+    private Control pageControl(byte[] cookie) throws NamingException {
+        try {
+            return new PagedResultsControl(pageSize, cookie, Control.CRITICAL);
+        } catch (IOException e) {
+            NamingException ne = new NamingException("Cannot encode the paged results control");
+            ne.setRootCause(e);
+            throw ne;
+        }
+    }
+
+    /**
+     * @return the cookie for the next page, or null if that was the last one
+     */
+    private static byte[] cookie(Control[] controls) {
+        if (null != controls) {
+            for (Control control : controls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    byte[] cookie = ((PagedResultsResponseControl) control).getCookie();
+                    return null != cookie && cookie.length > 0 ? cookie : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    void publish(Agent agent) {
+        super.publish(agent);
+        firstEntry.publish(agent);
+        drain.publish(agent);
+        if (pageSize > 0) {
+            page.publish(agent);
+        }
+
+        long entries;
+        long nanos;
+        synchronized (this) {
+            entries = intervalEntries;
+            nanos = intervalNanos;
+            intervalEntries = 0;
+            intervalNanos = 0;
+        }
+        if (nanos > 0) {
+            agent.reportMetric(entriesPerSecName, "entries/sec", entries * 1e9 / nanos);
+        }
+
+        int last = results;
+        if (last >= 0) {
+            agent.reportMetric(resultsName, "entries", last);
+        }
+
+        int lastPages = pages;
+        if (lastPages >= 0) {
+            agent.reportMetric(pagesName, "pages", lastPages);
+        }
+    }
+}
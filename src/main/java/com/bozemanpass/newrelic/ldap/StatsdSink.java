@@ -0,0 +1,202 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends every agent's metrics as StatsD gauges over UDP, packing as many as fit into each datagram.
+ * <p>
+ * Metric names become dotted StatsD names under the prefix and the agent's name, eg
+ * ldap.myldap.Backend.userRoot.DB_Cache.cn_db.Hits.Rate.  With tags turned on, the backend, db file, client
+ * address, bind DN and replication agreement are sent as DogStatsD tags instead of as part of the name.  The
+ * socket never blocks: a datagram that cannot be sent straight away is dropped, as StatsD would over a busy
+ * network anyway.
+ * <p>
+ * Values are written out in full rather than in scientific notation.  A signed gauge value is a change to
+ * StatsD rather than a new value, so a negative value is sent as a zero followed, in the same datagram, by
+ * the value.
+ */
+class StatsdSink implements MetricSink.Provider {
+    private static final Logger log = Logger.getLogger(StatsdSink.class);
+
+    // Fits in one Ethernet frame with room for the IP and UDP headers.
+    private static final int MAX_PACKET = 1432;
+
+    private final InetSocketAddress address;
+    private final String prefix;
+    private final boolean tags;
+    private final DatagramChannel channel;
+
+    /**
+     * @param host   the StatsD host
+     * @param port   the StatsD port
+     * @param prefix the first part of every name, or empty for none
+     * @param tags   send the {@link MetricLabels} as DogStatsD tags
+     * @throws IOException if the socket cannot be opened
+     */
+    StatsdSink(String host, int port, String prefix, boolean tags) throws IOException {
+        this.address = new InetSocketAddress(host, port);
+        this.prefix = prefix;
+        this.tags = tags;
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+    }
+
+    @Override
+    public MetricSink forAgent(String agentName) {
+        return new AgentSink(agentName);
+    }
+
+    /**
+     * @return the value in decimal, without an exponent, and without a fraction if it is a whole number
+     */
+    static String format(double value) {
+        long whole = (long) value;
+        if (whole == value && Math.abs(value) < 1e15) {
+            return Long.toString(whole);
+        }
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+
+    private static String clean(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '/') {
+                sb.append('.');
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Packs one agent's metrics into datagrams.  Used only from the agent's poll thread.
+     */
+    private class AgentSink implements MetricSink {
+        private final String agentPrefix;
+        private final Map<String, Encoded> encoded = new HashMap<>();
+        private final ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET);
+        private long cycle = 0;
+
+        AgentSink(String agentName) {
+            this.agentPrefix = (prefix.isEmpty() ? "" : clean(prefix) + ".") + clean(agentName) + ".";
+        }
+
+        @Override
+        public void report(String name, String unit, double value, MetricLabels labels) {
+            Encoded e = encoded.get(name);
+            if (null == e) {
+                e = encode(name, labels);
+                encoded.put(name, e);
+            }
+            e.cycle = cycle;
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                log.debug("Not sending ", value, " to StatsD for ", name);
+                return;
+            }
+            byte[] encodedValue = format(value).getBytes(StandardCharsets.US_ASCII);
+
+            boolean negative = value < 0;
+            int length = e.name.length + encodedValue.length + e.suffix.length;
+            if (negative) {
+                length += e.name.length + 1 + e.suffix.length;
+            }
+            if (length > packet.remaining()) {
+                flush();
+            }
+            if (length > packet.remaining()) {
+                log.debug("Metric too long for StatsD: ", name);
+                return;
+            }
+            if (negative) {
+                packet.put(e.name).put((byte) '0').put(e.suffix);
+            }
+            packet.put(e.name).put(encodedValue).put(e.suffix);
+        }
+
+        @Override
+        public void endCycle() {
+            flush();
+            // Forget the names of metrics that have gone, such as those of a dropped index.
+            encoded.values().removeIf(e -> e.cycle != cycle);
+            cycle++;
+        }
+
+        private Encoded encode(String name, MetricLabels labels) {
+            String statsdName = tags ? labels.genericName(name) : name;
+            StringBuilder suffix = new StringBuilder("|g");
+            if (tags && labels.size() > 0) {
+                suffix.append("|#");
+                for (int idx = 0; idx < labels.size(); idx++) {
+                    suffix.append(idx > 0 ? "," : "").append(labels.name(idx)).append(':')
+                            .append(clean(labels.value(idx)));
+                }
+            }
+            suffix.append('\n');
+            return new Encoded((agentPrefix + clean(statsdName) + ":").getBytes(StandardCharsets.UTF_8),
+                    suffix.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void flush() {
+            if (0 == packet.position()) {
+                return;
+            }
+            packet.flip();
+            try {
+                channel.send(packet, address);
+            } catch (IOException e) {
+                log.debug(e, "Error sending to StatsD at ", address);
+            }
+            packet.clear();
+        }
+    }
+
+    /**
+     * The fixed parts of a metric's line: "name:" and "|g" plus any tags.
+     */
+    private static class Encoded {
+        final byte[] name;
+        final byte[] suffix;
+        long cycle;
+
+        Encoded(byte[] name, byte[] suffix) {
+            this.name = name;
+            this.suffix = suffix;
+        }
+    }
+}
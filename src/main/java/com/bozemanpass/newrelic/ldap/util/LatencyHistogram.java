@@ -0,0 +1,146 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap.util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-memory, log-linear histogram of latencies in nanoseconds.
+ * <p>
+ * Values are bucketed by power of two, with each power split into 16 linear sub-buckets, so any
+ * recorded value is reported to within about 6%.  Values from 1ns up to about 18 minutes are tracked;
+ * anything longer lands in the last bucket, though the exact maximum is always kept.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * @param nanos the latency to record
+     */
+    public synchronized void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts[index(v)]++;
+        count++;
+        sum += v;
+        max = Math.max(max, v);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the largest value recorded, or 0 if none were
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the mean of the values recorded, or 0 if none were
+     */
+    public synchronized double getMean() {
+        return 0 == count ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param quantile the quantile, between 0 and 1
+     * @return the upper bound of the bucket holding the value at that quantile, capped at the maximum
+     */
+    public synchronized long getValueAtQuantile(double quantile) {
+        if (0 == count) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, upperBound(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    /**
+     * Copy this histogram into another and reset this one, so the copy can be read at leisure.
+     *
+     * @param target the histogram to copy into
+     */
+    public synchronized void drainTo(LatencyHistogram target) {
+        synchronized (target) {
+            System.arraycopy(counts, 0, target.counts, 0, BUCKETS);
+            target.count = count;
+            target.sum = sum;
+            target.max = max;
+        }
+        reset();
+    }
+
+    private static int index(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    private static long upperBound(int index) {
+        return index + 1 < BUCKETS ? lowerBound(index + 1) - 1 : Long.MAX_VALUE;
+    }
+}
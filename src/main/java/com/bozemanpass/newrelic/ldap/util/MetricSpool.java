@@ -0,0 +1,393 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap.util;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A size-capped, memory-mapped ring file of (timestamp, metric, value) records, so the values from a
+ * poll cycle survive the plugin not being able to deliver them.
+ * <p>
+ * Each record is 20 bytes: the time in epoch millis, the metric's id, and the value as a double.  Metric
+ * names are given ids in the order they are first seen, and kept in a dictionary file alongside the
+ * spool (path.names), one length-prefixed UTF-8 name per id.  The spool's header keeps the sequence
+ * number of the next record to write and of the next record to replay, so when the ring fills up the
+ * oldest records are overwritten and skipped on replay.
+ * <p>
+ * Each time the ring wraps, the dictionary is compacted down to the names still used by a record in the
+ * ring, so metrics that come and go (backends, db files) do not grow it without bound.  The dictionary
+ * starts with a generation number that must match the spool's header, so a spool and a dictionary from
+ * either side of an interrupted compaction are never read together.
+ * <p>
+ * Once a metric name has been seen, appending a record does not allocate.  Records appended since the
+ * last {@link #commit()} are not visible to replay, so a cycle is spooled all or nothing.  The mapped
+ * pages are written back by the operating system, so the spool survives the plugin being killed, though
+ * not necessarily the machine going down.
+ */
+public class MetricSpool implements Closeable {
+    private static final int MAGIC = 0x4c53504c; // LSPL
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 20;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int WRITE_SEQ_OFFSET = 16;
+    private static final int REPLAY_SEQ_OFFSET = 24;
+    private static final int GENERATION_OFFSET = 32;
+
+    /**
+     * Receives replayed records, oldest first.
+     */
+    public interface Handler {
+        void record(long timestamp, String name, double value) throws IOException;
+    }
+
+    private final File namesFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long capacity;
+    private final boolean readOnly;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    private DataOutputStream namesOut;
+    private long generation;
+    private long writeSeq;
+    private long pending = 0;
+
+    /**
+     * Open the spool, creating it if it does not exist.  An existing spool of a different size, or one that
+     * cannot be read, is started again empty.
+     *
+     * @param file the spool file
+     * @param size the size of the spool file in bytes
+     * @throws IOException
+     */
+    public MetricSpool(File file, long size) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (null != parent) {
+            Files.createDirectories(parent.toPath());
+        }
+        // A single mapping is limited to 2GB.
+        this.capacity = Math.max(1, (Math.min(size, Integer.MAX_VALUE) - HEADER_SIZE) / RECORD_SIZE);
+        long length = HEADER_SIZE + capacity * RECORD_SIZE;
+        this.namesFile = namesFile(file);
+        this.readOnly = false;
+
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        boolean reset = channel.size() != length;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+        if (!reset) {
+            reset = !validHeader() || buffer.getLong(CAPACITY_OFFSET) != capacity || !loadNames(true);
+        }
+        if (reset) {
+            ids.clear();
+            names.clear();
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            buffer.putLong(CAPACITY_OFFSET, capacity);
+            buffer.putLong(WRITE_SEQ_OFFSET, 0);
+            buffer.putLong(REPLAY_SEQ_OFFSET, 0);
+            buffer.putLong(GENERATION_OFFSET, 0);
+        }
+        this.generation = buffer.getLong(GENERATION_OFFSET);
+        this.writeSeq = buffer.getLong(WRITE_SEQ_OFFSET);
+        this.namesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(namesFile, !reset)));
+        if (reset) {
+            namesOut.writeLong(generation);
+            namesOut.flush();
+        }
+    }
+
+    private MetricSpool(File file) throws IOException {
+        this.namesFile = namesFile(file);
+        this.readOnly = true;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                throw new IOException(file + " is not a metric spool");
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (!validHeader()) {
+                throw new IOException(file + " is not a metric spool, or is from another version of the plugin");
+            }
+            this.capacity = buffer.getLong(CAPACITY_OFFSET);
+            if (capacity < 1 || length != HEADER_SIZE + capacity * RECORD_SIZE) {
+                throw new IOException(file + " is not the size its header gives");
+            }
+            this.generation = buffer.getLong(GENERATION_OFFSET);
+            this.writeSeq = buffer.getLong(WRITE_SEQ_OFFSET);
+            if (!loadNames(false)) {
+                throw new IOException(namesFile + " is missing, unreadable, or does not belong to " + file);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open an existing spool to replay it, without changing it.  Unlike the constructor, a spool or dictionary
+     * that cannot be read is an error, never a reason to start again.  {@link #replay} does not mark the
+     * records as replayed, and nothing can be appended.
+     *
+     * @param file the spool file
+     * @return the spool
+     * @throws IOException if the spool or its dictionary is missing or cannot be read
+     */
+    public static MetricSpool openReadOnly(File file) throws IOException {
+        return new MetricSpool(file);
+    }
+
+    /**
+     * Add a record.  It is not replayed until the next {@link #commit()}.
+     *
+     * @param timestamp the time of the value, in epoch millis
+     * @param name      the metric name
+     * @param value     the value
+     * @throws IOException if a new metric name cannot be added to the dictionary
+     */
+    public synchronized void append(long timestamp, String name, double value) throws IOException {
+        checkWritable();
+        Integer id = ids.get(name);
+        if (null == id) {
+            id = names.size();
+            namesOut.writeUTF(name);
+            namesOut.flush();
+            ids.put(name, id);
+            names.add(name);
+        }
+
+        int pos = position(writeSeq + pending);
+        buffer.putLong(pos, timestamp);
+        buffer.putInt(pos + 8, id);
+        buffer.putDouble(pos + 12, value);
+        pending++;
+    }
+
+    /**
+     * Make the records appended since the last commit visible to replay, and compact the dictionary if the
+     * ring has wrapped since the last commit.
+     *
+     * @throws IOException if the dictionary cannot be compacted; the records are committed regardless
+     */
+    public synchronized void commit() throws IOException {
+        checkWritable();
+        long lap = writeSeq / capacity;
+        writeSeq += pending;
+        pending = 0;
+        buffer.putLong(WRITE_SEQ_OFFSET, writeSeq);
+        if (writeSeq / capacity != lap) {
+            compactNames();
+        }
+    }
+
+    /**
+     * @return the number of committed records not replayed yet, including any since overwritten
+     */
+    public synchronized long getBacklog() {
+        return writeSeq - buffer.getLong(REPLAY_SEQ_OFFSET);
+    }
+
+    /**
+     * @return the number of metric names in the dictionary
+     */
+    public synchronized int getNameCount() {
+        return names.size();
+    }
+
+    /**
+     * Replay the committed records not replayed yet, oldest first, and mark them as replayed unless the
+     * spool is read only.  Records overwritten by the ring or older than maxAge are skipped.  If the handler
+     * fails, the records from the one it failed on are kept for the next replay.
+     *
+     * @param maxAge  the oldest record to replay, in millis before now
+     * @param handler receives the records
+     * @return the number of records passed to the handler
+     * @throws IOException if the handler fails
+     */
+    public synchronized long replay(long maxAge, Handler handler) throws IOException {
+        long cutoff = System.currentTimeMillis() - maxAge;
+        long seq = Math.max(buffer.getLong(REPLAY_SEQ_OFFSET), writeSeq - capacity);
+        long replayed = 0;
+        try {
+            for (; seq < writeSeq; seq++) {
+                int pos = position(seq);
+                long timestamp = buffer.getLong(pos);
+                if (timestamp < cutoff) {
+                    continue;
+                }
+                int id = buffer.getInt(pos + 8);
+                if (id < 0 || id >= names.size()) {
+                    continue;
+                }
+                handler.record(timestamp, names.get(id), buffer.getDouble(pos + 12));
+                replayed++;
+            }
+        } finally {
+            if (!readOnly) {
+                buffer.putLong(REPLAY_SEQ_OFFSET, seq);
+            }
+        }
+        return replayed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!readOnly) {
+            buffer.force();
+            namesOut.close();
+        }
+        channel.close();
+    }
+
+    private static File namesFile(File file) {
+        return new File(file.getPath() + ".names");
+    }
+
+    private int position(long seq) {
+        return (int) (HEADER_SIZE + (seq % capacity) * RECORD_SIZE);
+    }
+
+    private boolean validHeader() {
+        return buffer.getInt(MAGIC_OFFSET) == MAGIC && buffer.getInt(VERSION_OFFSET) == VERSION;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new IllegalStateException("The spool is open read only");
+        }
+    }
+
+    /**
+     * Rewrite the dictionary with only the names used by the records in the ring, and renumber those records
+     * to match.  The new dictionary is renamed into place before any record changes, and the header's
+     * generation is moved on last, so being stopped part way leaves a dictionary that does not match and the
+     * spool is started again on the next open, rather than records being read with the wrong names.
+     */
+    private void compactNames() throws IOException {
+        int[] remap = new int[names.size()];
+        Arrays.fill(remap, -1);
+        List<String> kept = new ArrayList<>();
+        long count = Math.min(writeSeq, capacity);
+        for (long slot = 0; slot < count; slot++) {
+            int id = buffer.getInt(HEADER_SIZE + (int) slot * RECORD_SIZE + 8);
+            if (id >= 0 && id < remap.length && remap[id] < 0) {
+                remap[id] = kept.size();
+                kept.add(names.get(id));
+            }
+        }
+        if (kept.size() == names.size()) {
+            return;
+        }
+
+        long next = generation + 1;
+        File tmp = new File(namesFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeLong(next);
+            for (String name : kept) {
+                out.writeUTF(name);
+            }
+            out.flush();
+            Files.move(tmp.toPath(), namesFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            out.close();
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+
+        for (long slot = 0; slot < count; slot++) {
+            int pos = HEADER_SIZE + (int) slot * RECORD_SIZE + 8;
+            int id = buffer.getInt(pos);
+            buffer.putInt(pos, id >= 0 && id < remap.length ? remap[id] : -1);
+        }
+        buffer.putLong(GENERATION_OFFSET, next);
+        generation = next;
+
+        DataOutputStream old = namesOut;
+        namesOut = out;
+        old.close();
+        ids.clear();
+        names.clear();
+        for (String name : kept) {
+            ids.put(name, names.size());
+            names.add(name);
+        }
+    }
+
+    /**
+     * Read the dictionary.  A name left half written when the plugin was stopped is cut off, or when read only
+     * just ignored.
+     *
+     * @return false if the dictionary could not be read, or is not the generation the header gives
+     */
+    private boolean loadNames(boolean truncate) {
+        if (!namesFile.exists()) {
+            return false;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(namesFile.toPath());
+            ByteArrayInputStream bytesIn = new ByteArrayInputStream(bytes);
+            DataInputStream in = new DataInputStream(bytesIn);
+            if (bytes.length < 8 || in.readLong() != buffer.getLong(GENERATION_OFFSET)) {
+                return false;
+            }
+            int valid = 8;
+            try {
+                while (bytesIn.available() > 0) {
+                    String name = in.readUTF();
+                    ids.put(name, names.size());
+                    names.add(name);
+                    valid = bytes.length - bytesIn.available();
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                if (truncate) {
+                    try (FileChannel dictionary = FileChannel.open(namesFile.toPath(), StandardOpenOption.WRITE)) {
+                        dictionary.truncate(valid);
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
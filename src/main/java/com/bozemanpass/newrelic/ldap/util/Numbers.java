@@ -0,0 +1,147 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Number parsing for LDAP attribute values, which JNDI hands back as either a String or a byte[]
+ * depending on the attribute syntax.  Values are parsed in place, without building intermediate strings.
+ */
+public class Numbers {
+    private Numbers() {
+    }
+
+    /**
+     * Parse an attribute value as a signed decimal long, with the same rules as Long.parseLong.
+     *
+     * @param value the attribute value
+     * @return the parsed value
+     * @throws NumberFormatException if the value is not a decimal long
+     */
+    public static long parseLong(Object value) {
+        if (value instanceof CharSequence) {
+            return parseLong((CharSequence) value);
+        } else if (value instanceof byte[]) {
+            return parseLong((byte[]) value);
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        throw new NumberFormatException("Not a number: " + value);
+    }
+
+    /**
+     * @param s the characters to parse
+     * @return the parsed value
+     * @throws NumberFormatException if the value is not a decimal long
+     */
+    public static long parseLong(CharSequence s) {
+        int len = s.length();
+        if (0 == len) {
+            throw new NumberFormatException("Empty value");
+        }
+
+        int i = 0;
+        boolean negative = false;
+        char first = s.charAt(0);
+        if ('-' == first || '+' == first) {
+            negative = '-' == first;
+            if (1 == len) {
+                throw new NumberFormatException("Not a number: " + s);
+            }
+            i = 1;
+        }
+
+        // Accumulate negatively so that Long.MIN_VALUE can be represented.
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long result = 0;
+        for (; i < len; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < multmin) {
+                throw new NumberFormatException("Not a number: " + s);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new NumberFormatException("Not a number: " + s);
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * @param b the ASCII digits to parse
+     * @return the parsed value
+     * @throws NumberFormatException if the value is not a decimal long
+     */
+    public static long parseLong(byte[] b) {
+        return parseLong(b, 0, b.length);
+    }
+
+    /**
+     * @param b      holds the ASCII digits to parse
+     * @param offset where the digits start
+     * @param length how many bytes to parse
+     * @return the parsed value
+     * @throws NumberFormatException if the value is not a decimal long
+     */
+    public static long parseLong(byte[] b, int offset, int length) {
+        if (0 == length) {
+            throw new NumberFormatException("Empty value");
+        }
+
+        int i = offset;
+        int end = offset + length;
+        boolean negative = false;
+        byte first = b[offset];
+        if ('-' == first || '+' == first) {
+            negative = '-' == first;
+            if (1 == length) {
+                throw notANumber(b, offset, length);
+            }
+            i++;
+        }
+
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = b[i] - '0';
+            if (digit < 0 || digit > 9 || result < multmin) {
+                throw notANumber(b, offset, length);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw notANumber(b, offset, length);
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private static NumberFormatException notANumber(byte[] b, int offset, int length) {
+        return new NumberFormatException("Not a number: " + new String(b, offset, length, StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,229 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap.util;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The one SSLContext an agent uses for all of its TLS connections, LDAPS or StartTLS.
+ * <p>
+ * Sharing the context shares its client session cache, so a reconnect to the same server can resume the
+ * previous session rather than doing a full handshake.  The server certificate is checked against the
+ * configured truststore (or the JVM default, or not at all with trust_any_ssl), and a keystore can supply a
+ * client certificate.  Handshakes are counted here; one that did not have to check the server certificate
+ * resumed a cached session.  The check is done on the thread doing the handshake, which is the one that
+ * then calls {@link #handshakeCompleted}.
+ */
+public class TlsContext {
+    private final SSLContext context;
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+    private final ThreadLocal<Boolean> verified = new ThreadLocal<>();
+
+    /**
+     * @param trustAny         accept any server certificate
+     * @param trustStore       the certificates to trust, or null for the JVM default
+     * @param keyStore         the client certificate and key, or null to not offer one
+     * @param keyPassword      the password of the key in keyStore
+     * @param sessionCacheSize the number of sessions to keep for resumption, or a negative number for the JVM default
+     * @param sessionTimeout   how long a session can be resumed for (seconds), or a negative number for the JVM default
+     * @throws GeneralSecurityException
+     */
+    public TlsContext(boolean trustAny, KeyStore trustStore, KeyStore keyStore, char[] keyPassword,
+                      int sessionCacheSize, int sessionTimeout) throws GeneralSecurityException {
+        X509TrustManager trust;
+        if (trustAny) {
+            trust = new DummyTrustManager();
+        } else {
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(trustStore);
+            trust = x509(tmf.getTrustManagers());
+        }
+
+        KeyManager[] keys = null;
+        if (null != keyStore) {
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, keyPassword);
+            keys = kmf.getKeyManagers();
+        }
+
+        context = SSLContext.getInstance("TLS");
+        context.init(keys, new TrustManager[]{new CountingTrustManager(trust)}, null);
+
+        SSLSessionContext sessions = context.getClientSessionContext();
+        if (sessionCacheSize >= 0) {
+            sessions.setSessionCacheSize(sessionCacheSize);
+        }
+        if (sessionTimeout >= 0) {
+            sessions.setSessionTimeout(sessionTimeout);
+        }
+    }
+
+    /**
+     * @param path     the keystore file
+     * @param type     the keystore type, or null for the JVM default
+     * @param password the keystore password, or null if it has none
+     * @return the loaded keystore
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static KeyStore loadKeyStore(String path, String type, char[] password)
+            throws GeneralSecurityException, IOException {
+        KeyStore store = KeyStore.getInstance(null != type ? type : KeyStore.getDefaultType());
+        try (InputStream in = new FileInputStream(path)) {
+            store.load(in, password);
+        }
+        return store;
+    }
+
+    /**
+     * @return the socket factory for new connections, always the same one
+     */
+    public SSLSocketFactory getSocketFactory() {
+        return context.getSocketFactory();
+    }
+
+    /**
+     * @param nanos how long the handshake just completed on this thread took
+     */
+    public void handshakeCompleted(long nanos) {
+        if (null == verified.get()) {
+            resumedHandshakes.incrementAndGet();
+        }
+        verified.remove();
+        handshakes.incrementAndGet();
+        handshakeNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the number of handshakes completed so far
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * @return the number of handshakes so far that resumed a cached session
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @return the total time taken by the handshakes so far
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos.get();
+    }
+
+    private static X509TrustManager x509(TrustManager[] managers) throws GeneralSecurityException {
+        for (TrustManager manager : managers) {
+            if (manager instanceof X509TrustManager) {
+                return (X509TrustManager) manager;
+            }
+        }
+        throw new GeneralSecurityException("No X509 trust manager available");
+    }
+
+    /**
+     * Notes the server certificate checks, which only happen on a full handshake.  The socket and engine
+     * variants are passed on as they are so the delegate can still check the host name.
+     */
+    private class CountingTrustManager extends X509ExtendedTrustManager {
+        private final X509TrustManager delegate;
+
+        CountingTrustManager(X509TrustManager delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+                throws CertificateException {
+            if (delegate instanceof X509ExtendedTrustManager) {
+                ((X509ExtendedTrustManager) delegate).checkServerTrusted(chain, authType, socket);
+            } else {
+                delegate.checkServerTrusted(chain, authType);
+            }
+            verified.set(Boolean.TRUE);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+                throws CertificateException {
+            if (delegate instanceof X509ExtendedTrustManager) {
+                ((X509ExtendedTrustManager) delegate).checkServerTrusted(chain, authType, engine);
+            } else {
+                delegate.checkServerTrusted(chain, authType);
+            }
+            verified.set(Boolean.TRUE);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            delegate.checkServerTrusted(chain, authType);
+            verified.set(Boolean.TRUE);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket)
+                throws CertificateException {
+            delegate.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+                throws CertificateException {
+            delegate.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            delegate.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return delegate.getAcceptedIssuers();
+        }
+    }
+}
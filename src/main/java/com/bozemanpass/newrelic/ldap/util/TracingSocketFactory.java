@@ -0,0 +1,585 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap.util;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A socket factory for JNDI that times the TCP connect and TLS handshake of each new LDAP connection.
+ * <p>
+ * JNDI only takes a socket factory class name, and calls its static getDefault() from the connecting
+ * thread, so the real factory and the {@link Trace} to fill in are handed over in a thread local set
+ * by {@link #begin} around the InitialDirContext constructor.  The TLS handshake is done explicitly
+ * straight after the connect, rather than lazily on the first write, so that it is not counted as
+ * part of the bind.  The requests and bytes on every connection can also be counted, see {@link TrafficCounter}.
+ * <p>
+ * For StartTLS, {@link #startTls} gives the factory to negotiate with, which layers TLS over the traced plain
+ * socket and times that handshake the same way.
+ */
+public class TracingSocketFactory extends SocketFactory {
+    private static final ThreadLocal<TracingSocketFactory> CURRENT = new ThreadLocal<>();
+    private static final ThreadLocal<TracingSocketFactory> FALLBACK = new ThreadLocal<>();
+
+    private final SocketFactory delegate;
+    private final boolean verifyHostname;
+    private final Trace trace;
+    private final TrafficCounter traffic;
+
+    private TracingSocketFactory(SocketFactory delegate, boolean verifyHostname, Trace trace, TrafficCounter traffic) {
+        this.delegate = delegate;
+        this.verifyHostname = verifyHostname;
+        this.trace = trace;
+        this.traffic = traffic;
+    }
+
+    /**
+     * Called by JNDI to get the factory for the connection being made on this thread.
+     *
+     * JNDI can also connect outside of begin() and end(), when it reconnects by itself.  That connection gets
+     * the last factory begun on this thread, untraced, so that an ldaps connection is never silently made
+     * in the clear; if this thread has never begun one, connecting fails.
+     *
+     * @return the factory set up by begin(), or an untraced fallback if there is none
+     */
+    public static SocketFactory getDefault() {
+        TracingSocketFactory factory = CURRENT.get();
+        if (null == factory) {
+            factory = FALLBACK.get();
+        }
+        return null != factory ? factory : new TracingSocketFactory(null, false, new Trace(), null);
+    }
+
+    /**
+     * Route the next connection made on this thread through the given factory, recording into trace.
+     *
+     * @param delegate       SocketFactory.getDefault() for a plain connection, or the SSLSocketFactory for TLS
+     * @param verifyHostname whether to check the server certificate against the host name
+     * @param trace          where to record the timings
+     * @param traffic        where to count the requests and bytes on the connection, or null not to
+     */
+    public static void begin(SocketFactory delegate, boolean verifyHostname, Trace trace, TrafficCounter traffic) {
+        CURRENT.set(new TracingSocketFactory(delegate, verifyHostname, trace, traffic));
+        FALLBACK.set(new TracingSocketFactory(delegate, verifyHostname, new Trace(), traffic));
+    }
+
+    /**
+     * @param factory        the factory for the TLS layer
+     * @param verifyHostname whether to check the server certificate against the host name
+     * @param trace          where to record the handshake time
+     * @param traffic        where to count the requests and bytes once TLS is up, or null not to
+     * @return a factory for StartTlsResponse.negotiate() on a connection made through this class
+     */
+    public static SSLSocketFactory startTls(SSLSocketFactory factory, boolean verifyHostname, Trace trace,
+                                            TrafficCounter traffic) {
+        return new StartTlsFactory(factory, verifyHostname, trace, traffic);
+    }
+
+    /**
+     * Stop tracing connections made on this thread.
+     */
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        if (null == delegate) {
+            throw new SocketException("No LDAP connection has been set up on this thread, so its socket factory is unknown");
+        }
+        if (delegate instanceof SSLSocketFactory) {
+            return new TracingSSLSocket((SSLSocketFactory) delegate, verifyHostname, trace, traffic);
+        }
+        return new TracingSocket(trace, traffic);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localHost, localPort));
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port));
+        return socket;
+    }
+
+    /**
+     * The timings of one connection, in nanoseconds.
+     */
+    public static class Trace {
+        private volatile long socketNanos = 0;
+        private volatile long tlsNanos = 0;
+
+        /**
+         * @return the time taken by the TCP connect
+         */
+        public long getSocketNanos() {
+            return socketNanos;
+        }
+
+        /**
+         * @return the time taken by the TLS handshake, or 0 for a plain connection
+         */
+        public long getTlsNanos() {
+            return tlsNanos;
+        }
+    }
+
+    /**
+     * A plain socket that times its connect.
+     */
+    private static class TracingSocket extends Socket {
+        private final Trace trace;
+        private final TrafficCounter traffic;
+        private volatile boolean layered = false;
+
+        TracingSocket(Trace trace, TrafficCounter traffic) {
+            this.trace = trace;
+            this.traffic = traffic;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            long start = System.nanoTime();
+            super.connect(endpoint, timeout);
+            trace.socketNanos = System.nanoTime() - start;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            InputStream in = super.getInputStream();
+            return null != traffic && !layered ? traffic.wrap(in) : in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            OutputStream out = super.getOutputStream();
+            return null != traffic && !layered ? traffic.wrap(out) : out;
+        }
+    }
+
+    /**
+     * Layers TLS over a connected socket for StartTLS, handshaking straight away.  Once TLS is up the traffic
+     * is counted on the TLS socket, before encryption, rather than on the plain one underneath.
+     */
+    private static class StartTlsFactory extends SSLSocketFactory {
+        private final SSLSocketFactory factory;
+        private final boolean verifyHostname;
+        private final Trace trace;
+        private final TrafficCounter traffic;
+
+        StartTlsFactory(SSLSocketFactory factory, boolean verifyHostname, Trace trace, TrafficCounter traffic) {
+            this.factory = factory;
+            this.verifyHostname = verifyHostname;
+            this.trace = trace;
+            this.traffic = traffic;
+        }
+
+        @Override
+        public Socket createSocket(Socket plain, String host, int port, boolean autoClose) throws IOException {
+            // The TLS socket takes the plain socket's streams when it is created, so stop counting on them first.
+            if (plain instanceof TracingSocket) {
+                ((TracingSocket) plain).layered = true;
+            }
+            SSLSocket socket = (SSLSocket) factory.createSocket(plain, host, port, autoClose);
+            handshake(socket, verifyHostname, plain.getSoTimeout(), trace);
+            return new TracingSSLSocket(factory, verifyHostname, trace, traffic, plain, socket);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return factory.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return factory.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return factory.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return factory.createSocket(address, port, localAddress, localPort);
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return factory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return factory.getSupportedCipherSuites();
+        }
+    }
+
+    /**
+     * Handshake on a new TLS socket, recording how long it took.  The socket is closed if the handshake fails.
+     *
+     * @param timeout how long to wait for the server during the handshake (ms)
+     */
+    private static void handshake(SSLSocket socket, boolean verifyHostname, int timeout, Trace trace)
+            throws IOException {
+        if (verifyHostname) {
+            SSLParameters params = socket.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("LDAPS");
+            socket.setSSLParameters(params);
+        }
+
+        int soTimeout = socket.getSoTimeout();
+        long start = System.nanoTime();
+        try {
+            socket.setSoTimeout(timeout);
+            socket.startHandshake();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        trace.tlsNanos = System.nanoTime() - start;
+        socket.setSoTimeout(soTimeout);
+    }
+
+    /**
+     * A TLS socket that connects a plain socket, times that, then layers TLS over it and times the handshake.
+     * Until it is connected, socket options go to the plain socket; afterwards everything goes to the TLS one.
+     */
+    private static class TracingSSLSocket extends SSLSocket {
+        private final SSLSocketFactory factory;
+        private final boolean verifyHostname;
+        private final Trace trace;
+        private final TrafficCounter traffic;
+        private final Socket plain;
+        private final List<HandshakeCompletedListener> listeners = new ArrayList<>();
+        private SSLSocket tls;
+
+        TracingSSLSocket(SSLSocketFactory factory, boolean verifyHostname, Trace trace, TrafficCounter traffic) {
+            this(factory, verifyHostname, trace, traffic, new Socket(), null);
+        }
+
+        /**
+         * @param plain the plain socket underneath
+         * @param tls   the TLS socket over it if the handshake is already done, otherwise null
+         */
+        TracingSSLSocket(SSLSocketFactory factory, boolean verifyHostname, Trace trace, TrafficCounter traffic,
+                         Socket plain, SSLSocket tls) {
+            this.factory = factory;
+            this.verifyHostname = verifyHostname;
+            this.trace = trace;
+            this.traffic = traffic;
+            this.plain = plain;
+            this.tls = tls;
+        }
+
+        @Override
+        public synchronized void connect(SocketAddress endpoint, int timeout) throws IOException {
+            long start = System.nanoTime();
+            plain.connect(endpoint, timeout);
+            trace.socketNanos = System.nanoTime() - start;
+
+            InetSocketAddress address = (InetSocketAddress) endpoint;
+            SSLSocket socket = (SSLSocket) factory.createSocket(plain, address.getHostString(), address.getPort(), true);
+            handshake(socket, verifyHostname, timeout, trace);
+            tls = socket;
+
+            for (HandshakeCompletedListener listener : listeners) {
+                listener.handshakeCompleted(new HandshakeCompletedEvent(this, socket.getSession()));
+            }
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint) throws IOException {
+            connect(endpoint, 0);
+        }
+
+        private synchronized SSLSocket tls() throws SocketException {
+            if (null == tls) {
+                throw new SocketException("Socket is not connected");
+            }
+            return tls;
+        }
+
+        private synchronized Socket current() {
+            return null != tls ? tls : plain;
+        }
+
+        private SSLSocket tlsOrNull() {
+            synchronized (this) {
+                return tls;
+            }
+        }
+
+        @Override
+        public void startHandshake() throws IOException {
+            // The handshake was done in connect(); another would start a renegotiation.
+            tls();
+        }
+
+        @Override
+        public void addHandshakeCompletedListener(HandshakeCompletedListener listener) {
+            SSLSocket socket = tlsOrNull();
+            if (null != socket) {
+                // The handshake is already done, so tell the listener straight away.
+                listener.handshakeCompleted(new HandshakeCompletedEvent(this, socket.getSession()));
+            } else {
+                listeners.add(listener);
+            }
+        }
+
+        @Override
+        public void removeHandshakeCompletedListener(HandshakeCompletedListener listener) {
+            listeners.remove(listener);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            InputStream in = tls().getInputStream();
+            return null != traffic ? traffic.wrap(in) : in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            OutputStream out = tls().getOutputStream();
+            return null != traffic ? traffic.wrap(out) : out;
+        }
+
+        @Override
+        public void close() throws IOException {
+            current().close();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return current().isConnected();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return current().isClosed();
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return current().getInetAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return current().getPort();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return current().getLocalAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return current().getLocalPort();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            current().setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException {
+            return current().getSoTimeout();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            current().setTcpNoDelay(on);
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException {
+            return current().getTcpNoDelay();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException {
+            current().setKeepAlive(on);
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            return current().getKeepAlive();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            current().shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            current().shutdownOutput();
+        }
+
+        @Override
+        public SSLSession getSession() {
+            SSLSocket socket = tlsOrNull();
+            return null != socket ? socket.getSession() : null;
+        }
+
+        @Override
+        public SSLParameters getSSLParameters() {
+            SSLSocket socket = tlsOrNull();
+            return null != socket ? socket.getSSLParameters() : new SSLParameters(factory.getDefaultCipherSuites());
+        }
+
+        @Override
+        public void setSSLParameters(SSLParameters params) {
+            SSLSocket socket = tlsOrNull();
+            if (null != socket) {
+                socket.setSSLParameters(params);
+            }
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return factory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            SSLSocket socket = tlsOrNull();
+            return null != socket ? socket.getEnabledCipherSuites() : factory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            SSLSocket socket = tlsOrNull();
+            if (null != socket) {
+                socket.setEnabledCipherSuites(suites);
+            }
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            SSLSocket socket = tlsOrNull();
+            return null != socket ? socket.getSupportedProtocols() : new String[0];
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            SSLSocket socket = tlsOrNull();
+            return null != socket ? socket.getEnabledProtocols() : new String[0];
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            SSLSocket socket = tlsOrNull();
+            if (null != socket) {
+                socket.setEnabledProtocols(protocols);
+            }
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            // Always a client.
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return true;
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            // Only meaningful on the server side.
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return false;
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            // Only meaningful on the server side.
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return false;
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            SSLSocket socket = tlsOrNull();
+            if (null != socket) {
+                socket.setEnableSessionCreation(flag);
+            }
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            SSLSocket socket = tlsOrNull();
+            return null == socket || socket.getEnableSessionCreation();
+        }
+    }
+}
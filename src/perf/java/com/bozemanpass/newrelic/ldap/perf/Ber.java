@@ -0,0 +1,215 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap.perf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Just enough BER to speak LDAPv3 with JNDI.
+ */
+class Ber {
+    /**
+     * A decoded tag-length-value element.
+     */
+    static class Element {
+        final int tag;
+        final byte[] buf;
+        final int offset;
+        final int length;
+
+        Element(int tag, byte[] buf, int offset, int length) {
+            this.tag = tag;
+            this.buf = buf;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return a reader over the contents of this (constructed) element
+         */
+        Reader children() {
+            return new Reader(buf, offset, offset + length);
+        }
+
+        String string() {
+            return new String(buf, offset, length, StandardCharsets.UTF_8);
+        }
+
+        long integer() {
+            long v = 0 != length && buf[offset] < 0 ? -1 : 0;
+            for (int i = 0; i < length; i++) {
+                v = (v << 8) | (buf[offset + i] & 0xff);
+            }
+            return v;
+        }
+
+        byte[] bytes() {
+            byte[] ret = new byte[length];
+            System.arraycopy(buf, offset, ret, 0, length);
+            return ret;
+        }
+    }
+
+    /**
+     * Sequential reader over a run of encoded elements.
+     */
+    static class Reader {
+        private final byte[] buf;
+        private int pos;
+        private final int end;
+
+        Reader(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        boolean hasMore() {
+            return pos < end;
+        }
+
+        int peekTag() {
+            return buf[pos] & 0xff;
+        }
+
+        Element next() {
+            int tag = buf[pos++] & 0xff;
+            int len = buf[pos++] & 0xff;
+            if (len > 0x7f) {
+                int n = len & 0x7f;
+                len = 0;
+                for (int i = 0; i < n; i++) {
+                    len = (len << 8) | (buf[pos++] & 0xff);
+                }
+            }
+            Element e = new Element(tag, buf, pos, len);
+            pos += len;
+            return e;
+        }
+    }
+
+    /**
+     * Read one complete top-level element off the wire.
+     *
+     * @param in the stream to read from
+     * @return the element, or null on a clean EOF
+     * @throws IOException
+     */
+    static Element read(InputStream in) throws IOException {
+        int tag = in.read();
+        if (tag < 0) {
+            return null;
+        }
+        int len = readByte(in);
+        if (len > 0x7f) {
+            int n = len & 0x7f;
+            len = 0;
+            for (int i = 0; i < n; i++) {
+                len = (len << 8) | readByte(in);
+            }
+        }
+        byte[] buf = new byte[len];
+        int off = 0;
+        while (off < len) {
+            int r = in.read(buf, off, len - off);
+            if (r < 0) {
+                throw new EOFException();
+            }
+            off += r;
+        }
+        return new Element(tag, buf, 0, len);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    /**
+     * Builds encoded elements.  Constructed elements are written by passing
+     * an already encoded body.
+     */
+    static class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Writer tlv(int tag, byte[] body) {
+            out.write(tag);
+            int len = body.length;
+            if (len < 0x80) {
+                out.write(len);
+            } else if (len < 0x100) {
+                out.write(0x81);
+                out.write(len);
+            } else if (len < 0x10000) {
+                out.write(0x82);
+                out.write(len >> 8);
+                out.write(len);
+            } else {
+                out.write(0x84);
+                out.write(len >> 24);
+                out.write(len >> 16);
+                out.write(len >> 8);
+                out.write(len);
+            }
+            out.write(body, 0, len);
+            return this;
+        }
+
+        Writer string(int tag, String s) {
+            return tlv(tag, s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Writer octets(String s) {
+            return string(0x04, s);
+        }
+
+        Writer integer(int tag, long v) {
+            int n = 1;
+            while (n < 8 && (v >> (8 * n - 1)) != 0 && (v >> (8 * n - 1)) != -1) {
+                n++;
+            }
+            byte[] b = new byte[n];
+            for (int i = 0; i < n; i++) {
+                b[n - 1 - i] = (byte) (v >> (8 * i));
+            }
+            return tlv(tag, b);
+        }
+
+        Writer raw(byte[] encoded) {
+            out.write(encoded, 0, encoded.length);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,643 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap.perf;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the monitoring side of a 389 Directory Server.
+ * <p>
+ * It answers just enough LDAPv3 (bind, search with paged results, modify, StartTLS, unbind) for
+ * JNDI, serving cn=monitor, cn=snmp,cn=monitor, the ldbm database monitor and
+ * one monitor entry per backend, with counters that climb as time passes.
+ * Latency, dropped connections and slow TLS handshakes can be injected.
+ */
+public class MonitorServer implements AutoCloseable {
+    static final String MONITOR_DN = "cn=monitor";
+    static final String SNMP_DN = "cn=snmp,cn=monitor";
+    static final String LDBM_DN = "cn=ldbm database,cn=plugins,cn=config";
+    static final String DB_MONITOR_DN = "cn=database,cn=monitor," + LDBM_DN;
+
+    private static final String STARTTLS_OID = "1.3.6.1.4.1.1466.20037";
+    private static final String PAGED_RESULTS_OID = "1.2.840.113556.1.4.319";
+
+    private static final String[] SNMP_ATTRS = {
+            "anonymousbinds", "simpleauthbinds", "strongauthbinds", "inops", "compareops", "addentryops",
+            "removeentryops", "modifyentryops", "modifyrdnops", "searchops", "onelevelsearchops",
+            "wholesubtreesearchops", "referrals", "securityerrors", "errors", "bindsecurityerrors",
+            "connectionseq", "bytesrecv", "bytessent", "entriesreturned", "connections"};
+
+    private static final String[] LDBM_ATTRS = {
+            "nsslapd-db-abort-rate", "nsslapd-db-cache-hit", "nsslapd-db-cache-try",
+            "nsslapd-db-cache-region-wait-rate", "nsslapd-db-commit-rate", "nsslapd-db-deadlock-rate",
+            "nsslapd-db-hash-elements-examine-rate", "nsslapd-db-hash-search-rate", "nsslapd-db-lock-conflicts",
+            "nsslapd-db-lock-region-wait-rate", "nsslapd-db-lock-request-rate", "nsslapd-db-log-region-wait-rate",
+            "nsslapd-db-log-write-rate", "nsslapd-db-page-create-rate", "nsslapd-db-page-read-rate",
+            "nsslapd-db-page-ro-evict-rate", "nsslapd-db-page-rw-evict-rate", "nsslapd-db-page-trickle-rate",
+            "nsslapd-db-page-write-rate", "nsslapd-db-txn-region-wait-rate", "nsslapd-db-active-txns",
+            "nsslapd-db-cache-size-bytes", "nsslapd-db-clean-pages", "nsslapd-db-dirty-pages",
+            "nsslapd-db-hash-buckets", "nsslapd-db-longest-chain-length", "nsslapd-db-lockers",
+            "nsslapd-db-current-locks", "nsslapd-db-max-locks", "nsslapd-db-current-lock-objects",
+            "nsslapd-db-max-lock-objects", "nsslapd-db-log-bytes-since-checkpoint", "nsslapd-db-pages-in-use"};
+
+    private static final String[] BACKEND_ATTRS = {
+            "entrycachehits", "entrycachetries", "entrycachehitratio", "currententrycachesize",
+            "maxentrycachesize", "currententrycachecount", "dncachehits", "dncachetries", "dncachehitratio",
+            "currentdncachesize", "maxdncachesize", "currentdncachecount", "normalizeddncachetries",
+            "normalizeddncachehits", "normalizeddncachemisses", "normalizeddncacheevictions",
+            "normalizeddncachehitratio", "currentnormalizeddncachesize", "maxnormalizeddncachesize",
+            "currentnormalizeddncachecount"};
+
+    private static final String[] DBFILE_ATTRS = {
+            "dbfilecachehit", "dbfilecachemiss", "dbfilepagein", "dbfilepageout"};
+
+    private final int backends;
+    private final int dbFiles;
+    private final SSLContext sslContext;
+    private final long started = System.nanoTime();
+    private final ServerSocket serverSocket;
+    private final List<Socket> clients = new CopyOnWriteArrayList<>();
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Map<String, String> displayNames = new HashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong binds = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong plainBinds = new AtomicLong();
+
+    private volatile long latencyMillis;
+    private volatile long handshakeDelayMillis;
+    private volatile boolean running = true;
+    private volatile SSLContext tlsForStartTls;
+
+    /**
+     * @param backends   number of backend monitor entries to serve
+     * @param dbFiles    number of dbfilename-N groups on every backend entry
+     * @param sslContext when not null, the listener speaks LDAPS with this context
+     * @throws IOException
+     */
+    public MonitorServer(int backends, int dbFiles, SSLContext sslContext) throws IOException {
+        this.backends = backends;
+        this.dbFiles = dbFiles;
+        this.sslContext = sslContext;
+        buildDirectory();
+
+        this.serverSocket = null != sslContext
+                ? sslContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress())
+                : new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        Thread acceptor = new Thread(this::acceptLoop, "monitor-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return LDAP requests (other than bind and unbind) answered so far
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return binds answered so far
+     */
+    public long getBinds() {
+        return binds.get();
+    }
+
+    /**
+     * @return binds answered so far that were sent without TLS
+     */
+    public long getPlainBinds() {
+        return plainBinds.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getConnectionsAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * Delay every response by the given amount.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Delay the server side of every TLS handshake by the given amount.
+     */
+    public void setHandshakeDelayMillis(long handshakeDelayMillis) {
+        this.handshakeDelayMillis = handshakeDelayMillis;
+    }
+
+    /**
+     * Abruptly close every open client connection.
+     */
+    public void dropConnections() {
+        for (Socket s : clients) {
+            closeQuietly(s);
+        }
+        clients.clear();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        closeQuietly(serverSocket);
+        dropConnections();
+    }
+
+    // ------------------------------------------------------------------------------------------------------------
+
+    /**
+     * A directory entry whose attribute values are computed when it is read.
+     */
+    private interface Entry {
+        Map<String, List<String>> attributes(long elapsedSeconds);
+    }
+
+    private void buildDirectory() {
+        add("", elapsed -> attrs("objectClass", "top", "supportedLDAPVersion", "3",
+                "supportedExtension", STARTTLS_OID, "supportedControl", PAGED_RESULTS_OID));
+
+        add(MONITOR_DN, elapsed -> {
+            Map<String, List<String>> m = attrs("objectClass", "top", "objectClass", "extensibleObject",
+                    "cn", "monitor", "version", "389-Directory/stand-in",
+                    "threads", "24", "currentconnections", "12", "totalconnections", String.valueOf(1000 + elapsed),
+                    "currentconnectionsatmaxthreads", String.valueOf(elapsed % 3),
+                    "maxthreadsperconnhits", String.valueOf(elapsed / 10),
+                    "readwaiters", String.valueOf(elapsed % 5),
+                    "opsinitiated", String.valueOf(5000 + 40 * elapsed),
+                    "opscompleted", String.valueOf(4990 + 40 * elapsed));
+            List<String> dns = new ArrayList<>();
+            for (int b = 0; b < backends; b++) {
+                dns.add(backendMonitorDn(b));
+            }
+            m.put("backendmonitordn", dns);
+            List<String> conns = new ArrayList<>();
+            for (int c = 0; c < 12; c++) {
+                conns.add(String.format("%d:20180101000000Z:%d:%d:-:uid=client%d,ou=apps,dc=example,dc=com:0:%d:%d:%d:ip=10.0.0.%d",
+                        64 + c, 10 + (c + 1) * elapsed, 9 + (c + 1) * elapsed, c % 4, c, c, c, c, c % 5));
+            }
+            m.put("connection", conns);
+            return m;
+        });
+
+        add(SNMP_DN, elapsed -> {
+            Map<String, List<String>> m = attrs("objectClass", "top", "cn", "snmp");
+            for (int i = 0; i < SNMP_ATTRS.length; i++) {
+                m.put(SNMP_ATTRS[i], Collections.singletonList(String.valueOf(1000L * i + (i + 1) * elapsed)));
+            }
+            return m;
+        });
+
+        add("cn=config", elapsed -> attrs("objectClass", "top", "cn", "config"));
+        add("cn=plugins,cn=config", elapsed -> attrs("objectClass", "top", "cn", "plugins"));
+        add(LDBM_DN, elapsed -> attrs("objectClass", "top", "objectClass", "nsSlapdPlugin", "cn", "ldbm database"));
+
+        add("cn=monitor," + LDBM_DN, elapsed -> attrs("objectClass", "top", "cn", "monitor",
+                "database", "ldbm database"));
+
+        add(DB_MONITOR_DN, elapsed -> {
+            Map<String, List<String>> m = attrs("objectClass", "top", "cn", "database");
+            for (int i = 0; i < LDBM_ATTRS.length; i++) {
+                m.put(LDBM_ATTRS[i], Collections.singletonList(String.valueOf(500L * i + (i + 3) * elapsed)));
+            }
+            return m;
+        });
+
+        for (int b = 0; b < backends; b++) {
+            final int backend = b;
+            add("cn=" + backendName(b) + "," + LDBM_DN, elapsed -> attrs("objectClass", "top",
+                    "objectClass", "nsBackendInstance", "cn", backendName(backend)));
+            add(backendMonitorDn(b), elapsed -> {
+                Map<String, List<String>> m = attrs("objectClass", "top", "cn", "monitor",
+                        "database", "ldbm database", "readonly", "0");
+                for (int i = 0; i < BACKEND_ATTRS.length; i++) {
+                    m.put(BACKEND_ATTRS[i], Collections.singletonList(String.valueOf(100L * i + (backend + 1) * elapsed)));
+                }
+                for (int f = 0; f < dbFiles; f++) {
+                    m.put("dbfilename-" + f, Collections.singletonList(backendName(backend) + "/index" + f + ".db"));
+                    for (int a = 0; a < DBFILE_ATTRS.length; a++) {
+                        long rate = 0 == f % 4 ? (f + a + 1) : 0;
+                        m.put(DBFILE_ATTRS[a] + "-" + f, Collections.singletonList(String.valueOf(10L * f + rate * elapsed)));
+                    }
+                }
+                return m;
+            });
+        }
+    }
+
+    private void add(String dn, Entry entry) {
+        String key = normalize(dn);
+        entries.put(key, entry);
+        displayNames.put(key, dn);
+    }
+
+    static String backendName(int b) {
+        return 0 == b ? "userRoot" : "backend" + b;
+    }
+
+    static String backendMonitorDn(int b) {
+        return "cn=monitor,cn=" + backendName(b) + "," + LDBM_DN;
+    }
+
+    private static Map<String, List<String>> attrs(String... pairs) {
+        Map<String, List<String>> m = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            m.computeIfAbsent(pairs[i], k -> new ArrayList<>()).add(pairs[i + 1]);
+        }
+        return m;
+    }
+
+    // ------------------------------------------------------------------------------------------------------------
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket s = serverSocket.accept();
+                accepted.incrementAndGet();
+                s.setTcpNoDelay(true);
+                clients.add(s);
+                Thread t = new Thread(() -> serve(s), "monitor-server-conn");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Socket tls = null;
+        try {
+            boolean secure = socket instanceof SSLSocket;
+            if (secure) {
+                handshake((SSLSocket) socket);
+            }
+            InputStream in = new BufferedInputStream(new CountingInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            while (running) {
+                Ber.Element message = Ber.read(in);
+                if (null == message) {
+                    return;
+                }
+
+                Ber.Reader r = message.children();
+                long msgId = r.next().integer();
+                Ber.Element op = r.next();
+                Ber.Element controls = r.hasMore() ? r.next() : null;
+
+                switch (op.tag) {
+                    case 0x60: // bind
+                        binds.incrementAndGet();
+                        if (!secure) {
+                            plainBinds.incrementAndGet();
+                        }
+                        send(out, msgId, result(0x61, 0));
+                        break;
+                    case 0x42: // unbind
+                        return;
+                    case 0x50: // abandon
+                        break;
+                    case 0x63: // search
+                        requests.incrementAndGet();
+                        delay();
+                        search(out, msgId, op, controls);
+                        break;
+                    case 0x66: // modify
+                        requests.incrementAndGet();
+                        delay();
+                        send(out, msgId, result(0x67, 0));
+                        break;
+                    case 0x77: // extended
+                        requests.incrementAndGet();
+                        String oid = op.children().next().string();
+                        if (STARTTLS_OID.equals(oid) && null != tlsForStartTls && !secure) {
+                            send(out, msgId, new Ber.Writer().tlv(0x78, new Ber.Writer()
+                                    .integer(0x0a, 0).octets("").octets("")
+                                    .string(0x8a, STARTTLS_OID).toByteArray()).toByteArray());
+                            SSLSocket layered = (SSLSocket) tlsForStartTls.getSocketFactory()
+                                    .createSocket(socket, null, socket.getPort(), true);
+                            layered.setUseClientMode(false);
+                            tls = layered;
+                            clients.add(tls);
+                            handshake(layered);
+                            in = new BufferedInputStream(new CountingInputStream(layered.getInputStream()));
+                            out = layered.getOutputStream();
+                            secure = true;
+                        } else {
+                            send(out, msgId, result(0x78, 2));
+                        }
+                        break;
+                    default:
+                        send(out, msgId, result(0x78, 2));
+                }
+            }
+        } catch (IOException e) {
+            // connection dropped
+        } finally {
+            clients.remove(socket);
+            if (null != tls) {
+                clients.remove(tls);
+                closeQuietly(tls);
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Answer StartTLS on the plain listener using the given context.
+     */
+    public void enableStartTls(SSLContext context) {
+        this.tlsForStartTls = context;
+    }
+
+    private void handshake(SSLSocket socket) throws IOException {
+        long delay = handshakeDelayMillis;
+        if (delay > 0) {
+            sleep(delay);
+        }
+        socket.startHandshake();
+    }
+
+    private void delay() {
+        long delay = latencyMillis;
+        if (delay > 0) {
+            sleep(delay);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void search(OutputStream out, long msgId, Ber.Element op, Ber.Element controls) throws IOException {
+        Ber.Reader r = op.children();
+        String base = normalize(r.next().string());
+        int scope = (int) r.next().integer();
+        r.next(); // deref
+        r.next(); // size limit
+        r.next(); // time limit
+        r.next(); // types only
+        Ber.Element filter = r.next();
+        Set<String> wanted = new HashSet<>();
+        Ber.Reader attrs = r.next().children();
+        while (attrs.hasMore()) {
+            wanted.add(attrs.next().string().toLowerCase());
+        }
+        boolean all = wanted.isEmpty() || wanted.contains("*");
+
+        int pageSize = 0;
+        int pageStart = 0;
+        if (null != controls) {
+            Ber.Reader cr = controls.children();
+            while (cr.hasMore()) {
+                Ber.Reader c = cr.next().children();
+                String oid = c.next().string();
+                Ber.Element value = c.hasMore() ? c.next() : null;
+                if (null != value && 0x01 == value.tag) {
+                    value = c.hasMore() ? c.next() : null;
+                }
+                if (PAGED_RESULTS_OID.equals(oid) && null != value) {
+                    Ber.Reader pr = value.children().next().children();
+                    pageSize = (int) pr.next().integer();
+                    String cookie = pr.next().string();
+                    pageStart = cookie.isEmpty() ? 0 : Integer.parseInt(cookie);
+                }
+            }
+        }
+
+        if (!entries.containsKey(base) && !base.isEmpty()) {
+            send(out, msgId, result(0x65, 32));
+            return;
+        }
+
+        long elapsed = (System.nanoTime() - started) / 1000000000L;
+        List<byte[]> matches = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            String dn = e.getKey();
+            if (!inScope(base, scope, dn)) {
+                continue;
+            }
+            Map<String, List<String>> values = e.getValue().attributes(elapsed);
+            if (!matches(filter, values)) {
+                continue;
+            }
+            Ber.Writer attrList = new Ber.Writer();
+            for (Map.Entry<String, List<String>> a : values.entrySet()) {
+                if (!all && !wanted.contains(a.getKey().toLowerCase())) {
+                    continue;
+                }
+                Ber.Writer vals = new Ber.Writer();
+                for (String v : a.getValue()) {
+                    vals.octets(v);
+                }
+                attrList.tlv(0x30, new Ber.Writer().octets(a.getKey()).tlv(0x31, vals.toByteArray()).toByteArray());
+            }
+            matches.add(new Ber.Writer().tlv(0x64, new Ber.Writer().octets(displayNames.get(dn))
+                    .tlv(0x30, attrList.toByteArray()).toByteArray()).toByteArray());
+        }
+
+        int from = 0;
+        int to = matches.size();
+        String nextCookie = null;
+        if (pageSize > 0) {
+            from = Math.min(pageStart, matches.size());
+            to = Math.min(from + pageSize, matches.size());
+            nextCookie = to < matches.size() ? String.valueOf(to) : "";
+        }
+        for (int i = from; i < to; i++) {
+            send(out, msgId, matches.get(i));
+        }
+
+        byte[] done = result(0x65, 0);
+        if (null == nextCookie) {
+            send(out, msgId, done);
+        } else {
+            byte[] value = new Ber.Writer().tlv(0x30, new Ber.Writer().integer(0x02, 0)
+                    .octets(nextCookie).toByteArray()).toByteArray();
+            byte[] control = new Ber.Writer().tlv(0x30, new Ber.Writer().octets(PAGED_RESULTS_OID)
+                    .tlv(0x04, value).toByteArray()).toByteArray();
+            send(out, msgId, done, new Ber.Writer().tlv(0xa0, control).toByteArray());
+        }
+    }
+
+    private static boolean inScope(String base, int scope, String dn) {
+        switch (scope) {
+            case 0:
+                return dn.equals(base);
+            case 1:
+                return !dn.isEmpty() && parent(dn).equals(base);
+            default:
+                return base.isEmpty() ? !dn.isEmpty() : dn.equals(base) || dn.endsWith("," + base);
+        }
+    }
+
+    private static String parent(String dn) {
+        int comma = dn.indexOf(',');
+        return comma < 0 ? "" : dn.substring(comma + 1);
+    }
+
+    private static boolean matches(Ber.Element filter, Map<String, List<String>> values) {
+        switch (filter.tag) {
+            case 0xa0: { // and
+                Ber.Reader r = filter.children();
+                while (r.hasMore()) {
+                    if (!matches(r.next(), values)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            case 0xa1: { // or
+                Ber.Reader r = filter.children();
+                while (r.hasMore()) {
+                    if (matches(r.next(), values)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            case 0xa2: // not
+                return !matches(filter.children().next(), values);
+            case 0xa3: { // equality
+                Ber.Reader r = filter.children();
+                List<String> vals = find(values, r.next().string());
+                String want = r.next().string();
+                for (String v : vals) {
+                    if (v.equalsIgnoreCase(want)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            case 0x87: // present
+                return "objectclass".equalsIgnoreCase(filter.string()) || !find(values, filter.string()).isEmpty();
+            default:
+                return true;
+        }
+    }
+
+    private static List<String> find(Map<String, List<String>> values, String name) {
+        for (Map.Entry<String, List<String>> e : values.entrySet()) {
+            if (e.getKey().equalsIgnoreCase(name)) {
+                return e.getValue();
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private static String normalize(String dn) {
+        return dn.toLowerCase().replaceAll("\\s*,\\s*", ",").replaceAll("\\s*=\\s*", "=");
+    }
+
+    private static byte[] result(int tag, int code) {
+        return new Ber.Writer().tlv(tag, new Ber.Writer().integer(0x0a, code).octets("").octets("")
+                .toByteArray()).toByteArray();
+    }
+
+    private void send(OutputStream out, long msgId, byte[] op) throws IOException {
+        send(out, msgId, op, null);
+    }
+
+    private void send(OutputStream out, long msgId, byte[] op, byte[] controls) throws IOException {
+        Ber.Writer body = new Ber.Writer().integer(0x02, msgId).raw(op);
+        if (null != controls) {
+            body.raw(controls);
+        }
+        byte[] encoded = new Ber.Writer().tlv(0x30, body.toByteArray()).toByteArray();
+        bytesOut.addAndGet(encoded.length);
+        synchronized (out) {
+            out.write(encoded);
+            out.flush();
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesIn.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesIn.addAndGet(n);
+            }
+            return n;
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable c) {
+        try {
+            if (null != c) {
+                c.close();
+            }
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/* START COPY NOTICE
+ * MIT License
+ * Copyright (c) 2018 Bozeman Pass, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * END COPY NOTICE */
+
+package com.bozemanpass.newrelic.ldap.perf;
+
+import com.bozemanpass.newrelic.ldap.LdapAgent;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the agent's real JNDI path against a {@link MonitorServer} at several topology sizes and checks the
+ * steady state poll cycle against the budgets in perf/budgets.json.
+ * <p>
+ * Every scenario runs a warm-up cycle, which connects and learns the backend layout, and then a number of
+ * measured cycles.  The median wall clock time and the worst round trips (binds and requests) and bytes on
+ * the wire of the measured cycles are compared with the scenario's budget, as are, optionally, the worst
+ * connections opened and TLS handshakes that did not resume a session.  A scenario may also inject latency,
+ * drop every connection before each measured cycle, or serve LDAPS or StartTLS with a slow handshake.  Over
+ * TLS, any bind the server sees in the clear is a failure.
+ * <p>
+ * The timed operations and sub-minute sampling run on their own threads and are left out, so only the
+ * work of pollCycle is counted, unless a scenario's agent config turns them back on to check what they
+ * publish against its expect_metrics, after waiting settle_ms for them to run.  Time budgets can be scaled
+ * for slow machines with -Dperf.timeScale=2.
+ * <p>
+ * Exits with status 1 if any budget is exceeded.  The results are written as JSON to the file named by
+ * -Dperf.report, if set.
+ */
+public class PollCycleBudgetCheck {
+    private static final String BUDGETS = "/perf/budgets.json";
+    private static final String TEMPLATE = "/config/plugin.template.json";
+    private static final String KEYSTORE = "/perf/monitor-server.p12";
+    private static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+    private static final long DEFAULT_CYCLES = 5;
+    private static final long DROP_SETTLE_MILLIS = 50;
+    private static final String TLS_HANDSHAKES = "Agent/TLS/Handshakes";
+    private static final String TLS_RESUMED = "Agent/TLS/Resumed";
+
+    /**
+     * @param args optionally, the names of the scenarios to run; all of them if none
+     */
+    public static void main(String[] args) throws Exception {
+        JSONObject budgets = readJson(BUDGETS);
+        Long l = (Long) budgets.get("cycles");
+        int cycles = (int) (null != l ? l : DEFAULT_CYCLES);
+        double timeScale = Double.parseDouble(System.getProperty("perf.timeScale", "1"));
+        Set<String> only = new HashSet<>(Arrays.asList(args));
+
+        List<String> failures = new ArrayList<>();
+        JSONArray report = new JSONArray();
+        System.out.println(String.format("%-14s %9s %9s %11s %11s %9s",
+                "scenario", "millis", "budget", "round trips", "bytes", "metrics"));
+
+        for (Object o : (JSONArray) budgets.get("scenarios")) {
+            JSONObject scenario = (JSONObject) o;
+            String name = (String) scenario.get("name");
+            if (!only.isEmpty() && !only.contains(name)) {
+                continue;
+            }
+
+            Result result = run(scenario, cycles);
+            report.add(result.toJson(name));
+
+            Long budget = (Long) scenario.get("max_millis");
+            long maxMillis = null != budget ? (long) (budget * timeScale) : Long.MAX_VALUE;
+            System.out.println(String.format("%-14s %9.1f %9s %11d %11d %9d", name, result.millis,
+                    null != budget ? String.valueOf(maxMillis) : "-", result.roundTrips, result.bytes, result.metrics));
+
+            if (result.millis > maxMillis) {
+                failures.add(String.format("%s: %.1f ms > %d ms", name, result.millis, maxMillis));
+            }
+            check(failures, name, "round trips", result.roundTrips, longValue(scenario, "max_round_trips", Long.MAX_VALUE));
+            check(failures, name, "bytes", result.bytes, longValue(scenario, "max_bytes", Long.MAX_VALUE));
+            check(failures, name, "connections", result.connections,
+                    longValue(scenario, "max_connections", Long.MAX_VALUE));
+            check(failures, name, "full TLS handshakes", result.fullHandshakes,
+                    longValue(scenario, "max_full_handshakes", Long.MAX_VALUE));
+            if (result.plainBinds > 0) {
+                failures.add(String.format("%s: %d binds sent without TLS", name, result.plainBinds));
+            }
+            JSONObject expected = (JSONObject) scenario.get("expect_metrics");
+            if (null != expected) {
+                for (Object key : expected.keySet()) {
+                    Number actual = result.reported.get(key);
+                    Number value = (Number) expected.get(key);
+                    if (null == actual || actual.doubleValue() != value.doubleValue()) {
+                        failures.add(String.format("%s: %s was %s, expected %s", name, key, actual, value));
+                    }
+                }
+            }
+            if (result.metrics < longValue(scenario, "min_metrics", 1)) {
+                failures.add(String.format("%s: only %d metrics published", name, result.metrics));
+            }
+        }
+
+        String reportFile = System.getProperty("perf.report");
+        if (null != reportFile) {
+            File file = new File(reportFile);
+            if (null != file.getParentFile()) {
+                file.getParentFile().mkdirs();
+            }
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                report.writeJSONString(out);
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            System.err.println("Poll cycle budget exceeded:");
+            for (String failure : failures) {
+                System.err.println("  " + failure);
+            }
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static Result run(JSONObject scenario, int cycles) throws Exception {
+        int backends = (int) longValue(scenario, "backends", 1);
+        int dbFiles = (int) longValue(scenario, "dbfiles", 10);
+        Boolean b = (Boolean) scenario.get("ldaps");
+        boolean ldaps = null != b ? b : false;
+        b = (Boolean) scenario.get("start_tls");
+        boolean startTls = null != b ? b : false;
+        b = (Boolean) scenario.get("drop_connections");
+        boolean drop = null != b ? b : false;
+
+        try (MonitorServer server = new MonitorServer(backends, dbFiles, ldaps ? sslContext() : null)) {
+            if (startTls) {
+                server.enableStartTls(sslContext());
+            }
+            JSONObject config = (JSONObject) ((JSONArray) readJson(TEMPLATE).get("agents")).get(0);
+            config.remove("timedops");
+            config.remove("sampling");
+            config.put("host", "127.0.0.1");
+            config.put("port", (long) server.getPort());
+            config.put("use_ssl", ldaps);
+            config.put("start_tls", startTls);
+            config.put("trust_any_ssl", ldaps || startTls);
+            config.put("binddn", "cn=Directory Manager");
+            config.put("bindpw", "password");
+            JSONObject agentConfig = (JSONObject) scenario.get("agent");
+            if (null != agentConfig) {
+                config.putAll(agentConfig);
+            }
+
+            AtomicLong metrics = new AtomicLong();
+            Map<String, Number> reported = new ConcurrentHashMap<>();
+            LdapAgent agent = new LdapAgent(config) {
+                @Override
+                protected void send(String metricName, String units, Number value) {
+                    if (null != value) {
+                        metrics.incrementAndGet();
+                        reported.put(metricName, value);
+                    }
+                }
+            };
+
+            agent.pollCycle();
+            Thread.sleep(longValue(scenario, "settle_ms", 0));
+            server.setLatencyMillis(longValue(scenario, "latency_ms", 0));
+            server.setHandshakeDelayMillis(longValue(scenario, "handshake_delay_ms", 0));
+
+            Result result = new Result();
+            double[] millis = new double[cycles];
+            result.metrics = Long.MAX_VALUE;
+            for (int i = 0; i < cycles; i++) {
+                if (drop) {
+                    server.dropConnections();
+                    // Let the client notice, as it would between poll cycles.
+                    Thread.sleep(DROP_SETTLE_MILLIS);
+                }
+                metrics.set(0);
+                reported.clear();
+                long connections = server.getConnectionsAccepted();
+                long trips = server.getRequests() + server.getBinds();
+                long bytes = server.getBytesIn() + server.getBytesOut();
+                long start = System.nanoTime();
+
+                agent.pollCycle();
+
+                millis[i] = (System.nanoTime() - start) / 1e6;
+                result.roundTrips = Math.max(result.roundTrips, server.getRequests() + server.getBinds() - trips);
+                result.bytes = Math.max(result.bytes, server.getBytesIn() + server.getBytesOut() - bytes);
+                result.metrics = Math.min(result.metrics, metrics.get());
+                result.connections = Math.max(result.connections, server.getConnectionsAccepted() - connections);
+                result.fullHandshakes = Math.max(result.fullHandshakes,
+                        count(reported, TLS_HANDSHAKES) - count(reported, TLS_RESUMED));
+            }
+            if (ldaps || startTls) {
+                result.plainBinds = server.getPlainBinds();
+            }
+            result.reported = new TreeMap<>(reported);
+            Arrays.sort(millis);
+            result.millis = millis[cycles / 2];
+            return result;
+        }
+    }
+
+    private static void check(List<String> failures, String name, String what, long value, long max) {
+        if (value > max) {
+            failures.add(String.format("%s: %d %s > %d", name, value, what, max));
+        }
+    }
+
+    private static long count(Map<String, Number> reported, String name) {
+        Number n = reported.get(name);
+        return null != n ? n.longValue() : 0;
+    }
+
+    private static long longValue(JSONObject o, String key, long defaultValue) {
+        Long l = (Long) o.get(key);
+        return null != l ? l : defaultValue;
+    }
+
+    private static JSONObject readJson(String resource) throws Exception {
+        InputStream in = PollCycleBudgetCheck.class.getResourceAsStream(resource);
+        if (null == in) {
+            throw new FileNotFoundException(resource);
+        }
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return (JSONObject) new JSONParser().parse(reader);
+        }
+    }
+
+    private static SSLContext sslContext() throws Exception {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = PollCycleBudgetCheck.class.getResourceAsStream(KEYSTORE)) {
+            ks.load(in, KEYSTORE_PASSWORD);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, KEYSTORE_PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * The measurements for one scenario.
+     */
+    private static class Result {
+        double millis;
+        long roundTrips;
+        long bytes;
+        long metrics;
+        long connections;
+        long fullHandshakes;
+        long plainBinds;
+        Map<String, Number> reported;
+
+        JSONObject toJson(String name) {
+            JSONObject o = new JSONObject();
+            o.put("name", name);
+            o.put("millis", millis);
+            o.put("round_trips", roundTrips);
+            o.put("bytes", bytes);
+            o.put("metrics", metrics);
+            o.put("connections", connections);
+            o.put("full_handshakes", fullHandshakes);
+            return o;
+        }
+    }
+}